@@ -0,0 +1,26 @@
+package hussachai.osu.cs5243.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Command line of JMH that writes the results as JSON (jmh-result.json)
+ * unless another result format is given with -rf.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws Exception{
+    List<String> options = new ArrayList<>(Arrays.asList(args));
+    if(!options.contains("-rf")){
+      options.add("-rf");
+      options.add("json");
+    }
+    Main.main(options.toArray(new String[options.size()]));
+  }
+}
@@ -0,0 +1,32 @@
+package hussachai.osu.cs5243.benchmark;
+
+import java.util.Random;
+
+/**
+ * Deterministic English-like text used as benchmark input
+ * 
+ * @author hussachai (http://www.siberhus.com) 
+ *
+ */
+public class Corpus {
+  
+  private static final String[] WORDS = {"the", "quick", "brown", "fox", "jumps", 
+    "over", "lazy", "dog", "secure", "word", "count", "server", "client", 
+    "message", "encryption", "a", "of", "to", "and", "in"};
+  
+  /**
+   * Generate text of the given length in characters
+   * @param length
+   * @return
+   */
+  public static String text(int length){
+    Random random = new Random(length);
+    StringBuilder text = new StringBuilder(length + 16);
+    while(text.length() < length){
+      if(text.length() > 0) text.append(random.nextInt(10) == 0 ? "\n" : " ");
+      text.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    text.setLength(length);
+    return text.toString();
+  }
+}
@@ -0,0 +1,60 @@
+package hussachai.osu.cs5243.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import hussachai.osu.cs5243.WordCounter;
+
+/**
+ * Word counting of short lines and multi-megabyte documents using
+ * {@link WordCounter} compared with the original split on regex.
+ * 
+ * @author hussachai (http://www.siberhus.com) 
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CountBenchmark {
+  
+  @Param({"64", "1024", "4194304"})
+  public int textLength;
+  
+  private String text;
+  
+  private WordCounter counter = new WordCounter();
+  
+  @Setup
+  public void setup(){
+    text = Corpus.text(textLength);
+  }
+  
+  @Benchmark
+  public void wordCounter(Blackhole blackhole){
+    counter.reset();
+    counter.update(text);
+    blackhole.consume(counter.getWords());
+    blackhole.consume(counter.getCharacters());
+  }
+  
+  @Benchmark
+  public void regexSplit(Blackhole blackhole){
+    blackhole.consume(text.split("\\s+").length);
+    blackhole.consume(text.length());
+  }
+}
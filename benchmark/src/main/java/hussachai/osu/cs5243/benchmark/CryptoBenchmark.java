@@ -0,0 +1,69 @@
+package hussachai.osu.cs5243.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hussachai.osu.cs5243.SecureMessage;
+import hussachai.osu.cs5243.SecuritySession;
+
+/**
+ * Messages per second of one request/response round of crypto
+ * (decrypt request, encrypt response) using the session scoped
+ * crypto context compared with the original per-message getInstance.
+ * 
+ * @author hussachai (http://www.siberhus.com) 
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoBenchmark {
+  
+  @Param({"16", "256", "4096"})
+  public int messageLength;
+  
+  private SecuritySession session;
+  
+  private LegacyCrypto legacy;
+  
+  private SecureMessage request;
+  
+  private String response = "Words: 42, Characters: 256";
+  
+  @Setup
+  public void setup() throws Exception{
+    SecretKey secretKey = SecuritySession.deriveKey("secret", 
+        SecuritySession.DEFAULT_ITERATION, SecuritySession.DEFAULT_KEY_LENGTH);
+    session = SecuritySession.create(secretKey);
+    legacy = new LegacyCrypto(secretKey);
+    request = session.encrypt(Corpus.text(messageLength));
+  }
+  
+  @Benchmark
+  public SecureMessage sessionContext() throws Exception{
+    session.decrypt(request);
+    return session.encrypt(response);
+  }
+  
+  @Benchmark
+  public SecureMessage legacyGetInstance() throws Exception{
+    legacy.decrypt(request);
+    return legacy.encrypt(response);
+  }
+}
@@ -0,0 +1,70 @@
+package hussachai.osu.cs5243.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hussachai.osu.cs5243.SecureMessage;
+import hussachai.osu.cs5243.SecuritySession;
+import hussachai.osu.cs5243.WireFormat;
+
+/**
+ * Encoding and decoding of secure message in text and binary wire format.
+ * The bytes on wire of one message are printed when the benchmark is set up.
+ * 
+ * @author hussachai (http://www.siberhus.com) 
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FramingBenchmark {
+  
+  @Param({"32", "1024", "65536"})
+  public int messageLength;
+  
+  @Param({"TEXT", "BINARY"})
+  public WireFormat format;
+  
+  private SecureMessage message;
+  
+  private ByteBuffer encoded;
+  
+  @Setup
+  public void setup() throws Exception{
+    SecuritySession session = SecuritySession.create("secret");
+    message = session.encrypt(Corpus.text(messageLength));
+    encoded = format.encode(message);
+    System.out.println("Wire bytes per message: "+encoded.remaining());
+  }
+  
+  @Benchmark
+  public ByteBuffer encode(){
+    return format.encode(message);
+  }
+  
+  @Benchmark
+  public SecureMessage decode(){
+    ByteBuffer bytes = encoded.duplicate();
+    if(format == WireFormat.BINARY){
+      bytes.position(SecureMessage.FRAME_HEADER_LENGTH);
+      return SecureMessage.fromFrame(bytes);
+    }
+    return SecureMessage.fromString(new String(bytes.array(), 
+        0, bytes.remaining() - 1, WireFormat.UTF8));
+  }
+}
@@ -0,0 +1,98 @@
+package hussachai.osu.cs5243.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hussachai.osu.cs5243.WordFrequency;
+
+/**
+ * Word frequency and top 10 words using {@link WordFrequency} compared 
+ * with the plain HashMap of String to Integer.
+ * 
+ * @author hussachai (http://www.siberhus.com) 
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FrequencyBenchmark {
+  
+  private static final int K = 10;
+  
+  /**
+   * Number of distinct words in text
+   */
+  @Param({"100", "100000"})
+  public int vocabulary;
+  
+  @Param({"1048576"})
+  public int textLength;
+  
+  private String text;
+  
+  private WordFrequency frequency = new WordFrequency();
+  
+  @Setup
+  public void setup(){
+    Random random = new Random(vocabulary);
+    StringBuilder builder = new StringBuilder(textLength + 16);
+    while(builder.length() < textLength){
+      /* Skewed distribution so that the top words are meaningful */
+      int word = (int)(vocabulary * Math.pow(random.nextDouble(), 3));
+      builder.append("w").append(Integer.toString(word, 36)).append(' ');
+    }
+    text = builder.toString();
+  }
+  
+  @Benchmark
+  public int[] wordFrequency(){
+    frequency.reset();
+    frequency.addAll(text);
+    return frequency.top(K);
+  }
+  
+  @Benchmark
+  public List<Map.Entry<String, Integer>> hashMap(){
+    Map<String, Integer> counts = new HashMap<>();
+    for(String word: text.split("\\s+")){
+      Integer count = counts.get(word);
+      counts.put(word, count == null ? 1 : count + 1);
+    }
+    Comparator<Map.Entry<String, Integer>> byCount = new Comparator<Map.Entry<String, Integer>>(){
+      @Override
+      public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b){
+        return a.getValue().compareTo(b.getValue());
+      }
+    };
+    PriorityQueue<Map.Entry<String, Integer>> heap = new PriorityQueue<>(K, byCount);
+    for(Map.Entry<String, Integer> entry: counts.entrySet()){
+      heap.add(entry);
+      if(heap.size() > K) heap.poll();
+    }
+    List<Map.Entry<String, Integer>> top = new ArrayList<>(heap);
+    Collections.sort(top, Collections.reverseOrder(byCount));
+    return top;
+  }
+}
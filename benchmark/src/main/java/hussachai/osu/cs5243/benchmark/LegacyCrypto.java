@@ -0,0 +1,60 @@
+package hussachai.osu.cs5243.benchmark;
+
+import java.security.AlgorithmParameters;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+
+import hussachai.osu.cs5243.SecureMessage;
+
+/**
+ * The original per-message crypto of SecuritySession which looks up
+ * Cipher and Mac and re-keys them for every message.
+ * It's kept here as the baseline for CryptoBenchmark.
+ * 
+ * @author hussachai (http://www.siberhus.com) 
+ *
+ */
+public class LegacyCrypto {
+  
+  private SecretKey secretKey;
+  
+  public LegacyCrypto(SecretKey secretKey){
+    this.secretKey = secretKey;
+  }
+  
+  public SecureMessage encrypt(String message) throws Exception{
+    SecretKey secret = new SecretKeySpec(secretKey.getEncoded(), "AES");
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.ENCRYPT_MODE, secret);
+    AlgorithmParameters params = cipher.getParameters();
+    byte[] ivBytes = params.getParameterSpec(IvParameterSpec.class).getIV();
+    byte[] cipherBytes = cipher.doFinal(message.getBytes("UTF-8"));
+    String hmac = generateHMAC(message);
+    return new SecureMessage(hmac, ivBytes, cipherBytes);
+  }
+  
+  public String decrypt(SecureMessage secureMessage) throws Exception{
+    SecretKey secret = new SecretKeySpec(secretKey.getEncoded(), "AES");
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(secureMessage.getIvBytes()));
+    String decipherText = new String(cipher.doFinal(
+        secureMessage.getCipherBytes()), "UTF-8");
+    if(!secureMessage.getHMAC().equals(generateHMAC(decipherText))){
+      throw new RuntimeException("HMAC verification failed");
+    }
+    return decipherText;
+  }
+  
+  public String generateHMAC(String message) throws Exception {
+    Mac hmacSha2 = Mac.getInstance("HmacSHA256");
+    SecretKey hmacKey = new SecretKeySpec(secretKey.getEncoded(), "HmacSHA256");
+    hmacSha2.init(hmacKey);
+    return Hex.encodeHexString(hmacSha2.doFinal(message.getBytes("UTF-8")));
+  }
+}
@@ -0,0 +1,170 @@
+package hussachai.osu.cs5243.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+
+import hussachai.osu.cs5243.ClientConnection;
+import hussachai.osu.cs5243.TlsSupport;
+import hussachai.osu.cs5243.WireFormat;
+import hussachai.osu.cs5243.WordCountServer;
+
+/**
+ * End-to-end round trip of a count request through TLS, decryption, counting and
+ * encryption of the reply. A {@link WordCountServer} is started in process on a
+ * free port and every benchmark thread is one authenticated client with its own
+ * connection, so the number of concurrent clients is the number of threads (-t).
+ * {@link #throughput(Client)} gives messages per second and {@link #latency(Client)}
+ * the latency percentiles (p50, p99) of a request.
+ *
+ * The server reads server/server.conf of the wordcount directory, given by
+ * system property wordcount.home (by default the current directory or its parent).
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class LoopbackBenchmark {
+
+  /**
+   * Server shared by all clients of a trial
+   */
+  @State(Scope.Benchmark)
+  public static class Server {
+
+    @Param({"thread", "nio"})
+    public String engine;
+
+    private int port;
+
+    @Setup
+    public void setup() throws Exception{
+      File home = home();
+      port = freePort();
+      Config config = ConfigFactory.parseString(
+          "server.debug = false\n"+
+          "log.level = error\n"+
+          "metrics.jmx = false\n"+
+          "metrics.dumpFile = \"\"\n"+
+          /* The certificate of server is DSA which TLS 1.3 can't use */
+          "tls.protocols = [TLSv1.2]\n"+
+          "credentials.watch = false\n")
+        .withFallback(ConfigFactory.parseFile(new File(home, "server/server.conf")))
+        .withValue("server.port", ConfigValueFactory.fromAnyRef(port))
+        .withValue("keyStore.file", ConfigValueFactory.fromAnyRef(
+            new File(home, "server/wordcount.pem").getAbsolutePath()))
+        .withValue("credentials.file", ConfigValueFactory.fromAnyRef(
+            new File(home, "server/server.conf").getAbsolutePath()));
+      ClientConnection.setSslContext(TlsSupport.clientContext(
+          new File(home, "client/wordcount.pub").getAbsolutePath(), "pass123",
+          1000, TimeUnit.HOURS.toSeconds(24)));
+      final WordCountServer server = new WordCountServer(config, engine);
+      Thread thread = new Thread("loopback-server"){
+        @Override
+        public void run(){
+          try{
+            server.start();
+          }catch(Exception e){
+            e.printStackTrace();
+          }
+        }
+      };
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    /**
+     * Connect as soon as the server is listening
+     */
+    ClientConnection connect(WireFormat format, boolean gcm) throws Exception{
+      long deadline = System.currentTimeMillis() + 10000;
+      while(true){
+        try{
+          return ClientConnection.open("localhost", port, "bob", "secret", format, gcm);
+        }catch(IOException e){
+          if(System.currentTimeMillis() > deadline) throw e;
+          Thread.sleep(50);
+        }
+      }
+    }
+
+    private static File home(){
+      String home = System.getProperty("wordcount.home");
+      if(home != null) return new File(home);
+      return new File("server/server.conf").exists() ? new File(".") : new File("..");
+    }
+
+    private static int freePort() throws IOException{
+      try(ServerSocket socket = new ServerSocket(0)){
+        return socket.getLocalPort();
+      }
+    }
+  }
+
+  /**
+   * Authenticated connection of one benchmark thread
+   */
+  @State(Scope.Thread)
+  public static class Client {
+
+    @Param({"TEXT", "BINARY"})
+    public WireFormat format;
+
+    @Param({"64", "1024"})
+    public int messageLength;
+
+    @Param({"gcm", "cbc"})
+    public String cipher;
+
+    private ClientConnection connection;
+
+    private String sentence;
+
+    @Setup
+    public void setup(Server server) throws Exception{
+      connection = server.connect(format, "gcm".equals(cipher));
+      sentence = Corpus.text(messageLength);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException{
+      connection.close();
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public String throughput(Client client) throws Exception{
+    return client.connection.request(client.sentence);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public String latency(Client client) throws Exception{
+    return client.connection.request(client.sentence);
+  }
+}
@@ -0,0 +1,95 @@
+package hussachai.osu.cs5243.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hussachai.osu.cs5243.SecureMessage;
+import hussachai.osu.cs5243.SecuritySession;
+
+/**
+ * Each operation of {@link SecuritySession} on its own: session creation with
+ * and without key derivation, encryption, decryption and HMAC of a message.
+ * Messages are encrypted with AES-CBC and HMAC or with AES-GCM.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SecurityBenchmark {
+
+  @Param({"16", "256", "4096"})
+  public int messageLength;
+
+  @Param({"cbc", "gcm"})
+  public String cipher;
+
+  private SecretKey secretKey;
+
+  private SecuritySession session;
+
+  private String message;
+
+  private SecureMessage encrypted;
+
+  @Setup
+  public void setup() throws Exception{
+    secretKey = SecuritySession.deriveKey("secret",
+        SecuritySession.DEFAULT_ITERATION, SecuritySession.DEFAULT_KEY_LENGTH);
+    session = SecuritySession.create(secretKey);
+    if("gcm".equals(cipher)){
+      session.enableGcm("server nonce", "client nonce");
+    }
+    message = Corpus.text(messageLength);
+    encrypted = session.encrypt(message);
+  }
+
+  /**
+   * Session of a user whose key is not cached (PBKDF2 included)
+   */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public SecuritySession createWithPassword() throws Exception{
+    return SecuritySession.create("secret");
+  }
+
+  /**
+   * Session of a user whose key is cached
+   */
+  @Benchmark
+  public SecuritySession createWithKey() throws Exception{
+    return SecuritySession.create(secretKey);
+  }
+
+  @Benchmark
+  public SecureMessage encrypt() throws Exception{
+    return session.encrypt(message);
+  }
+
+  @Benchmark
+  public String decrypt() throws Exception{
+    return session.decrypt(encrypted);
+  }
+
+  @Benchmark
+  public String generateHMAC() throws Exception{
+    return session.generateHMAC(message);
+  }
+}
@@ -0,0 +1,307 @@
+package hussachai.osu.cs5243;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.typesafe.config.Config;
+
+/**
+ * Asynchronous server log.
+ * Threads serving clients never write to the console themselves. A log call
+ * checks the level first, then copies the message template and its arguments
+ * into a preallocated slot of a bounded lock-free ring and returns. A background
+ * thread formats the entries and writes them in batches. When the ring is full the
+ * entry is dropped and counted instead of blocking the caller, so the throughput of
+ * server doesn't depend on how fast the console is.
+ *
+ * Templates use the same "{0}" placeholders as MessageFormat (without its quoting
+ * rules). The arguments are formatted later by the writer thread, so they must not
+ * be changed after they have been logged. A Throwable passed after the arguments
+ * is printed with its stack trace.
+ *
+ * The ring is the bounded queue of Dmitry Vyukov: each slot has a sequence number
+ * that tells producers and the consumer whose turn it is.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class AsyncLog {
+
+  public enum Level {
+    DEBUG, INFO, ERROR
+  }
+
+  private final Level level;
+
+  private final Entry[] entries;
+
+  private final AtomicLongArray sequences;
+
+  private final int mask;
+
+  /**
+   * Next position to be claimed by producers
+   */
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * Next position to be read by writer thread, only used by the writer thread
+   */
+  private long head;
+
+  private final AtomicLong dropped = new AtomicLong();
+
+  private final Writer out;
+
+  private final Thread writer;
+
+  private volatile boolean sleeping;
+
+  /**
+   * @param level the lowest level that is logged
+   * @param capacity the number of entries that can wait for writer, rounded up to a power of two
+   * @param out
+   */
+  public AsyncLog(Level level, int capacity, Writer out){
+    this.level = level;
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    this.entries = new Entry[size];
+    this.sequences = new AtomicLongArray(size);
+    for(int i = 0; i < size; i++){
+      entries[i] = new Entry();
+      sequences.set(i, i);
+    }
+    this.mask = size - 1;
+    this.out = out;
+    this.writer = new Thread("log-writer"){
+      @Override
+      public void run(){
+        write();
+      }
+    };
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Create log as configured in log section. Debug level is enabled by server.debug.
+   * @param config
+   * @return
+   * @throws IOException
+   */
+  public static AsyncLog fromConfig(Config config) throws IOException{
+    Level level = config.getBoolean("server.debug") ? Level.DEBUG :
+      Level.valueOf(config.getString("log.level").toUpperCase());
+    String file = config.getString("log.file");
+    FileOutputStream stream = file.isEmpty() ? new FileOutputStream(FileDescriptor.out)
+      : new FileOutputStream(file, true);
+    return new AsyncLog(level, config.getInt("log.bufferSize"),
+        new BufferedWriter(new OutputStreamWriter(stream, WireFormat.UTF8), 64 * 1024));
+  }
+
+  public boolean isDebugEnabled(){
+    return level == Level.DEBUG;
+  }
+
+  public boolean isEnabled(Level level){
+    return level.compareTo(this.level) >= 0;
+  }
+
+  public void debug(String template){
+    if(level == Level.DEBUG) log(Level.DEBUG, template, null, null, null);
+  }
+
+  public void debug(String template, Object arg0){
+    if(level == Level.DEBUG) log(Level.DEBUG, template, arg0, null, null);
+  }
+
+  public void debug(String template, Object arg0, Object arg1){
+    if(level == Level.DEBUG) log(Level.DEBUG, template, arg0, arg1, null);
+  }
+
+  public void debug(String template, Object arg0, Object arg1, Object arg2){
+    if(level == Level.DEBUG) log(Level.DEBUG, template, arg0, arg1, arg2);
+  }
+
+  public void info(String template){
+    if(level != Level.ERROR) log(Level.INFO, template, null, null, null);
+  }
+
+  public void info(String template, Object arg0){
+    if(level != Level.ERROR) log(Level.INFO, template, arg0, null, null);
+  }
+
+  public void info(String template, Object arg0, Object arg1){
+    if(level != Level.ERROR) log(Level.INFO, template, arg0, arg1, null);
+  }
+
+  public void info(String template, Object arg0, Object arg1, Object arg2){
+    if(level != Level.ERROR) log(Level.INFO, template, arg0, arg1, arg2);
+  }
+
+  public void error(String template, Object arg0){
+    log(Level.ERROR, template, arg0, null, null);
+  }
+
+  public void error(String template, Object arg0, Object arg1){
+    log(Level.ERROR, template, arg0, arg1, null);
+  }
+
+  public void error(String template, Object arg0, Object arg1, Object arg2){
+    log(Level.ERROR, template, arg0, arg1, arg2);
+  }
+
+  /**
+   * Number of entries dropped because the ring was full
+   * @return
+   */
+  public long getDropped(){
+    return dropped.get();
+  }
+
+  /**
+   * Put entry into ring or drop it when the ring is full
+   */
+  private void log(Level level, String template, Object arg0, Object arg1, Object arg2){
+    long position = tail.get();
+    while(true){
+      long sequence = sequences.get((int)position & mask);
+      long difference = sequence - position;
+      if(difference == 0){
+        if(tail.compareAndSet(position, position + 1)) break;
+      }else if(difference < 0){
+        /* The writer hasn't freed this slot yet, so the ring is full */
+        dropped.incrementAndGet();
+        return;
+      }
+      position = tail.get();
+    }
+    int index = (int)position & mask;
+    Entry entry = entries[index];
+    entry.level = level;
+    entry.template = template;
+    entry.arg0 = arg0;
+    entry.arg1 = arg1;
+    entry.arg2 = arg2;
+    /* Publish the entry to the writer */
+    sequences.set(index, position + 1);
+    if(sleeping){
+      LockSupport.unpark(writer);
+    }
+  }
+
+  /**
+   * Loop of writer thread
+   */
+  private void write(){
+    StringBuilder line = new StringBuilder(256);
+    long reported = 0;
+    while(true){
+      try{
+        int index = (int)head & mask;
+        if(sequences.get(index) == head + 1){
+          Entry entry = entries[index];
+          line.setLength(0);
+          Throwable throwable = null;
+          try{
+            throwable = entry.format(line);
+          }catch(RuntimeException e){
+            /* e.g. toString() of an argument has failed, the writer must go on */
+            line.setLength(0);
+            line.append("ERROR > Log message \"").append(entry.template)
+              .append("\" cannot be formatted: ").append(e.getClass().getName());
+          }
+          /* Hand the slot back to producers */
+          entry.clear();
+          sequences.set(index, head + entries.length);
+          head++;
+          out.append(line).append('\n');
+          if(throwable != null){
+            throwable.printStackTrace(new PrintWriter(out));
+          }
+          continue;
+        }
+        long lost = dropped.get();
+        if(lost != reported){
+          out.append(Long.toString(lost - reported)).append(" log messages have been dropped\n");
+          reported = lost;
+        }
+        out.flush();
+        sleeping = true;
+        /* Check again so that an entry published before sleeping is set is not missed */
+        if(sequences.get((int)head & mask) != head + 1){
+          LockSupport.parkNanos(100000000L);
+        }
+        sleeping = false;
+      }catch(IOException e){
+        /* Nothing else to report it to */
+        e.printStackTrace();
+        LockSupport.parkNanos(1000000000L);
+      }catch(RuntimeException e){
+        /* The stack trace of a logged throwable has failed, its slot has been freed already */
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Slot of ring
+   */
+  private static class Entry {
+
+    private Level level;
+    private String template;
+    private Object arg0;
+    private Object arg1;
+    private Object arg2;
+
+    /**
+     * Append formatted entry to line
+     * @return the throwable that follows the arguments used by template or null
+     */
+    Throwable format(StringBuilder line){
+      if(level == Level.DEBUG){
+        line.append("DEBUG > ");
+      }else if(level == Level.ERROR){
+        line.append("ERROR > ");
+      }
+      int used = -1;
+      int length = template.length();
+      for(int i = 0; i < length; i++){
+        char c = template.charAt(i);
+        if(c == '{' && i + 2 < length && template.charAt(i + 2) == '}'
+            && template.charAt(i + 1) >= '0' && template.charAt(i + 1) <= '2'){
+          int argument = template.charAt(i + 1) - '0';
+          line.append(argument(argument));
+          used = Math.max(used, argument);
+          i += 2;
+        }else{
+          line.append(c);
+        }
+      }
+      for(int i = used + 1; i < 3; i++){
+        if(argument(i) instanceof Throwable){
+          return (Throwable)argument(i);
+        }
+      }
+      return null;
+    }
+
+    private Object argument(int index){
+      return index == 0 ? arg0 : index == 1 ? arg1 : arg2;
+    }
+
+    void clear(){
+      template = null;
+      arg0 = arg1 = arg2 = null;
+    }
+  }
+}
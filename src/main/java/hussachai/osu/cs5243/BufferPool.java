@@ -0,0 +1,350 @@
+package hussachai.osu.cs5243;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.typesafe.config.Config;
+
+/**
+ * Pool of direct buffers holding the frames read from clients and the responses
+ * written to them, so serving a message doesn't allocate buffers once the pool
+ * is warm. Direct buffers are also what the channel writes from without copying
+ * them into a temporary direct buffer first.
+ *
+ * Buffers come in power-of-two size classes from {@link #MIN_SIZE} to maxPooledSize.
+ * Each class keeps a bounded number of free buffers; a released buffer that
+ * doesn't fit is dropped. A larger request gets a heap buffer which is not pooled.
+ *
+ * The pool knows every buffer it has handed out and whether it's in use.
+ * {@link #release(ByteBuffer)} ignores buffers that don't come from the pool,
+ * so the owner of a response can release it without knowing where it comes from.
+ * A buffer released twice is logged and ignored as well, in every mode, so it can
+ * never be handed to two owners at once. A duplicate or slice of a pooled buffer
+ * doesn't come from the pool.
+ *
+ * The pool only keeps a weak reference to the buffers in use. One that is garbage
+ * collected before it has been released is counted in buffers.leaked and, unless
+ * leak detection is off, logged. Leak detection also records where some (sample)
+ * or all buffers have been acquired, which is logged with the leak. Recording all
+ * of them is slow and only meant for debugging.
+ *
+ * This class is thread-safe.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class BufferPool {
+
+  /**
+   * Smallest size class
+   */
+  public static final int MIN_SIZE = 256;
+
+  /**
+   * One in this many buffers records where it has been acquired with sampling leak detection
+   */
+  public static final int SAMPLE_RATE = 128;
+
+  public enum LeakDetection { OFF, SAMPLE, ALL }
+
+  private final SizeClass[] classes;
+
+  private final int maxPooledSize;
+
+  private final LeakDetection leakDetection;
+
+  private final Metrics metrics;
+
+  private final AsyncLog log;
+
+  private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+
+  /**
+   * @param maxPooledSize the largest pooled buffer, rounded up to a power of two
+   * @param maxFreeBytes the bytes of free buffers kept by each size class
+   * @param leakDetection
+   * @param metrics
+   * @param log
+   */
+  public BufferPool(int maxPooledSize, long maxFreeBytes, LeakDetection leakDetection,
+      Metrics metrics, AsyncLog log){
+    this.maxPooledSize = sizeOf(classOf(Math.max(maxPooledSize, MIN_SIZE)));
+    this.leakDetection = leakDetection;
+    this.metrics = metrics;
+    this.log = log;
+    this.classes = new SizeClass[classOf(this.maxPooledSize) + 1];
+    for(int i = 0; i < classes.length; i++){
+      long buffers = Math.min(1024, Math.max(1, maxFreeBytes / sizeOf(i)));
+      classes[i] = new SizeClass((int)buffers);
+    }
+  }
+
+  /**
+   * Create buffer pool from server.buffers section of server configuration
+   * @param config
+   * @param metrics
+   * @param log
+   * @return
+   */
+  public static BufferPool fromConfig(Config config, Metrics metrics, AsyncLog log){
+    return new BufferPool(config.getBytes("server.buffers.maxPooledSize").intValue(),
+        config.getBytes("server.buffers.maxFreeBytes"),
+        LeakDetection.valueOf(config.getString("server.buffers.leakDetection").toUpperCase()),
+        metrics, log);
+  }
+
+  /**
+   * Get a cleared buffer with at least size bytes remaining.
+   * It must be given back with {@link #release(ByteBuffer)} once it's not used.
+   * @param size
+   * @return
+   */
+  public ByteBuffer acquire(int size){
+    if(size > maxPooledSize){
+      return ByteBuffer.allocate(size);
+    }
+    reportLeaks();
+    Throwable site = null;
+    if(leakDetection == LeakDetection.ALL || (leakDetection == LeakDetection.SAMPLE
+        && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0)){
+      site = new Throwable("Acquired here");
+    }
+    int index = classOf(size);
+    ByteBuffer buffer = classes[index].acquire(site);
+    if(buffer == null){
+      buffer = ByteBuffer.allocateDirect(sizeOf(index));
+      classes[index].add(new Slot(buffer, index, site, collected));
+      metrics.getBuffersAllocated().increment();
+    }
+    metrics.getBuffersOutstanding().increment();
+    return buffer;
+  }
+
+  /**
+   * Give buffer back to the pool. Buffers that don't come from the pool and
+   * buffers that have been released already are ignored.
+   * The buffer must not be used after it has been released.
+   * @param buffer the buffer or null
+   */
+  public void release(ByteBuffer buffer){
+    if(buffer == null || !buffer.isDirect() || buffer.capacity() > maxPooledSize
+        || buffer.capacity() != sizeOf(classOf(buffer.capacity()))){
+      return;
+    }
+    switch(classes[classOf(buffer.capacity())].release(buffer)){
+    case RELEASED:
+      metrics.getBuffersOutstanding().add(-1);
+      break;
+    case FREE:
+      log.error("Buffer of {0} bytes has been released twice", buffer.capacity(),
+          new IllegalStateException("Released here"));
+      break;
+    case UNKNOWN:
+      /* Not from the pool */
+      break;
+    }
+  }
+
+  /**
+   * Get a buffer with at least size bytes remaining holding the remaining bytes
+   * of the given one, which is released
+   * @param buffer the buffer in write mode
+   * @param size
+   * @return
+   */
+  public ByteBuffer grow(ByteBuffer buffer, int size){
+    if(buffer.capacity() >= size){
+      return buffer;
+    }
+    ByteBuffer larger = acquire(Math.max(size, buffer.capacity() * 2));
+    buffer.flip();
+    larger.put(buffer);
+    release(buffer);
+    return larger;
+  }
+
+  /**
+   * Log the buffers that have been garbage collected without being released
+   */
+  private void reportLeaks(){
+    Slot slot = null;
+    while((slot = (Slot)collected.poll()) != null){
+      Throwable site = classes[slot.sizeClass].remove(slot);
+      metrics.getBuffersLeaked().increment();
+      metrics.getBuffersOutstanding().add(-1);
+      if(leakDetection == LeakDetection.OFF){
+        continue;
+      }
+      if(site != null){
+        log.error("Buffer of {0} bytes has been garbage collected without being released",
+            sizeOf(slot.sizeClass), site);
+      }else{
+        log.error("Buffer of {0} bytes has been garbage collected without being released. "+
+            "Set leakDetection to all to see where it has been acquired", sizeOf(slot.sizeClass));
+      }
+    }
+  }
+
+  /**
+   * Index of the smallest size class holding size bytes
+   */
+  private static int classOf(int size){
+    if(size <= MIN_SIZE){
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+  }
+
+  private static int sizeOf(int index){
+    return MIN_SIZE << index;
+  }
+
+  private enum Release { RELEASED, FREE, UNKNOWN }
+
+  /**
+   * Every buffer of one size class: a stack of the free ones and a table of
+   * all of them by identity. Guarded by itself.
+   */
+  private static class SizeClass {
+
+    private final Slot[] free;
+
+    private int freeCount;
+
+    /* Chained by identity hash code of buffer */
+    private Slot[] table = new Slot[64];
+
+    private int size;
+
+    SizeClass(int maxFree){
+      this.free = new Slot[maxFree];
+    }
+
+    /**
+     * Take a free buffer
+     * @return the buffer or null when none is free
+     */
+    synchronized ByteBuffer acquire(Throwable site){
+      if(freeCount == 0){
+        return null;
+      }
+      Slot slot = free[--freeCount];
+      free[freeCount] = null;
+      ByteBuffer buffer = slot.buffer;
+      slot.buffer = null;
+      slot.site = site;
+      return buffer;
+    }
+
+    /**
+     * Add the slot of a new buffer which is in use
+     */
+    synchronized void add(Slot slot){
+      if(size >= table.length * 3 / 4){
+        resize();
+      }
+      int index = slot.hash & (table.length - 1);
+      slot.next = table[index];
+      table[index] = slot;
+      size++;
+    }
+
+    synchronized Release release(ByteBuffer buffer){
+      Slot slot = find(buffer);
+      if(slot == null){
+        return Release.UNKNOWN;
+      }
+      if(slot.buffer != null){
+        return Release.FREE;
+      }
+      buffer.clear();
+      slot.site = null;
+      if(freeCount < free.length){
+        /* Held strongly while it's free, so it's never reported as leaked */
+        slot.buffer = buffer;
+        free[freeCount++] = slot;
+      }else{
+        /* Dropped, it's garbage now */
+        unlink(slot);
+        slot.clear();
+      }
+      return Release.RELEASED;
+    }
+
+    /**
+     * Forget the slot of a garbage collected buffer
+     * @return where the buffer has been acquired or null when it's unknown
+     */
+    synchronized Throwable remove(Slot slot){
+      unlink(slot);
+      return slot.site;
+    }
+
+    private Slot find(ByteBuffer buffer){
+      Slot slot = table[System.identityHashCode(buffer) & (table.length - 1)];
+      while(slot != null && slot.get() != buffer){
+        slot = slot.next;
+      }
+      return slot;
+    }
+
+    private void unlink(Slot slot){
+      int index = slot.hash & (table.length - 1);
+      Slot previous = null;
+      for(Slot current = table[index]; current != null; current = current.next){
+        if(current == slot){
+          if(previous == null){
+            table[index] = current.next;
+          }else{
+            previous.next = current.next;
+          }
+          size--;
+          return;
+        }
+        previous = current;
+      }
+    }
+
+    private void resize(){
+      Slot[] old = table;
+      table = new Slot[old.length * 2];
+      for(Slot head: old){
+        Slot slot = head;
+        while(slot != null){
+          Slot next = slot.next;
+          int index = slot.hash & (table.length - 1);
+          slot.next = table[index];
+          table[index] = slot;
+          slot = next;
+        }
+      }
+    }
+  }
+
+  /**
+   * A buffer of the pool. The buffer is only referenced strongly while it's free.
+   */
+  private static class Slot extends WeakReference<ByteBuffer> {
+
+    private final int hash;
+
+    private final int sizeClass;
+
+    /* The buffer while it's free, null while it's in use */
+    private ByteBuffer buffer;
+
+    /* Where the buffer in use has been acquired, when it has been recorded */
+    private Throwable site;
+
+    private Slot next;
+
+    Slot(ByteBuffer buffer, int sizeClass, Throwable site, ReferenceQueue<ByteBuffer> queue){
+      super(buffer, queue);
+      this.hash = System.identityHashCode(buffer);
+      this.sizeClass = sizeClass;
+      this.site = site;
+    }
+  }
+}
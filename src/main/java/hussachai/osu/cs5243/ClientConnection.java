@@ -0,0 +1,302 @@
+package hussachai.osu.cs5243;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Client side of one authenticated connection.
+ * {@link #open(String, int, String, String, WireFormat)} connects with TLS, runs
+ * the mutual HMAC authentication and reads the greeting, so the connection is
+ * ready for requests. It's used by the interactive client as well as by the
+ * tools that drive the server programmatically.
+ *
+ * The connection is not thread-safe.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class ClientConnection implements Closeable {
+
+  /**
+   * TLS context shared by all clients of this JVM. Its session cache lets
+   * a reconnecting client resume the TLS session instead of a full handshake.
+   */
+  private static SSLContext sslContext;
+
+  /**
+   * Keys derived for the users of this JVM, so that reconnecting doesn't
+   * pay for PBKDF2 again
+   */
+  private static final KeyCache keyCache = new KeyCache(64, TimeUnit.HOURS.toMillis(1));
+
+  private final SSLSocket sslSocket;
+
+  private final OutputStream writer;
+
+  private final WireReader reader;
+
+  private SecretKey secretKey;
+
+  private SecuritySession session;
+
+  private WireFormat format = WireFormat.TEXT;
+
+  private String greeting;
+
+  private boolean resumed;
+
+  private long handshakeMillis;
+
+  private ClientConnection(SSLSocket sslSocket) throws IOException{
+    this.sslSocket = sslSocket;
+    this.writer = new BufferedOutputStream(sslSocket.getOutputStream());
+    this.reader = new WireReader(sslSocket.getInputStream(), WordCountClient.MAX_MESSAGE_LENGTH);
+  }
+
+  /**
+   * TLS context of clients. By default it trusts the server certificate in client directory.
+   * @return
+   * @throws Exception
+   */
+  public static synchronized SSLContext getSslContext() throws Exception{
+    if(sslContext == null){
+      sslContext = TlsSupport.clientContext("client/wordcount.pub", "pass123",
+          1000, TimeUnit.HOURS.toSeconds(24));
+    }
+    return sslContext;
+  }
+
+  /**
+   * Use another TLS context, e.g. one trusting a store outside of client directory
+   * @param context
+   */
+  public static synchronized void setSslContext(SSLContext context){
+    sslContext = context;
+  }
+
+  /**
+   * Derived keys shared by all clients of this JVM
+   * @return
+   */
+  public static KeyCache getKeyCache(){
+    return keyCache;
+  }
+
+  /**
+   * Connect and authenticate asking for AES-GCM
+   * @param host
+   * @param port
+   * @param username
+   * @param password
+   * @param wanted the wire format asked for. The server may still answer in text.
+   * @return the authenticated connection whose greeting has been read
+   * @throws Exception
+   */
+  public static ClientConnection open(String host, int port, String username,
+      String password, WireFormat wanted) throws Exception{
+    return open(host, port, username, password, wanted, true);
+  }
+
+  /**
+   * Connect and authenticate
+   * @param host
+   * @param port
+   * @param username
+   * @param password
+   * @param wanted the wire format asked for. The server may still answer in text.
+   * @param gcm whether to ask for AES-GCM. The server may still use AES-CBC with HMAC.
+   * @return the authenticated connection whose greeting has been read
+   * @throws Exception
+   */
+  public static ClientConnection open(String host, int port, String username,
+      String password, WireFormat wanted, boolean gcm) throws Exception{
+    /* Open the SSL connection by creating SSL Socket */
+    SSLSocket sslSocket = (SSLSocket) getSslContext().getSocketFactory().createSocket(host, port);
+    ClientConnection connection = null;
+    try{
+      long startMillis = System.currentTimeMillis();
+      long start = System.nanoTime();
+      sslSocket.startHandshake();
+      connection = new ClientConnection(sslSocket);
+      connection.handshakeMillis = (System.nanoTime() - start) / 1000000;
+      connection.resumed = TlsSupport.isResumed(sslSocket.getSession(), startMillis);
+      connection.authenticate(username, password, wanted, gcm);
+      return connection;
+    }catch(Exception e){
+      sslSocket.close();
+      throw e;
+    }
+  }
+
+  private void authenticate(String username, String password, WireFormat wanted,
+      boolean gcm) throws Exception{
+    /* Begin Mutual Authentication ============== */
+    write(WireFormat.line(username));
+    flush();
+    secretKey = keyCache.get(username, password);
+    session = SecuritySession.create(secretKey);
+    /* Client reads server's nonce */
+    String serverNonce = reader.readLine();
+    if(serverNonce == null){
+      throw new RuntimeException("Connection closed by server");
+    }
+    serverNonce = serverNonce.trim();
+    String serverNonceMAC = session.generateHMAC(serverNonce);
+    /* Generate client nonce */
+    String clientNonce = session.generateSessionID();
+    /* Client returns HMAC(serverNonce) with clientNonce to server
+     * and asks for binary format and GCM if they're preferred */
+    write(WireFormat.line(serverNonceMAC+"|"+clientNonce+options(wanted, gcm)));
+    flush();
+    /* Client reads MAC(clientNonce) and the options accepted by server */
+    String clientNonceMAC = reader.readLine();
+    if(clientNonceMAC == null){
+      throw new RuntimeException("HMAC verification failed");
+    }
+    int sep = clientNonceMAC.indexOf('|');
+    List<String> accepted = Collections.emptyList();
+    if(sep != -1){
+      accepted = Arrays.asList(clientNonceMAC.substring(sep + 1).trim().split(","));
+      clientNonceMAC = clientNonceMAC.substring(0, sep);
+    }
+    if(!clientNonceMAC.trim().equals(session.generateHMAC(clientNonce))){
+      throw new RuntimeException("HMAC verification failed");
+    }
+    if(accepted.contains(WireFormat.BINARY.getName())){
+      format = WireFormat.BINARY;
+    }
+    if(accepted.contains(SecuritySession.GCM_OPTION)){
+      session.enableGcm(serverNonce, clientNonce);
+    }
+    /* End Mutual Authentication ============== */
+    greeting = receive();
+  }
+
+  /**
+   * Options of challenge line asking for the given format and cipher
+   * @param wanted
+   * @param gcm
+   * @return the options with their separator or empty string
+   */
+  static String options(WireFormat wanted, boolean gcm){
+    StringBuilder options = new StringBuilder();
+    if(wanted != WireFormat.TEXT){
+      options.append(wanted.getName());
+    }
+    if(gcm){
+      options.append(options.length() == 0 ? "" : ",").append(SecuritySession.GCM_OPTION);
+    }
+    return options.length() == 0 ? "" : "|"+options;
+  }
+
+  /**
+   * Send request and wait for its reply
+   * @param request a sentence or a command of {@link Request}
+   * @return the decrypted reply
+   * @throws Exception
+   */
+  public String request(String request) throws Exception{
+    send(request);
+    flush();
+    return receive();
+  }
+
+  /**
+   * Encrypt and buffer request without flushing it
+   * @param request
+   * @throws Exception
+   */
+  public void send(String request) throws Exception{
+    write(format.encode(session.encrypt(request)));
+  }
+
+  public void flush() throws IOException{
+    writer.flush();
+  }
+
+  /**
+   * Wait for the next reply
+   * @return the decrypted reply
+   * @throws Exception
+   */
+  public String receive() throws Exception{
+    SecureMessage secureMessage = reader.readMessage(format);
+    if(secureMessage == null){
+      throw new RuntimeException("Connection closed by server");
+    }
+    return session.decrypt(secureMessage);
+  }
+
+  /**
+   * Greeting sent by server after authentication
+   * @return
+   */
+  public String getGreeting(){
+    return greeting;
+  }
+
+  /**
+   * Format of messages negotiated with server
+   * @return
+   */
+  public WireFormat getFormat(){
+    return format;
+  }
+
+  /**
+   * Key of this user
+   * @return
+   */
+  public SecretKey getSecretKey(){
+    return secretKey;
+  }
+
+  /**
+   * Security session of this connection. Use {@link SecuritySession#newSession()}
+   * for a second thread.
+   * @return
+   */
+  public SecuritySession getSession(){
+    return session;
+  }
+
+  public OutputStream getWriter(){
+    return writer;
+  }
+
+  public WireReader getReader(){
+    return reader;
+  }
+
+  /**
+   * Whether TLS session was resumed
+   * @return
+   */
+  public boolean isResumed(){
+    return resumed;
+  }
+
+  public long getHandshakeMillis(){
+    return handshakeMillis;
+  }
+
+  @Override
+  public void close() throws IOException{
+    sslSocket.close();
+  }
+
+  private void write(ByteBuffer bytes) throws IOException{
+    writer.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+  }
+}
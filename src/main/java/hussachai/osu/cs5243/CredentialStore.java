@@ -0,0 +1,268 @@
+package hussachai.osu.cs5243;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValue;
+
+/**
+ * Users who can log in, with their derived keys.
+ * The users section of the credential file is loaded once into an immutable
+ * hash map, so a login is a single map lookup instead of path queries on the
+ * configuration tree, whatever the number of users is.
+ *
+ * The PBKDF2 key of each user is derived once and kept in the user's entry.
+ * With preDerive the keys of all users are derived in the background as soon
+ * as they are loaded; otherwise the first login of the user derives it.
+ *
+ * When watch is on, the file is watched with WatchService and reloaded when it
+ * changes. The new map replaces the old one atomically, so logins never see a
+ * half loaded user list. Users whose password hasn't changed keep their entry
+ * and its derived key. A file that cannot be parsed is reported and the old
+ * users are kept.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class CredentialStore {
+
+  private final File file;
+
+  private final AsyncLog log;
+
+  /**
+   * Latency of key derivations or null
+   */
+  private final LatencyHistogram derivations;
+
+  /**
+   * Threads deriving keys in background or null when keys are derived at login
+   */
+  private final ExecutorService deriver;
+
+  private volatile Map<String, Entry> users = Collections.emptyMap();
+
+  /**
+   * @param file the file holding the users section
+   * @param log
+   * @param derivations the latency of key derivations or null
+   * @param deriver the threads deriving keys as soon as users are loaded or null
+   * to derive them at first login
+   */
+  public CredentialStore(File file, AsyncLog log, LatencyHistogram derivations,
+      ExecutorService deriver){
+    this.file = file;
+    this.log = log;
+    this.derivations = derivations;
+    this.deriver = deriver;
+  }
+
+  /**
+   * Create and load credential store as configured in credentials section
+   * @param config
+   * @param log
+   * @param metrics
+   * @return
+   * @throws Exception
+   */
+  public static CredentialStore fromConfig(Config config, AsyncLog log,
+      Metrics metrics) throws Exception{
+    ExecutorService deriver = null;
+    if(config.getBoolean("credentials.preDerive")){
+      int threads = config.getInt("credentials.parallelism");
+      if(threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+      deriver = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+        @Override
+        public Thread newThread(Runnable runnable){
+          Thread thread = new Thread(runnable, "key-deriver");
+          thread.setDaemon(true);
+          /* Deriving ahead must not slow down serving clients */
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+    }
+    CredentialStore store = new CredentialStore(new File(config.getString("credentials.file")),
+        log, metrics.getPbkdf2(), deriver);
+    store.load();
+    if(config.getBoolean("credentials.watch")){
+      store.startWatching();
+    }
+    return store;
+  }
+
+  /**
+   * Find user
+   * @param username
+   * @return the entry of user or null when the user doesn't exist
+   */
+  public Entry get(String username){
+    return users.get(username);
+  }
+
+  public int size(){
+    return users.size();
+  }
+
+  /**
+   * Load users from file and replace the current ones
+   * @throws Exception when the file cannot be read. The current users are kept.
+   */
+  public void load() throws Exception{
+    long start = System.nanoTime();
+    Config config = ConfigFactory.parseFile(file);
+    if(!config.hasPath("users")){
+      throw new IllegalArgumentException("No users section in "+file);
+    }
+    Map<String, Entry> current = users;
+    Map<String, Entry> loaded = new HashMap<>();
+    final List<Entry> derive = new ArrayList<>();
+    int changed = 0;
+    for(Map.Entry<String, ConfigValue> user: config.getConfig("users").root().entrySet()){
+      String username = user.getKey();
+      String password = String.valueOf(user.getValue().unwrapped());
+      Entry entry = current.get(username);
+      if(entry == null || !entry.password.equals(password)){
+        entry = new Entry(username, password);
+        derive.add(entry);
+        changed++;
+      }
+      loaded.put(username, entry);
+    }
+    users = Collections.unmodifiableMap(loaded);
+    log.info("Loaded {0} users ({1} new or changed) in {2} ms", loaded.size(), changed,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    if(deriver != null){
+      for(final Entry entry: derive){
+        deriver.execute(new Runnable(){
+          @Override
+          public void run(){
+            try{
+              entry.getKey();
+            }catch(GeneralSecurityException e){
+              log.error("Key of user: {0} cannot be derived", entry.username, e);
+            }
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Reload users whenever the file changes, on a daemon thread
+   * @throws Exception
+   */
+  public void startWatching() throws Exception{
+    final Path path = file.toPath().toAbsolutePath();
+    final WatchService watcher = FileSystems.getDefault().newWatchService();
+    /* Directories are watched, not files. Editors often replace the file, so creation counts too. */
+    path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_MODIFY,
+        StandardWatchEventKinds.ENTRY_CREATE);
+    Thread thread = new Thread("credentials-watcher"){
+      @Override
+      public void run(){
+        while(true){
+          try{
+            WatchKey key = watcher.take();
+            boolean changed = false;
+            for(WatchEvent<?> event: key.pollEvents()){
+              Object context = event.context();
+              if(context == null || path.getFileName().equals(context)){
+                changed = true;
+              }
+            }
+            key.reset();
+            if(changed){
+              /* Let the writer finish, then read the file once for a burst of events */
+              Thread.sleep(200);
+              WatchKey more = null;
+              while((more = watcher.poll()) != null){
+                more.pollEvents();
+                more.reset();
+              }
+              load();
+            }
+          }catch(InterruptedException e){
+            return;
+          }catch(Exception e){
+            log.error("Users cannot be reloaded from {0}: {1}", file, e);
+          }
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * A user and the key derived from the password
+   */
+  public class Entry {
+
+    private final String username;
+
+    private final String password;
+
+    private volatile SecretKey secretKey;
+
+    Entry(String username, String password){
+      this.username = username;
+      this.password = password;
+    }
+
+    public String getUsername(){
+      return username;
+    }
+
+    /**
+     * Key derived from password with default iteration and default key length.
+     * It's derived by the first caller, other callers wait for it.
+     * @return
+     * @throws GeneralSecurityException
+     */
+    public SecretKey getKey() throws GeneralSecurityException{
+      SecretKey key = secretKey;
+      if(key != null) return key;
+      synchronized(this){
+        if(secretKey == null){
+          long start = System.nanoTime();
+          SecretKey derived = SecuritySession.deriveKey(password,
+              SecuritySession.DEFAULT_ITERATION, SecuritySession.DEFAULT_KEY_LENGTH);
+          if(derivations != null){
+            derivations.recordSince(start);
+          }
+          secretKey = new SecretKeySpec(derived.getEncoded(), derived.getAlgorithm());
+        }
+        return secretKey;
+      }
+    }
+
+    /**
+     * Whether the key has been derived already
+     * @return
+     */
+    public boolean isDerived(){
+      return secretKey != null;
+    }
+  }
+}
@@ -0,0 +1,353 @@
+package hussachai.osu.cs5243;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Pre-keyed cipher and MAC objects of a single security session.
+ * Provider lookup and key setup are done once when the context is created
+ * instead of once per message. The context also keeps a scratch buffer for
+ * the UTF-8 bytes of plain text, so the same bytes feed both cipher and MAC.
+ *
+ * After {@link #enableGcm(byte[])} messages are encrypted with AES-GCM instead,
+ * which encrypts and authenticates in one pass, so the MAC is not used for them.
+ *
+ * This class is not thread-safe. It must be confined to the thread that
+ * serves the connection, which is the case for both client and server.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+class CryptoContext {
+
+  public static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+
+  public static final String GCM_ALGORITHM = "AES/GCM/NoPadding";
+
+  public static final String HMAC_ALGORITHM = "HmacSHA256";
+
+  /**
+   * AES block size which is also the size of IV in CBC mode
+   */
+  public static final int IV_LENGTH = 16;
+
+  /**
+   * Size of IV in GCM mode recommended by NIST SP 800-38D
+   */
+  public static final int GCM_IV_LENGTH = 12;
+
+  /**
+   * Size of GCM authentication tag in bytes, appended to cipher bytes
+   */
+  public static final int GCM_TAG_LENGTH = 16;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private SecretKeySpec aesKey;
+
+  private Cipher encryptCipher;
+
+  private Cipher decryptCipher;
+
+  private boolean gcm;
+
+  private final Mac mac;
+
+  private final SecureRandom random;
+
+  private final CharsetEncoder encoder = UTF8.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+  /**
+   * Scratch buffer holding plain text bytes of the last operation
+   */
+  private byte[] scratch = new byte[256];
+
+  private ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+
+  /* IV of the last message, and its MAC */
+  private final byte[] ivScratch = new byte[IV_LENGTH];
+  private final byte[] gcmIvScratch = new byte[GCM_IV_LENGTH];
+  private byte[] macScratch;
+
+  /**
+   * Cipher bytes of the last message encrypted into a direct buffer
+   */
+  private byte[] cipherScratch;
+
+  CryptoContext(byte[] keyBytes, SecureRandom random) throws GeneralSecurityException{
+    this.random = random;
+    this.aesKey = new SecretKeySpec(keyBytes, "AES");
+    this.encryptCipher = Cipher.getInstance(CIPHER_ALGORITHM);
+    this.decryptCipher = Cipher.getInstance(CIPHER_ALGORITHM);
+    this.mac = Mac.getInstance(HMAC_ALGORITHM);
+    this.mac.init(new SecretKeySpec(keyBytes, HMAC_ALGORITHM));
+  }
+
+  /**
+   * Encrypt the following messages with AES-GCM
+   * @param keyBytes the AES key of GCM, which must not be used with CBC
+   * @throws GeneralSecurityException
+   */
+  public void enableGcm(byte[] keyBytes) throws GeneralSecurityException{
+    this.aesKey = new SecretKeySpec(keyBytes, "AES");
+    this.encryptCipher = Cipher.getInstance(GCM_ALGORITHM);
+    this.decryptCipher = Cipher.getInstance(GCM_ALGORITHM);
+    this.gcm = true;
+  }
+
+  /**
+   * Whether cipher bytes carry their own authentication tag (GCM)
+   * @return
+   */
+  public boolean isGcm(){
+    return gcm;
+  }
+
+  /**
+   * Generate new random IV
+   * @return
+   */
+  public byte[] nextIv(){
+    byte[] ivBytes = new byte[gcm ? GCM_IV_LENGTH : IV_LENGTH];
+    random.nextBytes(ivBytes);
+    return ivBytes;
+  }
+
+  /**
+   * Generate new random IV into an array which is reused by the next call
+   * @return
+   */
+  public byte[] nextIvScratch(){
+    byte[] ivBytes = gcm ? gcmIvScratch : ivScratch;
+    random.nextBytes(ivBytes);
+    return ivBytes;
+  }
+
+  /**
+   * Encode string to UTF-8 into the scratch buffer
+   * @param message
+   * @return number of bytes written to scratch buffer
+   */
+  public int encode(String message){
+    int maxBytes = (int)(message.length() * encoder.maxBytesPerChar());
+    ensureScratch(maxBytes);
+    ByteBuffer out = scratchBuffer;
+    out.clear();
+    encoder.reset();
+    encoder.encode(CharBuffer.wrap(message), out, true);
+    encoder.flush(out);
+    return out.position();
+  }
+
+  /**
+   * Plain text bytes written by {@link #encode(String)} or {@link #decrypt(byte[], byte[])}
+   * @return
+   */
+  public byte[] scratch(){
+    return scratch;
+  }
+
+  /**
+   * Encrypt the first length bytes of scratch buffer
+   * @param ivBytes
+   * @param length
+   * @return
+   * @throws GeneralSecurityException
+   */
+  public byte[] encryptScratch(byte[] ivBytes, int length) throws GeneralSecurityException{
+    /* Cipher keeps the expanded key when it's re-initialized with the same key */
+    encryptCipher.init(Cipher.ENCRYPT_MODE, aesKey, parameters(ivBytes, 0, ivBytes.length));
+    return encryptCipher.doFinal(scratch, 0, length);
+  }
+
+  /**
+   * Encrypt the first length bytes of scratch buffer into out
+   * @param ivBytes
+   * @param length
+   * @param out has at least {@link #cipherLength(int)} bytes remaining
+   * @return the number of cipher bytes written
+   * @throws GeneralSecurityException
+   */
+  public int encryptScratch(byte[] ivBytes, int length, ByteBuffer out) throws GeneralSecurityException{
+    encryptCipher.init(Cipher.ENCRYPT_MODE, aesKey, parameters(ivBytes, 0, ivBytes.length));
+    if(out.hasArray()){
+      int written = encryptCipher.doFinal(scratch, 0, length, out.array(),
+          out.arrayOffset() + out.position());
+      out.position(out.position() + written);
+      return written;
+    }
+    /* The cipher would allocate a temporary array for a direct buffer on every call */
+    int cipherLength = cipherLength(length);
+    if(cipherScratch == null || cipherScratch.length < cipherLength){
+      cipherScratch = new byte[Math.max(cipherLength, 256)];
+    }
+    int written = encryptCipher.doFinal(scratch, 0, length, cipherScratch, 0);
+    out.put(cipherScratch, 0, written);
+    return written;
+  }
+
+  /**
+   * Number of cipher bytes of length plain text bytes
+   * @param length
+   * @return
+   */
+  public int cipherLength(int length){
+    /* PKCS5 always pads, by a whole block when length is a multiple of it */
+    return gcm ? length + GCM_TAG_LENGTH : (length / IV_LENGTH + 1) * IV_LENGTH;
+  }
+
+  /**
+   * Decrypt cipher bytes into scratch buffer.
+   * In GCM mode the tag is verified before any plain text is written, so a
+   * tampered message fails with AEADBadTagException and leaves nothing behind.
+   * @param ivBytes
+   * @param cipherBytes
+   * @return number of plain text bytes in scratch buffer
+   * @throws GeneralSecurityException
+   */
+  public int decrypt(byte[] ivBytes, byte[] cipherBytes) throws GeneralSecurityException{
+    decryptCipher.init(Cipher.DECRYPT_MODE, aesKey, parameters(ivBytes, 0, ivBytes.length));
+    ensureScratch(decryptCipher.getOutputSize(cipherBytes.length));
+    return decryptCipher.doFinal(cipherBytes, 0, cipherBytes.length, scratch, 0);
+  }
+
+  /**
+   * Decrypt cipher bytes held by frame into scratch buffer without copying them out
+   * of it. The position and limit of frame are left as they are.
+   * @param frame
+   * @param ivOffset absolute index of IV
+   * @param ivLength
+   * @param cipherOffset absolute index of cipher bytes
+   * @param cipherLength
+   * @return number of plain text bytes in scratch buffer
+   * @throws GeneralSecurityException
+   */
+  public int decrypt(ByteBuffer frame, int ivOffset, int ivLength, int cipherOffset,
+      int cipherLength) throws GeneralSecurityException{
+    if(frame.hasArray()){
+      byte[] array = frame.array();
+      decryptCipher.init(Cipher.DECRYPT_MODE, aesKey,
+          parameters(array, frame.arrayOffset() + ivOffset, ivLength));
+      ensureScratch(decryptCipher.getOutputSize(cipherLength));
+      return decryptCipher.doFinal(array, frame.arrayOffset() + cipherOffset, cipherLength,
+          scratch, 0);
+    }
+    if(ivLength > ivScratch.length){
+      throw new InvalidAlgorithmParameterException("Wrong IV length");
+    }
+    for(int i = 0; i < ivLength; i++){
+      ivScratch[i] = frame.get(ivOffset + i);
+    }
+    decryptCipher.init(Cipher.DECRYPT_MODE, aesKey, parameters(ivScratch, 0, ivLength));
+    ensureScratch(decryptCipher.getOutputSize(cipherLength));
+    int position = frame.position();
+    int limit = frame.limit();
+    try{
+      frame.limit(cipherOffset + cipherLength).position(cipherOffset);
+      scratchBuffer.clear();
+      return decryptCipher.doFinal(frame, scratchBuffer);
+    }finally{
+      frame.limit(limit).position(position);
+    }
+  }
+
+  /**
+   * Compute MAC of the first length bytes of scratch buffer
+   * @param length
+   * @return
+   */
+  public byte[] macScratch(int length){
+    mac.update(scratch, 0, length);
+    return mac.doFinal();
+  }
+
+  /**
+   * Compute MAC of the first length bytes of scratch buffer into out
+   * @param length
+   * @param out
+   * @throws GeneralSecurityException
+   */
+  public void macScratch(int length, ByteBuffer out) throws GeneralSecurityException{
+    mac.update(scratch, 0, length);
+    byte[] computed = macScratch();
+    mac.doFinal(computed, 0);
+    out.put(computed);
+  }
+
+  /**
+   * Whether the MAC held by frame is the MAC of the first length bytes of scratch buffer.
+   * The comparison takes the same time wherever the bytes differ.
+   * @param length
+   * @param frame
+   * @param macOffset absolute index of MAC
+   * @param macLength
+   * @return
+   * @throws GeneralSecurityException
+   */
+  public boolean verifyMac(int length, ByteBuffer frame, int macOffset, int macLength)
+      throws GeneralSecurityException{
+    mac.update(scratch, 0, length);
+    byte[] computed = macScratch();
+    mac.doFinal(computed, 0);
+    if(macLength != computed.length){
+      return false;
+    }
+    int difference = 0;
+    for(int i = 0; i < computed.length; i++){
+      difference |= computed[i] ^ frame.get(macOffset + i);
+    }
+    return difference == 0;
+  }
+
+  /**
+   * Number of MAC bytes
+   * @return
+   */
+  public int getMacLength(){
+    return mac.getMacLength();
+  }
+
+  private byte[] macScratch(){
+    if(macScratch == null){
+      macScratch = new byte[mac.getMacLength()];
+    }
+    return macScratch;
+  }
+
+  /**
+   * Decode the first length bytes of scratch buffer to string.
+   * Malformed bytes are replaced by U+FFFD.
+   * @param length
+   * @return
+   */
+  public String decodeScratch(int length){
+    return new String(scratch, 0, length, UTF8);
+  }
+
+  private AlgorithmParameterSpec parameters(byte[] ivBytes, int offset, int length){
+    return gcm ? new GCMParameterSpec(GCM_TAG_LENGTH * 8, ivBytes, offset, length)
+        : new IvParameterSpec(ivBytes, offset, length);
+  }
+
+  private void ensureScratch(int size){
+    if(scratch.length < size){
+      scratch = new byte[Math.max(size, scratch.length * 2)];
+      scratchBuffer = ByteBuffer.wrap(scratch);
+    }
+  }
+}
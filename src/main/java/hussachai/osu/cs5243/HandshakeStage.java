@@ -0,0 +1,260 @@
+package hussachai.osu.cs5243;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.typesafe.config.Config;
+
+/**
+ * The stage where the CPU work of authenticating new connections is done:
+ * the TLS handshake tasks of non-blocking connections, and the key lookup
+ * (or derivation) and nonce HMACs of blocking ones. It has its own threads,
+ * apart from the ones serving authenticated sessions, so a burst of logins only
+ * takes as much CPU as these threads can use and established sessions keep
+ * their latency.
+ *
+ * These threads never wait for clients. A blocking connection reads its login on
+ * its own thread and only waits for this stage while its work is computed
+ * (see {@link #call(String, Callable)}), so idle or slow clients can't hold the
+ * handshake threads and keep the others from logging in.
+ *
+ * Waiting handshakes are bounded. When the queue is full a new connection is
+ * rejected at once instead of waiting for a handshake its client would give up on;
+ * the same happens to a handshake that has waited longer than maxWait. Handshakes
+ * of addresses with fewer handshakes waiting go first, so a client opening many
+ * connections at once can't hold back the others.
+ *
+ * A client has timeout to log in from the moment its handshake starts, however
+ * slowly it sends. The blocking engines close the socket of a client that misses
+ * this deadline (see {@link #deadline(Runnable)}), which frees its thread.
+ *
+ * The queue depth (handshake.queued), the waiting time (handshake.wait) and the
+ * rejections (handshake.rejected) are recorded in {@link Metrics}.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class HandshakeStage {
+
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * Runs the actions of missed login deadlines
+   */
+  private final ScheduledExecutorService deadlines;
+
+  private final int queueSize;
+
+  private final long maxWaitNanos;
+
+  private final long timeoutMillis;
+
+  private final Metrics metrics;
+
+  private final AsyncLog log;
+
+  /**
+   * Number of waiting handshakes of each address
+   */
+  private final ConcurrentMap<String, AtomicInteger> waiting = new ConcurrentHashMap<>();
+
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * @param threads the number of handshake threads, 0 for the number of processors
+   * @param queueSize the maximum number of waiting handshakes
+   * @param maxWaitMillis how long a handshake can wait before it's rejected
+   * @param timeoutMillis how long a client can take to complete the handshake
+   * @param metrics
+   * @param log
+   */
+  public HandshakeStage(int threads, int queueSize, long maxWaitMillis, long timeoutMillis,
+      Metrics metrics, AsyncLog log){
+    if(threads <= 0){
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    this.queueSize = queueSize;
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    this.timeoutMillis = timeoutMillis;
+    this.metrics = metrics;
+    this.log = log;
+    final AtomicInteger count = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new PriorityBlockingQueue<Runnable>(), new ThreadFactory(){
+          @Override
+          public Thread newThread(Runnable runnable){
+            Thread thread = new Thread(runnable, "handshake-"+count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    this.deadlines = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+      @Override
+      public Thread newThread(Runnable runnable){
+        Thread thread = new Thread(runnable, "handshake-deadline");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Create handshake stage from server.handshake section of server configuration
+   * @param config
+   * @param metrics
+   * @param log
+   * @return
+   */
+  public static HandshakeStage fromConfig(Config config, Metrics metrics, AsyncLog log){
+    return new HandshakeStage(config.getInt("server.handshake.threads"),
+        config.getInt("server.handshake.queueSize"),
+        config.getDuration("server.handshake.maxWait", TimeUnit.MILLISECONDS),
+        config.getDuration("server.handshake.timeout", TimeUnit.MILLISECONDS),
+        metrics, log);
+  }
+
+  /**
+   * Queue handshake work of connection
+   * @param address the address of client
+   * @param work the handshake work
+   * @param rejected run when the work is rejected, at once when the queue is full
+   * or on a handshake thread when the work has waited too long
+   * @return false when the queue is full and the work has been rejected
+   */
+  public boolean submit(String address, Runnable work, Runnable rejected){
+    if(executor.getQueue().size() >= queueSize){
+      reject(address, rejected, "queue is full");
+      return false;
+    }
+    AtomicInteger pending = waiting.get(address);
+    if(pending == null){
+      AtomicInteger created = new AtomicInteger();
+      pending = waiting.putIfAbsent(address, created);
+      if(pending == null) pending = created;
+    }
+    int rank = pending.getAndIncrement();
+    metrics.getHandshakeQueued().increment();
+    executor.execute(new Task(address, rank, pending, work, rejected));
+    return true;
+  }
+
+  /**
+   * Run login work of connection on this stage and wait for it on the calling
+   * thread, which must be allowed to block
+   * @param address the address of client
+   * @param work
+   * @return the result of work
+   * @throws RejectedExecutionException when the work has been rejected
+   * @throws Exception thrown by work
+   */
+  public <T> T call(String address, Callable<T> work) throws Exception{
+    final FutureTask<T> task = new FutureTask<>(work);
+    submit(address, task, new Runnable(){
+      @Override
+      public void run(){
+        task.cancel(false);
+      }
+    });
+    try{
+      return task.get();
+    }catch(CancellationException e){
+      throw new RejectedExecutionException("Login has been rejected by handshake stage");
+    }catch(ExecutionException e){
+      Throwable cause = e.getCause();
+      if(cause instanceof Exception) throw (Exception)cause;
+      throw (Error)cause;
+    }
+  }
+
+  /**
+   * Run expired when a client starting its handshake now hasn't logged in within
+   * the timeout. The action must make the thread reading the login give up, e.g.
+   * by closing the socket it reads from, as a read timeout doesn't stop a client
+   * sending one byte at a time.
+   * @param expired
+   * @return the deadline, which must be cancelled once the client has logged in
+   */
+  public ScheduledFuture<?> deadline(Runnable expired){
+    return deadlines.schedule(expired, timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * How long a client can take to complete the handshake
+   * @return
+   */
+  public long getTimeoutMillis(){
+    return timeoutMillis;
+  }
+
+  /**
+   * Number of handshakes waiting for a thread
+   * @return
+   */
+  public int getQueueDepth(){
+    return executor.getQueue().size();
+  }
+
+  private void reject(String address, Runnable rejected, String reason){
+    metrics.getHandshakeRejected().increment();
+    log.info("Handshake of {0} has been rejected: {1}", address, reason);
+    rejected.run();
+  }
+
+  /**
+   * Handshake work ordered by the number of handshakes its address had waiting
+   * when it was queued, then by the order of arrival
+   */
+  private class Task implements Runnable, Comparable<Task> {
+
+    private final String address;
+    private final int rank;
+    private final long order = sequence.getAndIncrement();
+    private final long queued = System.nanoTime();
+    private final AtomicInteger pending;
+    private final Runnable work;
+    private final Runnable rejected;
+
+    Task(String address, int rank, AtomicInteger pending, Runnable work, Runnable rejected){
+      this.address = address;
+      this.rank = rank;
+      this.pending = pending;
+      this.work = work;
+      this.rejected = rejected;
+    }
+
+    @Override
+    public void run(){
+      metrics.getHandshakeQueued().add(-1);
+      if(pending.decrementAndGet() == 0){
+        waiting.remove(address, pending);
+      }
+      long wait = System.nanoTime() - queued;
+      metrics.getHandshakeWait().record(wait);
+      if(wait > maxWaitNanos){
+        reject(address, rejected, "waited too long");
+        return;
+      }
+      work.run();
+    }
+
+    @Override
+    public int compareTo(Task other){
+      if(rank != other.rank) return rank < other.rank ? -1 : 1;
+      return order < other.order ? -1 : (order == other.order ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package hussachai.osu.cs5243;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Cache of PBKDF2 derived keys used by clients.
+ * The key derivation is intentionally slow (65536 iterations by default),
+ * so deriving it for every connection caps how fast a client can reconnect.
+ * The derived key is cached by (user, iteration count, key length) and evicted
+ * in LRU order when the cache is full or when the entry is older than TTL.
+ * The server keeps the keys of its users in {@link CredentialStore} instead.
+ *
+ * Each entry remembers the salt of the password it was derived from. When the
+ * password of a user changes, the salt changes too and the stale
+ * entry is dropped on the next lookup.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class KeyCache {
+
+  /**
+   * Maximum number of keys kept in cache
+   */
+  private final int maxSize;
+
+  /**
+   * Time to live of each entry in milliseconds
+   */
+  private final long ttlMillis;
+
+  private final Map<Key, Entry> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Latency of key derivations or null
+   */
+  private volatile LatencyHistogram derivations;
+
+  public KeyCache(final int maxSize, long ttlMillis){
+    if(maxSize < 1) throw new IllegalArgumentException("maxSize must be positive");
+    this.maxSize = maxSize;
+    this.ttlMillis = ttlMillis;
+    /* Access ordered map gives us the LRU eviction */
+    this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true){
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest){
+        if(size() > KeyCache.this.maxSize){
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Get derived key of user using default iteration and default key length
+   * @param username
+   * @param password
+   * @return
+   * @throws GeneralSecurityException
+   */
+  public SecretKey get(String username, String password) throws GeneralSecurityException{
+    return get(username, password, SecuritySession.DEFAULT_ITERATION,
+        SecuritySession.DEFAULT_KEY_LENGTH);
+  }
+
+  /**
+   * Get derived key of user. The key will be derived and put in cache
+   * when it's not in cache, expired or derived from the old password.
+   * @param username
+   * @param password
+   * @param iterationCount
+   * @param keyLength
+   * @return
+   * @throws GeneralSecurityException
+   */
+  public SecretKey get(String username, String password,
+      int iterationCount, int keyLength) throws GeneralSecurityException{
+
+    Key key = new Key(username, iterationCount, keyLength);
+    byte[] salt = SecuritySession.salt(password, iterationCount, keyLength);
+    long now = System.currentTimeMillis();
+    synchronized(entries){
+      Entry entry = entries.get(key);
+      if(entry != null){
+        if(now - entry.created <= ttlMillis && MessageDigest.isEqual(entry.salt, salt)){
+          hits.incrementAndGet();
+          return entry.secretKey;
+        }
+        entries.remove(key);
+        evictions.incrementAndGet();
+      }
+    }
+    misses.incrementAndGet();
+    /* Derive outside of the lock so that a slow derivation doesn't block other users */
+    long start = System.nanoTime();
+    SecretKey derived = SecuritySession.deriveKey(password, iterationCount, keyLength);
+    LatencyHistogram derivations = this.derivations;
+    if(derivations != null){
+      derivations.recordSince(start);
+    }
+    SecretKey secretKey = new SecretKeySpec(derived.getEncoded(), derived.getAlgorithm());
+    synchronized(entries){
+      entries.put(key, new Entry(secretKey, salt, now));
+    }
+    return secretKey;
+  }
+
+  /**
+   * Record the latency of key derivations (cache misses) to histogram
+   * @param derivations
+   */
+  public void setDerivations(LatencyHistogram derivations){
+    this.derivations = derivations;
+  }
+
+  /**
+   * Remove all keys of user from cache
+   * @param username
+   */
+  public void invalidate(String username){
+    synchronized(entries){
+      for(Iterator<Key> it = entries.keySet().iterator(); it.hasNext();){
+        if(it.next().username.equals(username)){
+          it.remove();
+          evictions.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * Remove all keys from cache
+   */
+  public void invalidateAll(){
+    synchronized(entries){
+      evictions.addAndGet(entries.size());
+      entries.clear();
+    }
+  }
+
+  public int size(){
+    synchronized(entries){
+      return entries.size();
+    }
+  }
+
+  public long getHits(){
+    return hits.get();
+  }
+
+  public long getMisses(){
+    return misses.get();
+  }
+
+  public long getEvictions(){
+    return evictions.get();
+  }
+
+  @Override
+  public String toString(){
+    return "KeyCache[size="+size()+", hits="+getHits()+", misses="+getMisses()+
+        ", evictions="+getEvictions()+"]";
+  }
+
+  /**
+   * Cache key
+   */
+  private static class Key {
+
+    private final String username;
+    private final int iterationCount;
+    private final int keyLength;
+
+    Key(String username, int iterationCount, int keyLength){
+      this.username = username;
+      this.iterationCount = iterationCount;
+      this.keyLength = keyLength;
+    }
+
+    @Override
+    public boolean equals(Object obj){
+      if(!(obj instanceof Key)) return false;
+      Key other = (Key)obj;
+      return username.equals(other.username) && iterationCount == other.iterationCount
+          && keyLength == other.keyLength;
+    }
+
+    @Override
+    public int hashCode(){
+      return (username.hashCode() * 31 + iterationCount) * 31 + keyLength;
+    }
+  }
+
+  /**
+   * Cache entry
+   */
+  private static class Entry {
+
+    private final SecretKey secretKey;
+    private final byte[] salt;
+    private final long created;
+
+    Entry(SecretKey secretKey, byte[] salt, long created){
+      this.secretKey = secretKey;
+      this.salt = salt;
+      this.created = created;
+    }
+  }
+}
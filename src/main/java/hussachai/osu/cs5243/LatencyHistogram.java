@@ -0,0 +1,191 @@
+package hussachai.osu.cs5243;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram in nanoseconds with log-linear buckets, in the spirit
+ * of HdrHistogram. Every power of two range is split into 8 buckets, so a
+ * percentile is reported within 12.5% of the recorded value whatever the
+ * magnitude is, from nanoseconds to minutes, in a fixed number of buckets.
+ *
+ * Like {@link StripedCounter}, each thread records into its own stripe of
+ * buckets, so recording is lock-free and doesn't contend with other threads.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+
+  /**
+   * log2 of the number of buckets per power of two
+   */
+  private static final int SUB_BITS = 3;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  private static final int BUCKETS = (65 - SUB_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(
+      StripedCounter.STRIPES * BUCKETS);
+
+  private final StripedCounter total = new StripedCounter();
+
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Record the time elapsed since start
+   * @param start the value of System.nanoTime() when the operation started
+   */
+  public void recordSince(long start){
+    record(System.nanoTime() - start);
+  }
+
+  /**
+   * Record latency
+   * @param nanos
+   */
+  public void record(long nanos){
+    if(nanos < 0) nanos = 0;
+    buckets.incrementAndGet(StripedCounter.stripe() * BUCKETS + bucket(nanos));
+    total.add(nanos);
+    long current = max.get();
+    while(nanos > current && !max.compareAndSet(current, nanos)){
+      current = max.get();
+    }
+  }
+
+  @Override
+  public long getCount(){
+    long count = 0;
+    for(long n: snapshot()){
+      count += n;
+    }
+    return count;
+  }
+
+  @Override
+  public double getMeanMillis(){
+    long count = getCount();
+    return count == 0 ? 0 : total.getValue() / 1e6 / count;
+  }
+
+  @Override
+  public double getMaxMillis(){
+    return max.get() / 1e6;
+  }
+
+  @Override
+  public double getP50Millis(){
+    return percentile(50) / 1e6;
+  }
+
+  @Override
+  public double getP90Millis(){
+    return percentile(90) / 1e6;
+  }
+
+  @Override
+  public double getP99Millis(){
+    return percentile(99) / 1e6;
+  }
+
+  @Override
+  public double getP999Millis(){
+    return percentile(99.9) / 1e6;
+  }
+
+  /**
+   * The highest value of the bucket holding the given percentile
+   * @param percentile from 0 to 100
+   * @return nanoseconds or 0 when nothing has been recorded
+   */
+  public long percentile(double percentile){
+    long[] counts = snapshot();
+    long count = 0;
+    for(long n: counts){
+      count += n;
+    }
+    if(count == 0) return 0;
+    long rank = Math.max(1, (long)Math.ceil(count * percentile / 100));
+    long seen = 0;
+    for(int i = 0; i < BUCKETS; i++){
+      seen += counts[i];
+      if(seen >= rank){
+        return Math.min(highestValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  @Override
+  public String toString(){
+    return String.format("count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms",
+        getCount(), getMeanMillis(), getP50Millis(), getP90Millis(), getP99Millis(),
+        getP999Millis(), getMaxMillis());
+  }
+
+  /**
+   * One line per non-empty power of two range: its highest value, its count and
+   * the cumulative percentage of values up to that range
+   * @return
+   */
+  public String distribution(){
+    long[] counts = snapshot();
+    long count = 0;
+    for(long n: counts){
+      count += n;
+    }
+    StringBuilder text = new StringBuilder();
+    long seen = 0;
+    long range = 0;
+    for(int i = 0; i < BUCKETS && seen < count; i++){
+      range += counts[i];
+      if(i % SUB_BUCKETS != SUB_BUCKETS - 1 || range == 0) continue;
+      seen += range;
+      text.append(String.format("<= %12.3fms %10d %8.3f%%%n",
+          Math.min(highestValue(i), max.get()) / 1e6, range, seen * 100.0 / count));
+      range = 0;
+    }
+    return text.toString();
+  }
+
+  /**
+   * Bucket counts of all stripes added up
+   */
+  private long[] snapshot(){
+    long[] counts = new long[BUCKETS];
+    for(int stripe = 0; stripe < StripedCounter.STRIPES; stripe++){
+      int offset = stripe * BUCKETS;
+      for(int i = 0; i < BUCKETS; i++){
+        counts[i] += buckets.get(offset + i);
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Values below SUB_BUCKETS have a bucket each. Above that, the exponent
+   * selects the range and the next SUB_BITS bits select the bucket in range.
+   */
+  static int bucket(long value){
+    if(value < SUB_BUCKETS){
+      return (int)value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  static long highestValue(int bucket){
+    if(bucket < SUB_BUCKETS){
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    int sub = bucket % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BITS);
+    long highest = ((SUB_BUCKETS + sub) * width) + width - 1;
+    /* The last buckets go beyond Long.MAX_VALUE */
+    return highest < 0 ? Long.MAX_VALUE : highest;
+  }
+}
@@ -0,0 +1,24 @@
+package hussachai.osu.cs5243;
+
+/**
+ * JMX view of {@link LatencyHistogram}
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public interface LatencyHistogramMXBean {
+
+  long getCount();
+
+  double getMeanMillis();
+
+  double getMaxMillis();
+
+  double getP50Millis();
+
+  double getP90Millis();
+
+  double getP99Millis();
+
+  double getP999Millis();
+}
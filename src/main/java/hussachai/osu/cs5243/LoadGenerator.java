@@ -0,0 +1,304 @@
+package hussachai.osu.cs5243;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValue;
+
+/**
+ * Load generator for soak and capacity testing.
+ * It opens a number of concurrent authenticated sessions with the users of a
+ * credential file and replays the lines of a corpus at a fixed total rate.
+ *
+ * The load is open-loop: every request has its intended send time on a fixed
+ * schedule and its latency is measured from that time, not from the time it was
+ * actually sent. When the server stalls, the requests that should have been sent
+ * meanwhile are sent late and their waiting counts as latency, instead of being
+ * silently skipped (coordinated omission). Each session has one request in flight
+ * and its share of the rate, so the rate per session must be within what one
+ * connection can do for the schedule to be kept.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class LoadGenerator {
+
+  private final String host;
+
+  private final int port;
+
+  private int clients = 10;
+
+  private double rate = 100;
+
+  private long durationMillis = TimeUnit.SECONDS.toMillis(30);
+
+  private WireFormat format = WireFormat.TEXT;
+
+  private boolean gcm = true;
+
+  private File usersFile = new File("client/users.conf");
+
+  private File corpusFile;
+
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  private final StripedCounter completed = new StripedCounter();
+
+  private final StripedCounter errors = new StripedCounter();
+
+  private final StripedCounter connectErrors = new StripedCounter();
+
+  public LoadGenerator(String host, int port){
+    this.host = host;
+    this.port = port;
+  }
+
+  public void setClients(int clients){
+    if(clients < 1) throw new IllegalArgumentException("clients must be positive");
+    this.clients = clients;
+  }
+
+  /**
+   * @param rate total requests per second of all sessions
+   */
+  public void setRate(double rate){
+    if(rate <= 0) throw new IllegalArgumentException("rate must be positive");
+    this.rate = rate;
+  }
+
+  public void setDurationMillis(long durationMillis){
+    if(durationMillis < 1) throw new IllegalArgumentException("duration must be positive");
+    this.durationMillis = durationMillis;
+  }
+
+  public void setWireFormat(WireFormat format){
+    this.format = format;
+  }
+
+  public void setGcm(boolean gcm){
+    this.gcm = gcm;
+  }
+
+  /**
+   * @param usersFile the file with "username = password" entries, at the top level
+   * or in users section like server.conf
+   */
+  public void setUsersFile(File usersFile){
+    this.usersFile = usersFile;
+  }
+
+  /**
+   * @param corpusFile the file whose non-empty lines are sent as requests
+   */
+  public void setCorpusFile(File corpusFile){
+    this.corpusFile = corpusFile;
+  }
+
+  /**
+   * Open sessions, run the load for the duration and print the report
+   * @throws Exception
+   */
+  public void run() throws Exception{
+    if(corpusFile == null){
+      throw new IllegalArgumentException("Load generator needs the corpus file");
+    }
+    List<String[]> users = loadUsers(usersFile);
+    final List<String> corpus = loadCorpus(corpusFile);
+    /* Derive the keys up front so that opening sessions doesn't wait for PBKDF2 */
+    for(String[] user: users){
+      ClientConnection.getKeyCache().get(user[0], user[1]);
+    }
+    System.out.println("Opening "+clients+" sessions to "+host+" on port: "+port);
+    long openStart = System.nanoTime();
+    final Session sessions[] = new Session[clients];
+    for(int i = 0; i < clients; i++){
+      sessions[i] = new Session(users.get(i % users.size()));
+      sessions[i].connect();
+    }
+    System.out.println("Opened sessions in "+
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - openStart)+" ms, "+
+        connectErrors.getValue()+" failed");
+
+    /* Session i sends at start + (k * clients + i) * interval */
+    final long interval = (long)(1e9 / rate);
+    final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+    final long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+    List<Thread> workers = new ArrayList<>();
+    for(int i = 0; i < clients; i++){
+      final Session session = sessions[i];
+      final int first = i;
+      Thread worker = new Thread("loadgen-"+i){
+        @Override
+        public void run(){
+          long intended = start + first * interval;
+          int line = first;
+          while(intended < end){
+            long wait = intended - System.nanoTime();
+            while(wait > 0){
+              LockSupport.parkNanos(wait);
+              wait = intended - System.nanoTime();
+            }
+            session.request(corpus.get(line % corpus.size()), intended);
+            line += clients;
+            intended += interval * clients;
+          }
+          session.close();
+        }
+      };
+      worker.setDaemon(true);
+      worker.start();
+      workers.add(worker);
+    }
+    report(workers, start);
+  }
+
+  /**
+   * Print progress every second until workers have finished, then the summary
+   */
+  private void report(List<Thread> workers, long start) throws InterruptedException{
+    System.out.println("Sending "+rate+" requests/sec for "+
+        TimeUnit.MILLISECONDS.toSeconds(durationMillis)+" s");
+    long lastCompleted = 0;
+    long lastErrors = 0;
+    for(int second = 1; isAlive(workers); second++){
+      long wait = start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime();
+      if(wait > 0){
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+      long done = completed.getValue();
+      long failed = errors.getValue();
+      System.out.println(second+"s: "+(done - lastCompleted)+" requests, "+
+          (failed - lastErrors)+" errors, p99 so far "+
+          String.format("%.3f", latency.getP99Millis())+" ms");
+      lastCompleted = done;
+      lastErrors = failed;
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    System.out.println("====================================");
+    System.out.println("Sessions: "+clients+", target rate: "+rate+" requests/sec");
+    System.out.println(String.format("Completed: %d requests in %.1f s (%.1f requests/sec)",
+        completed.getValue(), elapsed, completed.getValue() / elapsed));
+    System.out.println("Errors: "+errors.getValue()+" (connect: "+connectErrors.getValue()+")");
+    System.out.println("Latency from intended send time: "+latency);
+    System.out.print(latency.distribution());
+  }
+
+  private static boolean isAlive(List<Thread> workers){
+    for(Thread worker: workers){
+      if(worker.isAlive()) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Credentials as pairs of username and password
+   * @param file
+   * @return
+   */
+  protected static List<String[]> loadUsers(File file){
+    if(!file.exists()){
+      throw new IllegalArgumentException("Credential file not found: "+file);
+    }
+    Config config = ConfigFactory.parseFile(file);
+    if(config.hasPath("users")){
+      config = config.getConfig("users");
+    }
+    List<String[]> users = new ArrayList<>();
+    for(Map.Entry<String, ConfigValue> entry: config.root().entrySet()){
+      users.add(new String[]{entry.getKey(), String.valueOf(entry.getValue().unwrapped())});
+    }
+    if(users.isEmpty()){
+      throw new IllegalArgumentException("No user in "+file);
+    }
+    return users;
+  }
+
+  /**
+   * Non-empty lines of corpus
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  protected static List<String> loadCorpus(File file) throws IOException{
+    List<String> lines = new ArrayList<>();
+    try(BufferedReader input = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), WireFormat.UTF8))){
+      String line = null;
+      while((line = input.readLine()) != null){
+        if(!line.trim().isEmpty()) lines.add(line);
+      }
+    }
+    if(lines.isEmpty()){
+      throw new IllegalArgumentException("No line in "+file);
+    }
+    return lines;
+  }
+
+  /**
+   * Connection of one user, reopened after a failure
+   */
+  private class Session {
+
+    private final String username;
+
+    private final String password;
+
+    private ClientConnection connection;
+
+    Session(String[] user){
+      this.username = user[0];
+      this.password = user[1];
+    }
+
+    void connect(){
+      try{
+        connection = ClientConnection.open(host, port, username, password, format, gcm);
+      }catch(Exception e){
+        connectErrors.increment();
+        errors.increment();
+        connection = null;
+      }
+    }
+
+    /**
+     * Send request and record its latency from the intended send time.
+     * A request that fails, or can't be sent because the session can't
+     * reconnect, is counted as error.
+     */
+    void request(String text, long intended){
+      if(connection == null){
+        connect();
+        if(connection == null) return;
+      }
+      try{
+        connection.request(text);
+        latency.recordSince(intended);
+        completed.increment();
+      }catch(Exception e){
+        errors.increment();
+        close();
+      }
+    }
+
+    void close(){
+      if(connection == null) return;
+      try{
+        connection.close();
+      }catch(IOException e){
+        /* Nothing to do */
+      }
+      connection = null;
+    }
+  }
+}
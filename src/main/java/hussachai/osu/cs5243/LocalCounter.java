@@ -0,0 +1,219 @@
+package hussachai.osu.cs5243;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Counts local files without the server, for batch jobs on the same host.
+ * A file is split into ranges of bytes, each range is memory-mapped with
+ * {@link FileChannel#map} and counted on its own thread by {@link Utf8Counter}
+ * straight from the mapped bytes, and the counts of ranges are merged as in
+ * {@link ParallelWordCounter}. The result is the same as the one of the server
+ * for the same text.
+ *
+ * Ranges start at the first byte of a UTF-8 sequence, so no character is split
+ * between two ranges. A range that is not well-formed UTF-8 is decoded instead,
+ * with malformed input replaced by U+FFFD like the client does when it reads a
+ * file, and counted by {@link WordCounter}. The file is never copied to the heap:
+ * each thread decodes into its own small buffer, so the heap used doesn't depend
+ * on the file size.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class LocalCounter {
+
+  /**
+   * Bytes mapped and counted by one task
+   */
+  public static final int RANGE_SIZE = 16 * 1024 * 1024;
+
+  /**
+   * Characters decoded at a time by each thread
+   */
+  private static final int DECODE_BUFFER_SIZE = 64 * 1024;
+
+  private final ExecutorService executor;
+
+  private final ThreadLocal<Decoder> decoders = new ThreadLocal<Decoder>(){
+    @Override
+    protected Decoder initialValue(){
+      return new Decoder();
+    }
+  };
+
+  /**
+   * @param parallelism the number of threads, 0 for the number of processors
+   */
+  public LocalCounter(int parallelism){
+    if(parallelism <= 0){
+      parallelism = Runtime.getRuntime().availableProcessors();
+    }
+    this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory(){
+      @Override
+      public Thread newThread(Runnable runnable){
+        Thread thread = new Thread(runnable, "local-counter");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Count every file, print the result of each and the total when there are
+   * more than one
+   * @param files
+   * @throws Exception
+   */
+  public void run(List<File> files) throws Exception{
+    long start = System.nanoTime();
+    long bytes = 0;
+    long words = 0;
+    long characters = 0;
+    for(File file: files){
+      WordCount count = count(file);
+      System.out.println(file+": "+count);
+      bytes += file.length();
+      words += count.getWords();
+      characters += count.getCharacters();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    if(files.size() > 1){
+      System.out.println("Total: "+new WordCount(words, characters));
+    }
+    System.out.println(String.format("Counted %d bytes in %.3f s (%.1f MB/s)",
+        bytes, seconds, bytes / 1e6 / seconds));
+    executor.shutdown();
+  }
+
+  /**
+   * Count file
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public WordCount count(File file) throws IOException{
+    try(RandomAccessFile input = new RandomAccessFile(file, "r")){
+      FileChannel channel = input.getChannel();
+      long size = channel.size();
+      List<Future<ParallelWordCounter.Segment>> ranges = new ArrayList<>();
+      ByteBuffer lead = ByteBuffer.allocate(4);
+      long rangeStart = 0;
+      while(rangeStart < size){
+        long rangeEnd = Math.min(size, rangeStart + RANGE_SIZE);
+        if(rangeEnd < size){
+          rangeEnd += sequenceStart(channel, rangeEnd, lead);
+        }
+        ranges.add(executor.submit(new CountTask(channel, rangeStart, rangeEnd)));
+        rangeStart = rangeEnd;
+      }
+      ParallelWordCounter.Segment total = new ParallelWordCounter.Segment();
+      for(Future<ParallelWordCounter.Segment> range: ranges){
+        total = total.merge(range.get());
+      }
+      return new WordCount(total.words, total.characters);
+    }catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+      throw new IOException("Counting of "+file+" has been interrupted");
+    }catch(ExecutionException e){
+      if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Number of continuation bytes at position, up to 3. Skipping them moves
+   * the position to the first byte of the next UTF-8 sequence.
+   */
+  private static int sequenceStart(FileChannel channel, long position, ByteBuffer lead)
+      throws IOException{
+    lead.clear();
+    while(lead.hasRemaining() && channel.read(lead, position + lead.position()) > 0);
+    int skip = 0;
+    while(skip < 3 && skip < lead.position() && (lead.get(skip) & 0xC0) == 0x80){
+      skip++;
+    }
+    return skip;
+  }
+
+  /**
+   * Decoder and buffer of one thread
+   */
+  private static class Decoder {
+
+    private final CharsetDecoder decoder = WireFormat.UTF8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final CharBuffer buffer = CharBuffer.allocate(DECODE_BUFFER_SIZE);
+
+    private final WordCounter counter = new WordCounter();
+  }
+
+  /**
+   * Count of one mapped range
+   */
+  private class CountTask implements Callable<ParallelWordCounter.Segment> {
+
+    private final FileChannel channel;
+    private final long start;
+    private final long end;
+
+    CountTask(FileChannel channel, long start, long end){
+      this.channel = channel;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public ParallelWordCounter.Segment call() throws IOException{
+      MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+      Utf8Counter utf8 = new Utf8Counter().update(bytes, 0, bytes.limit());
+      if(!utf8.isMalformed()){
+        return ParallelWordCounter.Segment.of(utf8);
+      }
+      Decoder decoder = decoders.get();
+      decoder.decoder.reset();
+      decoder.counter.reset();
+      ParallelWordCounter.Segment segment = new ParallelWordCounter.Segment();
+      CharBuffer chars = decoder.buffer;
+      boolean first = true;
+      boolean flushed = false;
+      while(!flushed){
+        chars.clear();
+        CoderResult result = decoder.decoder.decode(bytes, chars, true);
+        if(result.isUnderflow()){
+          decoder.decoder.flush(chars);
+          flushed = true;
+        }
+        chars.flip();
+        if(!chars.hasRemaining()) continue;
+        if(first){
+          segment.startsInWord = !WordCounter.isWhitespace(chars.get(0));
+          first = false;
+        }
+        segment.endsInWord = !WordCounter.isWhitespace(chars.get(chars.limit() - 1));
+        decoder.counter.update(chars);
+      }
+      segment.words = decoder.counter.getWords();
+      segment.characters = decoder.counter.getCharacters();
+      return segment;
+    }
+  }
+}
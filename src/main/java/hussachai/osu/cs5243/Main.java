@@ -1,9 +1,12 @@
 package hussachai.osu.cs5243;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
@@ -28,9 +31,23 @@ public class Main {
     
     this.parser = new OptionParser(){
       {
-        acceptsAll(Arrays.asList("m", "mode"), "mode can be either server or client").withRequiredArg();
+        acceptsAll(Arrays.asList("m", "mode"), "mode can be server, client, loadgen or local").withRequiredArg();
         acceptsAll(Arrays.asList("h", "host"), "server's host address").withRequiredArg();
         acceptsAll(Arrays.asList("p", "port"), "server's port number").withRequiredArg();
+        acceptsAll(Arrays.asList("f", "format"), "client's wire format can be either text or binary").withRequiredArg();
+        acceptsAll(Arrays.asList("a", "cipher"), "client's message cipher can be either gcm or cbc").withRequiredArg();
+        acceptsAll(Arrays.asList("i", "input"), "file uploaded by client in streaming mode or counted in local mode").withRequiredArg();
+        acceptsAll(Arrays.asList("b", "batch"), "file whose lines are sent by client as pipelined requests").withRequiredArg();
+        acceptsAll(Arrays.asList("w", "window"), "maximum number of pipelined requests in flight").withRequiredArg();
+        acceptsAll(Arrays.asList("n", "batch-size"), "number of lines sent in each batch request").withRequiredArg();
+        acceptsAll(Arrays.asList("x", "streams"), "number of streams sharing one multiplexed connection").withRequiredArg();
+        acceptsAll(Arrays.asList("s", "snapshot"), "file where client checkpoints the running totals of server").withRequiredArg();
+        acceptsAll(Arrays.asList("c", "clients"), "number of concurrent sessions opened by load generator").withRequiredArg();
+        acceptsAll(Arrays.asList("r", "rate"), "total requests per second sent by load generator").withRequiredArg();
+        acceptsAll(Arrays.asList("d", "duration"), "seconds of load sent by load generator").withRequiredArg();
+        acceptsAll(Arrays.asList("u", "users"), "credential file of load generator").withRequiredArg();
+        acceptsAll(Arrays.asList("t", "threads"), "number of threads counting in local mode").withRequiredArg();
+        acceptsAll(Arrays.asList("e", "engine"), "server engine can be thread, virtual or nio").withRequiredArg();
         acceptsAll(Arrays.asList("?", "?" ), "show help" ).forHelp();
       }
     };
@@ -45,22 +62,92 @@ public class Main {
     }else{
       String mode = optionSet.valueOf("m").toString();
       if("server".equals(mode)){
+        List<String> serverArgs = new LinkedList<>();
+        Object engine = optionSet.valueOf("e");
+        if(engine != null) serverArgs.add(engine.toString());
         System.out.println("Starting wordcount server");
-        WordCountServer.main(args);
+        WordCountServer.main(serverArgs.toArray(new String[0]));
       }else if("client".equals(mode)){
-        List<String> clientArgs = new LinkedList<>();
+        WordCountClient client = new WordCountClient();
         Object host = optionSet.valueOf("h");
         Object port = optionSet.valueOf("p");
-        if(host != null) clientArgs.add(host.toString());
-        if(port != null) clientArgs.add(port.toString());
+        Object format = optionSet.valueOf("f");
+        Object input = optionSet.valueOf("i");
+        Object batch = optionSet.valueOf("b");
+        Object window = optionSet.valueOf("w");
+        Object streams = optionSet.valueOf("x");
+        Object batchSize = optionSet.valueOf("n");
+        Object snapshot = optionSet.valueOf("s");
+        if(format != null) client.setWireFormat(WireFormat.forName(format.toString()));
+        if(optionSet.has("a")) client.setGcm(isGcm(optionSet.valueOf("a").toString()));
+        if(input != null) client.setInputFile(new File(input.toString()));
+        if(batch != null) client.setBatchFile(new File(batch.toString()));
+        if(window != null) client.setWindow(Integer.parseInt(window.toString()));
+        if(batchSize != null) client.setBatchSize(Integer.parseInt(batchSize.toString()));
+        if(streams != null) client.setStreams(Integer.parseInt(streams.toString()));
+        if(snapshot != null) client.setSnapshotFile(new File(snapshot.toString()));
         System.out.println("Starting wordcount client");
-        WordCountClient.main(clientArgs.toArray(new String[0]));
+        client.start(host == null ? "localhost" : host.toString(),
+            port == null ? 9999 : Integer.parseInt(port.toString()));
+      }else if("loadgen".equals(mode)){
+        Object host = optionSet.valueOf("h");
+        Object port = optionSet.valueOf("p");
+        LoadGenerator generator = new LoadGenerator(host == null ? "localhost" : host.toString(),
+            port == null ? 9999 : Integer.parseInt(port.toString()));
+        Object format = optionSet.valueOf("f");
+        Object input = optionSet.valueOf("i");
+        Object clients = optionSet.valueOf("c");
+        Object rate = optionSet.valueOf("r");
+        Object duration = optionSet.valueOf("d");
+        Object users = optionSet.valueOf("u");
+        if(input == null){
+          printHelp("load generator needs the corpus file (-i)", true);
+        }
+        generator.setCorpusFile(new File(input.toString()));
+        if(format != null) generator.setWireFormat(WireFormat.forName(format.toString()));
+        if(optionSet.has("a")) generator.setGcm(isGcm(optionSet.valueOf("a").toString()));
+        if(clients != null) generator.setClients(Integer.parseInt(clients.toString()));
+        if(rate != null) generator.setRate(Double.parseDouble(rate.toString()));
+        if(duration != null) generator.setDurationMillis(
+            TimeUnit.SECONDS.toMillis(Long.parseLong(duration.toString())));
+        if(users != null) generator.setUsersFile(new File(users.toString()));
+        System.out.println("Starting wordcount load generator");
+        generator.run();
+      }else if("local".equals(mode)){
+        List<File> files = new ArrayList<>();
+        for(Object input: optionSet.valuesOf("i")){
+          files.add(new File(input.toString()));
+        }
+        for(Object input: optionSet.nonOptionArguments()){
+          files.add(new File(input.toString()));
+        }
+        if(files.isEmpty()){
+          printHelp("local mode needs at least one file", true);
+        }
+        for(File file: files){
+          if(!file.isFile()){
+            printHelp("file not found: "+file, true);
+          }
+        }
+        Object threads = optionSet.valueOf("t");
+        new LocalCounter(threads == null ? 0 : Integer.parseInt(threads.toString())).run(files);
       }else{
         printHelp("unknown mode: "+mode, true);
       }
     }
   }
   
+  /**
+   * Parse cipher option
+   * @param cipher
+   * @return
+   */
+  protected boolean isGcm(String cipher){
+    if(SecuritySession.GCM_OPTION.equals(cipher)) return true;
+    if("cbc".equals(cipher)) return false;
+    throw new IllegalArgumentException("unknown cipher: "+cipher);
+  }
+  
   /**
    * Print help on screen
    * @param message
@@ -74,8 +161,22 @@ public class Main {
     System.out.println("http://www.siberhus.com");
     System.out.println("Example: ");
     System.out.println("For server, please use: java wordcount.jar -m server");
+    System.out.println("For server on virtual threads, please use: java wordcount.jar -m server -e virtual");
+    System.out.println("For non-blocking server, please use: java wordcount.jar -m server -e nio");
     System.out.println("For client, please use: java wordcount.jar -m client -h localhost -p 9999");
     System.out.println("where -h and -p are optional and have the same default values as example");
+    System.out.println("Add -f binary to use the compact binary message format");
+    System.out.println("Add -a cbc to encrypt with AES-CBC and HMAC instead of AES-GCM");
+    System.out.println("Add -i file.txt to count a whole file streamed to server in chunks");
+    System.out.println("Add -b lines.txt to count every line as pipelined requests, -w sets how many are in flight");
+    System.out.println("Add -n 100 with -b to send 100 lines in each batch request");
+    System.out.println("Add -x 100 with -b to send the batch on 100 streams multiplexed over one connection");
+    System.out.println("Add -s totals.txt to checkpoint the running totals of ':add' lines and continue them after reconnecting");
+    System.out.println("For load test, please use: java wordcount.jar -m loadgen -i corpus.txt -c 10 -r 100 -d 30");
+    System.out.println("where -c sessions send the lines of corpus at -r requests/sec in total for -d seconds,");
+    System.out.println("logged in with the users of client/users.conf (-u to use another file)");
+    System.out.println("To count files on this host without server, please use: java wordcount.jar -m local big.txt other.txt");
+    System.out.println("where -t sets the number of counting threads (default: the number of processors)");
     System.out.println("Make sure that the server directory is present when you use server mode");
     System.out.println("Also client directory must be present beside jar file when you use client mode");
     parser.printHelpOn(System.out);
@@ -0,0 +1,287 @@
+package hussachai.osu.cs5243;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.typesafe.config.Config;
+
+/**
+ * Counters and latency histograms of the server, one histogram per stage
+ * that a connection or a message goes through:
+ * <ol>
+ * <li>accept: from accepting the socket until a thread or event loop serves it</li>
+ * <li>handshake.wait: waiting for a thread of {@link HandshakeStage}</li>
+ * <li>handshake.full and handshake.resumed: TLS handshake</li>
+ * <li>pbkdf2: key derivation (cache misses only when the key cache is enabled)</li>
+ * <li>decrypt and hmacVerify: the two halves of reading a message</li>
+ * <li>count: handling the decrypted request</li>
+ * <li>encrypt: the reply</li>
+ * <li>write: writing (wrapping in TLS and flushing) the replies</li>
+ * </ol>
+ * Recording is lock-free (see {@link StripedCounter}), so it's always on.
+ * The metrics can be read through JMX under the {@value #DOMAIN} domain
+ * and are dumped to a local file periodically.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class Metrics {
+
+  public static final String DOMAIN = "hussachai.osu.cs5243";
+
+  private final Map<String, StripedCounter> counters = new LinkedHashMap<>();
+
+  private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+
+  private final StripedCounter connections = counter("connections");
+  private final StripedCounter messages = counter("messages");
+  private final StripedCounter replies = counter("replies");
+  private final StripedCounter errors = counter("errors");
+  private final StripedCounter cacheHits = counter("cache.hits");
+  private final StripedCounter cacheMisses = counter("cache.misses");
+  private final StripedCounter cacheEvictions = counter("cache.evictions");
+  /* Handshakes waiting in the queue of handshake stage, a gauge */
+  private final StripedCounter handshakeQueued = counter("handshake.queued");
+  private final StripedCounter handshakeRejected = counter("handshake.rejected");
+  /* Direct buffers allocated by buffer pool, and the ones in use (a gauge) */
+  private final StripedCounter buffersAllocated = counter("buffers.allocated");
+  private final StripedCounter buffersOutstanding = counter("buffers.outstanding");
+  private final StripedCounter buffersLeaked = counter("buffers.leaked");
+
+  private final LatencyHistogram accept = histogram("accept");
+  private final LatencyHistogram handshakeWait = histogram("handshake.wait");
+  private final LatencyHistogram fullHandshake = histogram("handshake.full");
+  private final LatencyHistogram resumedHandshake = histogram("handshake.resumed");
+  private final LatencyHistogram pbkdf2 = histogram("pbkdf2");
+  private final LatencyHistogram decrypt = histogram("decrypt");
+  private final LatencyHistogram hmacVerify = histogram("hmacVerify");
+  private final LatencyHistogram count = histogram("count");
+  private final LatencyHistogram encrypt = histogram("encrypt");
+  private final LatencyHistogram write = histogram("write");
+
+  private final long started = System.currentTimeMillis();
+
+  /**
+   * Create metrics and expose them as configured in metrics section
+   * @param config
+   * @param log where the failures to expose them are reported
+   * @return
+   */
+  public static Metrics fromConfig(Config config, AsyncLog log){
+    Metrics metrics = new Metrics();
+    if(config.getBoolean("metrics.jmx")){
+      try{
+        metrics.registerMBeans(ManagementFactory.getPlatformMBeanServer());
+      }catch(Exception e){
+        log.error("Metrics cannot be registered to JMX: {0}", e, e);
+      }
+    }
+    String dumpFile = config.getString("metrics.dumpFile");
+    if(!dumpFile.isEmpty()){
+      metrics.startDump(new File(dumpFile),
+          config.getDuration("metrics.dumpInterval", TimeUnit.MILLISECONDS), log);
+    }
+    return metrics;
+  }
+
+  /**
+   * Register every counter and histogram as MXBean named by its stage
+   * @param server
+   * @throws Exception
+   */
+  public void registerMBeans(MBeanServer server) throws Exception{
+    for(Map.Entry<String, StripedCounter> counter: counters.entrySet()){
+      server.registerMBean(counter.getValue(),
+          new ObjectName(DOMAIN+":type=Counter,name="+counter.getKey()));
+    }
+    for(Map.Entry<String, LatencyHistogram> histogram: histograms.entrySet()){
+      server.registerMBean(histogram.getValue(),
+          new ObjectName(DOMAIN+":type=Latency,name="+histogram.getKey()));
+    }
+  }
+
+  /**
+   * Write the metrics to file periodically on a daemon thread.
+   * The file is replaced as a whole, so a reader never sees it half written.
+   * @param file
+   * @param intervalMillis
+   * @param log where the failures to write the file are reported
+   */
+  public void startDump(final File file, long intervalMillis, final AsyncLog log){
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory(){
+          @Override
+          public Thread newThread(Runnable runnable){
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    scheduler.scheduleAtFixedRate(new Runnable(){
+      @Override
+      public void run(){
+        try{
+          dump(file);
+        }catch(IOException e){
+          log.error("Metrics cannot be written to {0}: {1}", file, e, e);
+        }
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Write the metrics to file
+   * @param file
+   * @throws IOException
+   */
+  public void dump(File file) throws IOException{
+    Path target = file.toPath().toAbsolutePath();
+    Path temp = target.resolveSibling(file.getName()+".tmp");
+    try(Writer writer = Files.newBufferedWriter(temp, WireFormat.UTF8)){
+      writer.write(toString());
+    }
+    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Record a completed TLS handshake
+   * @param resumed
+   * @param nanos
+   */
+  public void recordHandshake(boolean resumed, long nanos){
+    (resumed ? resumedHandshake : fullHandshake).record(nanos);
+  }
+
+  public StripedCounter getConnections(){
+    return connections;
+  }
+
+  public StripedCounter getMessages(){
+    return messages;
+  }
+
+  public StripedCounter getReplies(){
+    return replies;
+  }
+
+  public StripedCounter getErrors(){
+    return errors;
+  }
+
+  public StripedCounter getCacheHits(){
+    return cacheHits;
+  }
+
+  public StripedCounter getCacheMisses(){
+    return cacheMisses;
+  }
+
+  public StripedCounter getCacheEvictions(){
+    return cacheEvictions;
+  }
+
+  public StripedCounter getHandshakeQueued(){
+    return handshakeQueued;
+  }
+
+  public StripedCounter getHandshakeRejected(){
+    return handshakeRejected;
+  }
+
+  public StripedCounter getBuffersAllocated(){
+    return buffersAllocated;
+  }
+
+  public StripedCounter getBuffersOutstanding(){
+    return buffersOutstanding;
+  }
+
+  public StripedCounter getBuffersLeaked(){
+    return buffersLeaked;
+  }
+
+  public LatencyHistogram getAccept(){
+    return accept;
+  }
+
+  public LatencyHistogram getHandshakeWait(){
+    return handshakeWait;
+  }
+
+  public LatencyHistogram getFullHandshake(){
+    return fullHandshake;
+  }
+
+  public LatencyHistogram getResumedHandshake(){
+    return resumedHandshake;
+  }
+
+  public LatencyHistogram getPbkdf2(){
+    return pbkdf2;
+  }
+
+  public LatencyHistogram getDecrypt(){
+    return decrypt;
+  }
+
+  public LatencyHistogram getHmacVerify(){
+    return hmacVerify;
+  }
+
+  public LatencyHistogram getCount(){
+    return count;
+  }
+
+  public LatencyHistogram getEncrypt(){
+    return encrypt;
+  }
+
+  public LatencyHistogram getWrite(){
+    return write;
+  }
+
+  /**
+   * One line per counter and histogram
+   */
+  @Override
+  public String toString(){
+    StringBuilder text = new StringBuilder();
+    text.append("# Metrics at ").append(new Date()).append(", up ")
+      .append((System.currentTimeMillis() - started) / 1000).append("s\n");
+    for(Map.Entry<String, StripedCounter> counter: counters.entrySet()){
+      text.append(counter.getKey()).append(' ').append(counter.getValue()).append('\n');
+    }
+    for(Map.Entry<String, LatencyHistogram> histogram: histograms.entrySet()){
+      text.append(histogram.getKey()).append(' ').append(histogram.getValue()).append('\n');
+    }
+    return text.toString();
+  }
+
+  private StripedCounter counter(String name){
+    StripedCounter counter = new StripedCounter();
+    counters.put(name, counter);
+    return counter;
+  }
+
+  private LatencyHistogram histogram(String name){
+    LatencyHistogram histogram = new LatencyHistogram();
+    histograms.put(name, histogram);
+    return histogram;
+  }
+}
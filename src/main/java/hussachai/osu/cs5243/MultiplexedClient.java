@@ -0,0 +1,283 @@
+package hussachai.osu.cs5243;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Client side of a multiplexed connection.
+ * One TLS connection carries many streams and each stream authenticates its
+ * own user, so a gateway can serve many users over a few connections.
+ * The frames are described in {@link MultiplexedSession}.
+ *
+ * Streams can be used by different threads at the same time, but each
+ * stream must be used by one thread at a time.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class MultiplexedClient implements Closeable {
+
+  /**
+   * Marks the end of stream in its inbox
+   */
+  private static final ByteBuffer CLOSED = ByteBuffer.allocate(0);
+
+  private final SSLSocket sslSocket;
+
+  private final OutputStream writer;
+
+  private final WireReader reader;
+
+  private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  /**
+   * Open multiplexed connection
+   * @param host
+   * @param port
+   * @throws Exception
+   */
+  public MultiplexedClient(String host, int port) throws Exception{
+    sslSocket = (SSLSocket) ClientConnection.getSslContext().getSocketFactory()
+        .createSocket(host, port);
+    /* Requests of many streams are small and interleaved, so do not wait for ACKs to batch them */
+    sslSocket.setTcpNoDelay(true);
+    writer = new BufferedOutputStream(sslSocket.getOutputStream());
+    reader = new WireReader(sslSocket.getInputStream(), WordCountClient.MAX_MESSAGE_LENGTH);
+    String mux = Request.command(Request.MUX, null, null);
+    send(WireFormat.line(mux));
+    String ack = reader.readLine();
+    if(!mux.equals(ack)){
+      sslSocket.close();
+      throw new RuntimeException("Server doesn't support multiplexed connection: "+ack);
+    }
+    Thread receiver = new Thread("mux-receiver"){
+      @Override
+      public void run(){
+        receive();
+      }
+    };
+    receiver.setDaemon(true);
+    receiver.start();
+  }
+
+  /**
+   * Open stream and authenticate user on it asking for AES-GCM
+   * @param username
+   * @param password
+   * @param format the format of messages of stream after handshake
+   * @return the authenticated stream
+   * @throws Exception
+   */
+  public Stream open(String username, String password, WireFormat format) throws Exception{
+    return open(username, password, format, true);
+  }
+
+  /**
+   * Open stream and authenticate user on it
+   * @param username
+   * @param password
+   * @param format the format of messages of stream after handshake
+   * @param gcm whether to ask for AES-GCM
+   * @return the authenticated stream
+   * @throws Exception
+   */
+  public Stream open(String username, String password, WireFormat format,
+      boolean gcm) throws Exception{
+    Stream stream = new Stream(nextId.incrementAndGet());
+    streams.put(stream.id, stream);
+    try{
+      stream.authenticate(username, password, format, gcm);
+    }catch(Exception e){
+      stream.close();
+      throw e;
+    }
+    return stream;
+  }
+
+  /**
+   * Number of open streams
+   * @return
+   */
+  public int size(){
+    return streams.size();
+  }
+
+  @Override
+  public void close() throws IOException{
+    sslSocket.close();
+  }
+
+  /**
+   * Deliver the frames sent by server to their streams until connection is closed
+   */
+  private void receive(){
+    try{
+      ByteBuffer frame = null;
+      while((frame = reader.readFrame()) != null){
+        Stream stream = streams.get(frame.getInt());
+        if(stream == null){
+          continue;
+        }
+        if(!frame.hasRemaining()){
+          streams.remove(stream.id);
+          stream.inbox.add(CLOSED);
+          continue;
+        }
+        /* The frame buffer is reused by reader */
+        ByteBuffer payload = ByteBuffer.allocate(frame.remaining());
+        payload.put(frame).flip();
+        stream.inbox.add(payload);
+      }
+    }catch(IOException e){
+      if(!sslSocket.isClosed()){
+        System.err.println("Multiplexed connection failed: "+e.getMessage());
+      }
+    }finally{
+      for(Stream stream: streams.values()){
+        stream.inbox.add(CLOSED);
+      }
+      streams.clear();
+    }
+  }
+
+  private synchronized void send(ByteBuffer bytes) throws IOException{
+    writer.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+    writer.flush();
+  }
+
+  /**
+   * Logical connection of one user
+   */
+  public class Stream implements Closeable {
+
+    private final int id;
+
+    private final BlockingQueue<ByteBuffer> inbox = new LinkedBlockingQueue<>();
+
+    private SecuritySession session;
+
+    private WireFormat format = WireFormat.TEXT;
+
+    private String greeting;
+
+    private boolean closed;
+
+    /**
+     * The last line received during handshake
+     */
+    private String lastLine;
+
+    Stream(int id){
+      this.id = id;
+    }
+
+    /**
+     * Mutual authentication of the stream, the same as the one of
+     * {@link ClientConnection#open(String, int, String, String, WireFormat)}
+     */
+    private void authenticate(String username, String password, WireFormat wanted,
+        boolean gcm) throws Exception{
+      send(WireFormat.line(username));
+      SecretKey secretKey = ClientConnection.getKeyCache().get(username, password);
+      session = SecuritySession.create(secretKey);
+      String serverNonce = readLine();
+      String clientNonce = session.generateSessionID();
+      send(WireFormat.line(session.generateHMAC(serverNonce)+"|"+clientNonce+
+          ClientConnection.options(wanted, gcm)));
+      String clientNonceMAC = readLine();
+      int sep = clientNonceMAC.indexOf('|');
+      List<String> accepted = Collections.emptyList();
+      if(sep != -1){
+        accepted = Arrays.asList(clientNonceMAC.substring(sep + 1).split(","));
+        clientNonceMAC = clientNonceMAC.substring(0, sep);
+      }
+      if(!clientNonceMAC.equals(session.generateHMAC(clientNonce))){
+        throw new RuntimeException("HMAC verification failed");
+      }
+      if(accepted.contains(WireFormat.BINARY.getName())){
+        format = WireFormat.BINARY;
+      }
+      if(accepted.contains(SecuritySession.GCM_OPTION)){
+        session.enableGcm(serverNonce, clientNonce);
+      }
+      greeting = session.decrypt(readMessage());
+    }
+
+    /**
+     * Send request and wait for its reply
+     * @param request the request text, either a sentence or a command of {@link Request}
+     * @return the decrypted reply
+     * @throws Exception
+     */
+    public String request(String request) throws Exception{
+      send(format.encode(session.encrypt(request)));
+      return session.decrypt(readMessage());
+    }
+
+    /**
+     * Encrypted greeting sent by server after authentication
+     * @return
+     */
+    public String getGreeting(){
+      return greeting;
+    }
+
+    @Override
+    public void close() throws IOException{
+      if(closed) return;
+      closed = true;
+      if(streams.remove(id) != null){
+        MultiplexedClient.this.send(MultiplexedSession.frame(id, ByteBuffer.allocate(0)));
+      }
+    }
+
+    private void send(ByteBuffer message) throws IOException{
+      if(closed){
+        throw new IOException("Stream has been closed");
+      }
+      MultiplexedClient.this.send(MultiplexedSession.frame(id, message));
+    }
+
+    private ByteBuffer receive() throws Exception{
+      ByteBuffer payload = inbox.take();
+      if(payload == CLOSED){
+        closed = true;
+        /* The server explains in a line why it has refused the user */
+        throw new IOException("Stream closed by server"+(lastLine == null ? "" : ": "+lastLine));
+      }
+      return payload;
+    }
+
+    private String readLine() throws Exception{
+      ByteBuffer payload = receive();
+      lastLine = new String(payload.array(), 0, payload.limit(), WireFormat.UTF8).trim();
+      return lastLine;
+    }
+
+    private SecureMessage readMessage() throws Exception{
+      ByteBuffer payload = receive();
+      if(format == WireFormat.BINARY){
+        payload.position(SecureMessage.FRAME_HEADER_LENGTH);
+        return SecureMessage.fromFrame(payload);
+      }
+      return SecureMessage.fromString(new String(payload.array(), 0, payload.limit(),
+          WireFormat.UTF8));
+    }
+  }
+}
@@ -0,0 +1,223 @@
+package hussachai.osu.cs5243;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server side of a multiplexed connection.
+ * A multiplexed connection carries many logical streams, each of them with its
+ * own user, mutual authentication and session key. Every stream is served by its
+ * own {@link ServerSession} on the thread of the connection, so a gateway can
+ * serve many users over a few connections without one thread per user.
+ *
+ * After the client has sent {@link Request#MUX} as the first line and the server
+ * has echoed it, both directions carry stream frames:
+ * <pre>
+ * int    length of the rest of frame
+ * int    stream id
+ * byte[] payload
+ * </pre>
+ * The payload is exactly one message that the stream would have sent on its own
+ * connection, including its line terminator or its frame length field. An empty
+ * payload closes the stream. A stream is opened by the first frame carrying
+ * its id.
+ *
+ * Streams log in like connections do. On a thread that may block, their login
+ * work runs on {@link HandshakeStage} with the other logins of the client address.
+ * Only a few streams of a connection may be logging in at the same time, and a
+ * stream that hasn't logged in within the handshake timeout is closed when the
+ * next frame of the connection arrives.
+ *
+ * This class is not thread-safe.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class MultiplexedSession {
+
+  /**
+   * Size of length field and stream id in front of payload
+   */
+  public static final int HEADER_LENGTH = 8;
+
+  private final ServerContext context;
+
+  private final int maxStreams;
+
+  private final int maxLogins;
+
+  private final long loginTimeoutNanos;
+
+  /**
+   * Address of client whose login lines are handled on handshake stage, or null
+   */
+  private final String loginAddress;
+
+  private final Map<Integer, ServerSession> streams = new HashMap<>();
+
+  /**
+   * Login deadline of the streams logging in, in the order they have been opened
+   */
+  private final Map<Integer, Long> logins = new LinkedHashMap<>();
+
+  private final List<ByteBuffer> responses = new ArrayList<>();
+
+  /**
+   * @param context
+   * @param loginAddress the address of client when the logins of streams are
+   * handled on handshake stage (see {@link ServerSession#setLoginStage(String)}), or null
+   */
+  public MultiplexedSession(ServerContext context, String loginAddress){
+    this.context = context;
+    this.maxStreams = context.getConfig().getInt("server.mux.maxStreams");
+    this.maxLogins = context.getConfig().getInt("server.mux.maxLogins");
+    this.loginTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+        context.getHandshakeStage().getTimeoutMillis());
+    this.loginAddress = loginAddress;
+  }
+
+  /**
+   * Handle a stream frame sent by client
+   * @param frame the frame without length field
+   * @param out the frames to be sent back to client
+   * @throws Exception when the frame is malformed. The connection must be closed in that case.
+   * A failure of one stream only closes that stream.
+   */
+  public void onFrame(ByteBuffer frame, List<ByteBuffer> out) throws Exception{
+    if(frame.remaining() < 4){
+      throw new RuntimeException("Incorrect format message");
+    }
+    int streamId = frame.getInt();
+    expireLogins(out);
+    ServerSession session = streams.get(streamId);
+    if(!frame.hasRemaining()){
+      /* Client has closed the stream */
+      if(session != null){
+        session.close();
+        streams.remove(streamId);
+        logins.remove(streamId);
+        context.getLog().info("Stream {0} of {1} has been closed", streamId,
+            session.getUsername());
+      }
+      return;
+    }
+    if(session == null){
+      if(streams.size() >= maxStreams){
+        context.getLog().info("Stream {0} refused. Too many streams", streamId);
+        out.add(frame(streamId, ByteBuffer.allocate(0)));
+        return;
+      }
+      if(logins.size() >= maxLogins){
+        context.getLog().info("Stream {0} refused. Too many streams logging in", streamId);
+        out.add(frame(streamId, ByteBuffer.allocate(0)));
+        return;
+      }
+      session = new ServerSession(context);
+      if(loginAddress != null){
+        session.setLoginStage(loginAddress);
+      }
+      streams.put(streamId, session);
+      logins.put(streamId, System.nanoTime() + loginTimeoutNanos);
+    }
+    responses.clear();
+    try{
+      if(session.getWireFormat() == WireFormat.BINARY){
+        /* Skip the length field of stream frame */
+        frame.position(frame.position() + SecureMessage.FRAME_HEADER_LENGTH);
+        session.onFrame(frame.slice(), responses);
+      }else{
+        int end = frame.limit();
+        if(end > frame.position() && frame.get(end - 1) == '\n') end--;
+        if(end > frame.position() && frame.get(end - 1) == '\r') end--;
+        frame.limit(end);
+        session.onLine(WireFormat.UTF8.decode(frame).toString(), responses);
+      }
+    }catch(Exception e){
+      context.getLog().error("Error: {0} occurs in stream {1} of: {2}", e, streamId,
+          session.getUsername());
+      session.close();
+    }
+    BufferPool pool = context.getBufferPool();
+    for(ByteBuffer response: responses){
+      /* Copied into a buffer of the pool holding the stream header as well */
+      ByteBuffer streamFrame = pool.acquire(HEADER_LENGTH + response.remaining());
+      write(streamId, response, streamFrame);
+      streamFrame.flip();
+      pool.release(response);
+      out.add(streamFrame);
+    }
+    if(!session.isAuthenticating()){
+      logins.remove(streamId);
+    }
+    if(session.isClosed()){
+      streams.remove(streamId);
+      out.add(frame(streamId, ByteBuffer.allocate(0)));
+    }
+  }
+
+  /**
+   * Close the streams that haven't logged in before their deadline
+   * @param out the frames to be sent back to client
+   */
+  private void expireLogins(List<ByteBuffer> out){
+    long now = System.nanoTime();
+    Iterator<Map.Entry<Integer, Long>> iterator = logins.entrySet().iterator();
+    while(iterator.hasNext()){
+      Map.Entry<Integer, Long> login = iterator.next();
+      if(login.getValue() - now > 0){
+        /* The later streams have later deadlines */
+        return;
+      }
+      iterator.remove();
+      int streamId = login.getKey();
+      ServerSession session = streams.remove(streamId);
+      context.getLog().info("Stream {0} has not logged in in time", streamId);
+      session.close();
+      out.add(frame(streamId, ByteBuffer.allocate(0)));
+    }
+  }
+
+  /**
+   * Number of open streams
+   * @return
+   */
+  public int size(){
+    return streams.size();
+  }
+
+  /**
+   * Close all streams
+   */
+  public void close(){
+    for(ServerSession session: streams.values()){
+      session.close();
+    }
+    streams.clear();
+    logins.clear();
+  }
+
+  /**
+   * Wrap stream message into stream frame
+   * @param streamId
+   * @param payload
+   * @return
+   */
+  public static ByteBuffer frame(int streamId, ByteBuffer payload){
+    ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.remaining());
+    write(streamId, payload, frame);
+    frame.flip();
+    return frame;
+  }
+
+  private static void write(int streamId, ByteBuffer payload, ByteBuffer frame){
+    frame.putInt(4 + payload.remaining());
+    frame.putInt(streamId);
+    frame.put(payload);
+  }
+}
@@ -0,0 +1,688 @@
+package hussachai.osu.cs5243;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLSession;
+
+import com.typesafe.config.Config;
+
+/**
+ * Non-blocking server engine.
+ * One acceptor thread hands accepted channels to a small fixed pool of event loops.
+ * Each event loop multiplexes its connections on one {@link Selector} and speaks
+ * TLS through {@link SSLEngine}. The protocol itself is served by {@link ServerSession},
+ * so clients cannot tell this engine from the thread per connection one.
+ *
+ * The network and application buffers belong to the event loop, not to the
+ * connection. A connection only keeps the bytes that couldn't be processed yet
+ * (partial TLS record, partial line or unwritten output) in buffers of
+ * {@link BufferPool}, so an idle connection costs almost nothing. A frame that
+ * arrives whole in one TLS record is parsed where it has been unwrapped, and the
+ * responses are wrapped together straight from the pooled buffers they have been
+ * encrypted into.
+ *
+ * The CPU-heavy tasks of TLS handshakes (key exchange and signature) run on
+ * {@link HandshakeStage}, not on the event loop. The connection stops reading until
+ * they are done and is then resumed by its event loop, so a burst of new
+ * connections doesn't delay the messages of the established ones.
+ *
+ * A connection that hasn't logged in within the handshake timeout is closed by
+ * its event loop, so clients that connect and never log in don't pile up.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class NioServerEngine {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private ServerContext context;
+
+  private int port;
+
+  private SSLContext sslContext;
+
+  private EventLoop eventLoops[];
+
+  /**
+   * Maximum length of the line or frame sent by client
+   */
+  private int maxMessageLength;
+
+  private BufferPool pool;
+
+  public NioServerEngine(ServerContext context, int port) throws Exception{
+    this.context = context;
+    Config config = context.getConfig();
+    this.port = port;
+    /* Shares the session cache with the other engines */
+    this.sslContext = context.getSslContext();
+    this.maxMessageLength = config.getBytes("server.maxMessageLength").intValue();
+    this.pool = context.getBufferPool();
+    int size = config.getInt("server.nio.eventLoops");
+    if(size <= 0){
+      size = Runtime.getRuntime().availableProcessors();
+    }
+    eventLoops = new EventLoop[size];
+  }
+
+  /**
+   * Start the event loops and accept the incoming connections
+   * on the calling thread.
+   * @throws Exception
+   */
+  public void start() throws Exception{
+    for(int i = 0; i < eventLoops.length; i++){
+      eventLoops[i] = new EventLoop(i);
+      eventLoops[i].start();
+    }
+    ServerSocketChannel serverChannel = ServerSocketChannel.open();
+    serverChannel.socket().bind(new InetSocketAddress(port), 1024);
+    context.getLog().info("Server started at {0} with {1} event loops",
+        new Date(), eventLoops.length);
+    int next = 0;
+    while(true){
+      SocketChannel channel = serverChannel.accept();
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      context.getMetrics().getConnections().increment();
+      /* Round robin between event loops */
+      eventLoops[next].register(channel);
+      next = (next + 1) % eventLoops.length;
+    }
+  }
+
+  /**
+   * Event loop thread serving many connections
+   */
+  private class EventLoop extends Thread {
+
+    private final Selector selector;
+
+    private final Queue<Accepted> pending = new ConcurrentLinkedQueue<>();
+
+    /* Connections whose handshake tasks have been run by handshake stage */
+    private final Queue<Connection> resumed = new ConcurrentLinkedQueue<>();
+
+    /* Buffers shared by all connections of this loop */
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+
+    private final List<ByteBuffer> responses = new ArrayList<>();
+
+    /* Connections that may still be logging in, in the order of their deadlines */
+    private final Queue<Connection> authenticating = new ArrayDeque<>();
+
+    /* Responses of connection being wrapped */
+    private ByteBuffer[] sources = new ByteBuffer[16];
+
+    EventLoop(int id) throws IOException{
+      super("nio-event-loop-"+id);
+      setDaemon(true);
+      selector = Selector.open();
+      SSLSession session = sslContext.createSSLEngine().getSession();
+      netIn = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+      netOut = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+      appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+    }
+
+    void register(SocketChannel channel){
+      pending.add(new Accepted(channel));
+      selector.wakeup();
+    }
+
+    @Override
+    public void run(){
+      while(true){
+        try{
+          selector.select(expireLogins());
+          Accepted accepted = null;
+          while((accepted = pending.poll()) != null){
+            context.getMetrics().getAccept().recordSince(accepted.time);
+            accept(accepted.channel);
+          }
+          Connection connection = null;
+          while((connection = resumed.poll()) != null){
+            resume(connection);
+          }
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while(keys.hasNext()){
+            SelectionKey key = keys.next();
+            keys.remove();
+            connection = (Connection)key.attachment();
+            try{
+              if(key.isValid() && key.isWritable()){
+                flush(connection);
+              }
+              if(key.isValid() && key.isReadable()){
+                read(connection);
+              }
+            }catch(Exception e){
+              context.getMetrics().getErrors().increment();
+              context.getLog().error("Error: {0} occurs during the conversion of: {1}",
+                  e, connection.session.getUsername());
+              connection.close();
+            }
+          }
+        }catch(Exception e){
+          context.getLog().error("Event loop error: {0}", e, e);
+        }
+      }
+    }
+
+    /**
+     * Close the connections that haven't logged in before their deadline
+     * @return milliseconds until the next deadline, 0 when there is none
+     */
+    private long expireLogins(){
+      long now = System.nanoTime();
+      Connection connection = null;
+      while((connection = authenticating.peek()) != null){
+        if(connection.closed || !connection.session.isAuthenticating()){
+          authenticating.poll();
+          continue;
+        }
+        long remaining = connection.loginDeadline - now;
+        if(remaining > 0){
+          /* At least a millisecond, 0 would wait forever */
+          return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+        }
+        authenticating.poll();
+        context.getLog().info("Client: {0} has not logged in in time", connection.address);
+        connection.close();
+      }
+      return 0;
+    }
+
+    private void accept(SocketChannel channel) throws IOException{
+      String address = channel.socket().getInetAddress().getHostAddress();
+      context.getLog().info("Client: {0} has established connection at {1}",
+          address, new Date());
+      SSLEngine engine = sslContext.createSSLEngine();
+      engine.setUseClientMode(false);
+      engine.setSSLParameters(context.getSslParameters());
+      Connection connection = new Connection(channel, engine, address);
+      authenticating.add(connection);
+      try{
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        engine.beginHandshake();
+      }catch(ClosedChannelException e){
+        connection.close();
+      }
+    }
+
+    /**
+     * Read TLS records from channel, unwrap them and feed lines to session
+     */
+    private void read(Connection connection) throws Exception{
+      netIn.clear();
+      if(connection.netIn != null){
+        netIn.put(connection.netIn);
+        pool.release(connection.netIn);
+        connection.netIn = null;
+      }
+      int read = connection.channel.read(netIn);
+      netIn.flip();
+      SSLEngine engine = connection.engine;
+      while(netIn.hasRemaining() && !connection.closed){
+        appIn.clear();
+        SSLEngineResult result = engine.unwrap(netIn, appIn);
+        appIn.flip();
+        if(appIn.hasRemaining()){
+          connection.consume(appIn, responses);
+        }
+        if(result.getStatus() == SSLEngineResult.Status.CLOSED){
+          connection.close();
+          return;
+        }
+        if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW){
+          appIn = ByteBuffer.allocate(Math.max(appIn.capacity() * 2,
+              engine.getSession().getApplicationBufferSize()));
+          continue;
+        }
+        if(result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW){
+          int packetSize = engine.getSession().getPacketBufferSize();
+          if(packetSize > netIn.capacity()){
+            ByteBuffer larger = ByteBuffer.allocateDirect(packetSize);
+            larger.put(netIn);
+            larger.flip();
+            netIn = larger;
+          }
+          break;
+        }
+        connection.checkHandshake(result);
+        if(runDelegatedTasks(connection, result.getHandshakeStatus())){
+          break;
+        }
+        if(engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP){
+          flush(connection);
+        }
+        if(result.bytesConsumed() == 0 && result.bytesProduced() == 0){
+          break;
+        }
+      }
+      if(connection.closed){
+        return;
+      }
+      if(netIn.hasRemaining()){
+        /* Keep the partial TLS record until the rest arrives */
+        connection.netIn = pool.acquire(netIn.remaining());
+        connection.netIn.put(netIn);
+        connection.netIn.flip();
+      }
+      flush(connection);
+      if(read < 0){
+        connection.close();
+      }
+    }
+
+    /**
+     * Wrap pending handshake data and responses and write them to channel.
+     * If the channel cannot take all of them, the rest is kept in connection
+     * and the connection waits for OP_WRITE.
+     */
+    private void flush(Connection connection) throws Exception{
+      if(connection.appOut.isEmpty()){
+        wrapAndWrite(connection);
+        return;
+      }
+      long start = System.nanoTime();
+      wrapAndWrite(connection);
+      context.getMetrics().getWrite().recordSince(start);
+    }
+
+    private void wrapAndWrite(Connection connection) throws Exception{
+      SSLEngine engine = connection.engine;
+      if(!connection.writeRemaining()){
+        return;
+      }
+      if(connection.handshakeTasks){
+        /* Nothing to do until the handshake stage is done with it */
+        connection.key.interestOps(0);
+        return;
+      }
+      while(!connection.closed){
+        HandshakeStatus status = engine.getHandshakeStatus();
+        if(status == HandshakeStatus.NEED_TASK){
+          if(runDelegatedTasks(connection, status)){
+            return;
+          }
+          continue;
+        }
+        boolean handshaking = status != HandshakeStatus.NOT_HANDSHAKING
+            && status != HandshakeStatus.FINISHED;
+        if(status != HandshakeStatus.NEED_WRAP &&
+            (handshaking || connection.appOut.isEmpty())){
+          break;
+        }
+        netOut.clear();
+        /* Gather as many responses as fit in one record */
+        int count = connection.appOut.size();
+        ByteBuffer[] array = connection.appOut.toArray(sources);
+        if(array != sources){
+          sources = array;
+        }
+        SSLEngineResult result = engine.wrap(sources, 0, count, netOut);
+        while(!connection.appOut.isEmpty() && !connection.appOut.peek().hasRemaining()){
+          pool.release(connection.appOut.poll());
+        }
+        connection.checkHandshake(result);
+        boolean offloaded = runDelegatedTasks(connection, result.getHandshakeStatus());
+        netOut.flip();
+        connection.channel.write(netOut);
+        if(netOut.hasRemaining()){
+          connection.netOut = pool.acquire(netOut.remaining());
+          connection.netOut.put(netOut);
+          connection.netOut.flip();
+          connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          return;
+        }
+        if(offloaded){
+          return;
+        }
+        if(result.getStatus() == SSLEngineResult.Status.CLOSED){
+          connection.closeChannel();
+          return;
+        }
+        if(result.bytesConsumed() == 0 && result.bytesProduced() == 0){
+          break;
+        }
+      }
+      if(connection.closed){
+        return;
+      }
+      connection.key.interestOps(SelectionKey.OP_READ);
+      if(connection.session.isClosed() && connection.appOut.isEmpty()){
+        connection.close();
+      }
+    }
+
+    /**
+     * Hand the delegated tasks of engine to handshake stage. The connection
+     * doesn't read or write until they are done and it's resumed.
+     * @return true when the tasks have been handed over
+     */
+    private boolean runDelegatedTasks(final Connection connection, HandshakeStatus status){
+      if(status != HandshakeStatus.NEED_TASK){
+        return false;
+      }
+      final List<Runnable> tasks = new ArrayList<>();
+      Runnable task = null;
+      while((task = connection.engine.getDelegatedTask()) != null){
+        tasks.add(task);
+      }
+      if(tasks.isEmpty()){
+        return false;
+      }
+      connection.handshakeTasks = true;
+      connection.key.interestOps(0);
+      context.getHandshakeStage().submit(connection.address, new Runnable(){
+        @Override
+        public void run(){
+          for(Runnable task: tasks){
+            task.run();
+          }
+          resumed.add(connection);
+          selector.wakeup();
+        }
+      }, new Runnable(){
+        @Override
+        public void run(){
+          connection.rejected = true;
+          resumed.add(connection);
+          selector.wakeup();
+        }
+      });
+      return true;
+    }
+
+    /**
+     * Continue the handshake of connection whose tasks are done
+     */
+    private void resume(Connection connection){
+      connection.handshakeTasks = false;
+      if(connection.closed){
+        return;
+      }
+      if(connection.rejected){
+        connection.close();
+        return;
+      }
+      try{
+        connection.key.interestOps(SelectionKey.OP_READ);
+        /* Unwrap what arrived meanwhile and wrap what the handshake needs to send */
+        read(connection);
+      }catch(Exception e){
+        context.getMetrics().getErrors().increment();
+        context.getLog().error("Error: {0} occurs during the conversion of: {1}",
+            e, connection.session.getUsername());
+        connection.close();
+      }
+    }
+  }
+
+  /**
+   * Channel accepted by acceptor and waiting for its event loop
+   */
+  private static class Accepted {
+
+    private final SocketChannel channel;
+
+    private final long time = System.nanoTime();
+
+    Accepted(SocketChannel channel){
+      this.channel = channel;
+    }
+  }
+
+  /**
+   * State of one client connection
+   */
+  private class Connection {
+
+    private final SocketChannel channel;
+
+    private final SSLEngine engine;
+
+    private final String address;
+
+    private final ServerSession session;
+
+    private SelectionKey key;
+
+    /* Partial TLS record that has been read but not unwrapped */
+    private ByteBuffer netIn;
+
+    /* TLS records that have been wrapped but not written */
+    private ByteBuffer netOut;
+
+    /* Responses waiting to be wrapped */
+    private final Queue<ByteBuffer> appOut = new ArrayDeque<>();
+
+    /* Partial line or frame, in write mode */
+    private ByteBuffer pending;
+
+    /* Length of the frame being read or -1 when its length field hasn't arrived */
+    private int frameLength = -1;
+
+    private boolean closed;
+
+    /* Whether the handshake stage is running tasks of engine, and whether it has rejected them */
+    private volatile boolean handshakeTasks;
+    private volatile boolean rejected;
+
+    /* When TLS handshake started, for the handshake metrics */
+    private final long handshakeStartMillis = System.currentTimeMillis();
+    private final long handshakeStart = System.nanoTime();
+    private boolean handshakeRecorded;
+
+    /* When the connection is closed unless it has logged in */
+    private final long loginDeadline = handshakeStart
+        + TimeUnit.MILLISECONDS.toNanos(context.getHandshakeStage().getTimeoutMillis());
+
+    Connection(SocketChannel channel, SSLEngine engine, String address){
+      this.channel = channel;
+      this.engine = engine;
+      this.address = address;
+      this.session = new ServerSession(context);
+    }
+
+    /**
+     * Record the handshake when the result of wrap or unwrap has finished it
+     */
+    void checkHandshake(SSLEngineResult result){
+      if(handshakeRecorded || result.getHandshakeStatus() != HandshakeStatus.FINISHED){
+        return;
+      }
+      handshakeRecorded = true;
+      long nanos = System.nanoTime() - handshakeStart;
+      boolean resumed = TlsSupport.isResumed(engine.getSession(), handshakeStartMillis);
+      context.getMetrics().recordHandshake(resumed, nanos);
+      context.getLog().info("TLS handshake of {0} {1} in {2} ms", address,
+          resumed ? "resumed" : "full", nanos / 1000000);
+    }
+
+    /**
+     * Split application data into lines or frames, depending on the
+     * format of session, and feed them to session
+     */
+    void consume(ByteBuffer data, List<ByteBuffer> responses) throws Exception{
+      while(data.hasRemaining() && !session.isClosed()){
+        responses.clear();
+        if(session.getWireFormat() == WireFormat.BINARY){
+          consumeFrame(data, responses);
+        }else{
+          consumeLine(data, responses);
+        }
+        appOut.addAll(responses);
+      }
+      if(pending != null && pending.position() == 0){
+        pool.release(pending);
+        pending = null;
+      }
+    }
+
+    private void consumeLine(ByteBuffer data, List<ByteBuffer> responses) throws Exception{
+      int end = data.position();
+      while(end < data.limit() && data.get(end) != '\n'){
+        end++;
+      }
+      ensurePending(pendingLength() + end - data.position());
+      transfer(data, end);
+      if(!data.hasRemaining()){
+        return;
+      }
+      /* Skip line terminator */
+      data.get();
+      int length = pending.position();
+      if(length > 0 && pending.get(length - 1) == '\r') length--;
+      pending.flip().limit(length);
+      String request = UTF8.decode(pending).toString();
+      pending.clear();
+      session.onLine(request, responses);
+    }
+
+    private void consumeFrame(ByteBuffer data, List<ByteBuffer> responses) throws Exception{
+      if(pendingLength() == 0 && data.remaining() >= SecureMessage.FRAME_HEADER_LENGTH){
+        int start = data.position();
+        int length = checkFrameLength(data.getInt(start));
+        int end = start + SecureMessage.FRAME_HEADER_LENGTH + length;
+        if(end <= data.limit()){
+          /* The whole frame is here, parse it where it has been unwrapped */
+          int limit = data.limit();
+          data.limit(end).position(start + SecureMessage.FRAME_HEADER_LENGTH);
+          try{
+            session.onFrame(data, responses);
+          }finally{
+            data.limit(limit).position(end);
+          }
+          return;
+        }
+      }
+      while(data.hasRemaining()){
+        int total = SecureMessage.FRAME_HEADER_LENGTH + Math.max(frameLength, 0);
+        int n = Math.min(total - pendingLength(), data.remaining());
+        ensurePending(pendingLength() + n);
+        transfer(data, data.position() + n);
+        if(frameLength == -1 && pendingLength() == SecureMessage.FRAME_HEADER_LENGTH){
+          frameLength = checkFrameLength(pending.getInt(0));
+        }
+        if(frameLength != -1 && pendingLength() == SecureMessage.FRAME_HEADER_LENGTH + frameLength){
+          pending.flip().position(SecureMessage.FRAME_HEADER_LENGTH);
+          frameLength = -1;
+          try{
+            session.onFrame(pending, responses);
+          }finally{
+            pending.clear();
+          }
+          return;
+        }
+      }
+    }
+
+    private int checkFrameLength(int length) throws IOException{
+      if(length < 0 || length > maxMessageLength){
+        throw new IOException("Frame is longer than "+maxMessageLength+" bytes");
+      }
+      return length;
+    }
+
+    private int pendingLength(){
+      return pending == null ? 0 : pending.position();
+    }
+
+    /**
+     * Move the bytes of data up to end into pending
+     */
+    private void transfer(ByteBuffer data, int end){
+      int limit = data.limit();
+      data.limit(end);
+      pending.put(data);
+      data.limit(limit);
+    }
+
+    private void ensurePending(int size) throws IOException{
+      if(size > maxMessageLength + SecureMessage.FRAME_HEADER_LENGTH){
+        throw new IOException("Message is longer than "+maxMessageLength+" bytes");
+      }
+      if(pending == null){
+        pending = pool.acquire(size);
+      }else if(size > pending.capacity()){
+        pending = pool.grow(pending, size);
+      }
+    }
+
+    /**
+     * Write TLS records left over from the last flush
+     * @return true when nothing is left
+     */
+    boolean writeRemaining() throws IOException{
+      if(netOut == null) return true;
+      channel.write(netOut);
+      if(netOut.hasRemaining()){
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return false;
+      }
+      pool.release(netOut);
+      netOut = null;
+      return true;
+    }
+
+    void close(){
+      if(closed) return;
+      closed = true;
+      session.close();
+      engine.closeOutbound();
+      closeChannel();
+      context.getLog().info("Ending connection of {0}", address);
+      context.getLog().info("Disconnected: {0} at {1}", session.getUsername(), new Date());
+    }
+
+    /**
+     * Give the buffers of closed connection back to the pool
+     */
+    private void releaseBuffers(){
+      pool.release(netIn);
+      pool.release(netOut);
+      pool.release(pending);
+      netIn = null;
+      netOut = null;
+      pending = null;
+      ByteBuffer response = null;
+      while((response = appOut.poll()) != null){
+        pool.release(response);
+      }
+    }
+
+    void closeChannel(){
+      try{
+        if(key != null) key.cancel();
+        channel.close();
+      }catch(IOException e){
+        context.getLog().error("Channel cannot be closed: {0}", e, e);
+      }
+      releaseBuffers();
+    }
+  }
+}
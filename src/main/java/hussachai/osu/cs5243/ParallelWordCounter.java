@@ -0,0 +1,288 @@
+package hussachai.osu.cs5243;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import com.typesafe.config.Config;
+
+/**
+ * Word counter that splits large text into ranges and counts them in parallel
+ * on a shared {@link ForkJoinPool}. Texts shorter than the threshold are counted
+ * serially on the calling thread, so short lines never pay for the hand-off.
+ * 
+ * When a word straddles the boundary of two ranges, both ranges count it.
+ * The merge subtracts one for each boundary where the left range ends inside
+ * a word and the right range starts inside a word. Ranges are never split
+ * between the two halves of a surrogate pair.
+ * 
+ * This class is thread-safe.
+ * 
+ * @author hussachai (http://www.siberhus.com) 
+ *
+ */
+public class ParallelWordCounter {
+  
+  /**
+   * The smallest range counted by one task
+   */
+  private static final int MIN_RANGE = 64 * 1024;
+  
+  private final ForkJoinPool pool;
+  
+  /**
+   * Texts of at least this many characters are counted in parallel
+   */
+  private final int threshold;
+  
+  /**
+   * @param parallelism the number of worker threads, 0 for the number of processors
+   * @param threshold
+   */
+  public ParallelWordCounter(int parallelism, int threshold){
+    if(parallelism <= 0){
+      parallelism = Runtime.getRuntime().availableProcessors();
+    }
+    this.pool = new ForkJoinPool(parallelism);
+    this.threshold = threshold;
+  }
+  
+  /**
+   * Create counter from counter section of server configuration
+   * @param config
+   * @return
+   */
+  public static ParallelWordCounter fromConfig(Config config){
+    return new ParallelWordCounter(config.getInt("counter.parallelism"),
+        config.getInt("counter.parallelThreshold"));
+  }
+  
+  /**
+   * Count the whole text
+   * @param text
+   * @return
+   */
+  public WordCount count(CharSequence text){
+    return count(text, 0, text.length());
+  }
+  
+  /**
+   * Count the characters of text from start (inclusive) to end (exclusive)
+   * @param text
+   * @param start
+   * @param end
+   * @return
+   */
+  public WordCount count(CharSequence text, int start, int end){
+    if(end - start < threshold){
+      return new WordCounter().update(text, start, end).result();
+    }
+    int range = Math.max(MIN_RANGE, (end - start) / (pool.getParallelism() * 4));
+    Segment segment = pool.invoke(new CountTask(text, start, end, range));
+    return new WordCount(segment.words, segment.characters);
+  }
+  
+  /**
+   * Count UTF-8 bytes from start (inclusive) to end (exclusive) without decoding
+   * them. Ranges counted in parallel start at the first byte of a code point.
+   * @param bytes
+   * @param start
+   * @param end
+   * @return the count or null when the bytes are not well-formed UTF-8
+   */
+  public WordCount count(byte[] bytes, int start, int end){
+    if(end - start < threshold){
+      return Utf8Counter.count(bytes, start, end);
+    }
+    int range = Math.max(MIN_RANGE, (end - start) / (pool.getParallelism() * 4));
+    Segment segment = pool.invoke(new ByteCountTask(ByteBuffer.wrap(bytes), start, end, range));
+    return segment.malformed ? null : new WordCount(segment.words, segment.characters);
+  }
+  
+  /**
+   * Count many documents of text. When all of them together are at least as long
+   * as the threshold, groups of documents are counted in parallel.
+   * @param text
+   * @param ranges start (inclusive) and end (exclusive) of each document, one pair after another
+   * @return the count of each document
+   */
+  public WordCount[] countAll(CharSequence text, int[] ranges){
+    WordCount[] counts = new WordCount[ranges.length / 2];
+    long total = 0;
+    for(int i = 0; i < ranges.length; i += 2){
+      total += ranges[i + 1] - ranges[i];
+    }
+    if(total < threshold || counts.length < 2){
+      for(int i = 0; i < counts.length; i++){
+        counts[i] = count(text, ranges[i * 2], ranges[i * 2 + 1]);
+      }
+      return counts;
+    }
+    long range = Math.max(MIN_RANGE, total / (pool.getParallelism() * 4));
+    pool.invoke(new BatchTask(text, ranges, counts, 0, counts.length, range));
+    return counts;
+  }
+  
+  public int getThreshold(){
+    return threshold;
+  }
+  
+  /**
+   * Count of one range of text
+   */
+  static class Segment {
+    
+    long words;
+    long characters;
+    /* Whether the first and the last character are part of a word */
+    boolean startsInWord;
+    boolean endsInWord;
+    /* Whether UTF-8 bytes of the range are not well-formed */
+    boolean malformed;
+    
+    /**
+     * Count of range counted by counter
+     */
+    static Segment of(Utf8Counter counter){
+      Segment segment = new Segment();
+      segment.words = counter.getWords();
+      segment.characters = counter.getCharacters();
+      segment.startsInWord = counter.startsInWord();
+      segment.endsInWord = counter.endsInWord();
+      segment.malformed = counter.isMalformed();
+      return segment;
+    }
+    
+    Segment merge(Segment right){
+      Segment merged = new Segment();
+      merged.words = words + right.words;
+      if(endsInWord && right.startsInWord){
+        /* The word straddling the boundary has been counted by both sides */
+        merged.words--;
+      }
+      merged.characters = characters + right.characters;
+      merged.startsInWord = characters == 0 ? right.startsInWord : startsInWord;
+      merged.endsInWord = right.characters == 0 ? endsInWord : right.endsInWord;
+      merged.malformed = malformed || right.malformed;
+      return merged;
+    }
+  }
+  
+  /**
+   * Count of a group of documents, split in two groups while they are longer
+   * than range. A document longer than threshold is counted in parallel itself.
+   */
+  private class BatchTask extends RecursiveAction {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final CharSequence text;
+    private final int[] ranges;
+    private final WordCount[] counts;
+    private final int from;
+    private final int to;
+    private final long range;
+    
+    BatchTask(CharSequence text, int[] ranges, WordCount[] counts, int from, int to, long range){
+      this.text = text;
+      this.ranges = ranges;
+      this.counts = counts;
+      this.from = from;
+      this.to = to;
+      this.range = range;
+    }
+    
+    @Override
+    protected void compute(){
+      long length = ranges[to * 2 - 1] - ranges[from * 2];
+      if(to - from == 1 || length <= range){
+        for(int i = from; i < to; i++){
+          counts[i] = count(text, ranges[i * 2], ranges[i * 2 + 1]);
+        }
+        return;
+      }
+      int middle = from + (to - from) / 2;
+      invokeAll(new BatchTask(text, ranges, counts, from, middle, range),
+          new BatchTask(text, ranges, counts, middle, to, range));
+    }
+  }
+  
+  private static class CountTask extends RecursiveTask<Segment> {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final CharSequence text;
+    private final int start;
+    private final int end;
+    private final int range;
+    
+    CountTask(CharSequence text, int start, int end, int range){
+      this.text = text;
+      this.start = start;
+      this.end = end;
+      this.range = range;
+    }
+    
+    @Override
+    protected Segment compute(){
+      if(end - start <= range){
+        WordCounter counter = new WordCounter().update(text, start, end);
+        Segment segment = new Segment();
+        segment.words = counter.getWords();
+        segment.characters = counter.getCharacters();
+        if(start < end){
+          segment.startsInWord = !WordCounter.isWhitespace(text.charAt(start));
+          segment.endsInWord = !WordCounter.isWhitespace(text.charAt(end - 1));
+        }
+        return segment;
+      }
+      int middle = start + (end - start) / 2;
+      if(Character.isLowSurrogate(text.charAt(middle)) 
+          && Character.isHighSurrogate(text.charAt(middle - 1))){
+        middle++;
+      }
+      CountTask left = new CountTask(text, start, middle, range);
+      CountTask right = new CountTask(text, middle, end, range);
+      left.fork();
+      Segment rightSegment = right.compute();
+      return left.join().merge(rightSegment);
+    }
+  }
+  
+  /**
+   * Count of a range of UTF-8 bytes, split in two at the first byte of a code point
+   */
+  private static class ByteCountTask extends RecursiveTask<Segment> {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final ByteBuffer bytes;
+    private final int start;
+    private final int end;
+    private final int range;
+    
+    ByteCountTask(ByteBuffer bytes, int start, int end, int range){
+      this.bytes = bytes;
+      this.start = start;
+      this.end = end;
+      this.range = range;
+    }
+    
+    @Override
+    protected Segment compute(){
+      if(end - start <= range){
+        return Segment.of(new Utf8Counter().update(bytes, start, end));
+      }
+      int middle = start + (end - start) / 2;
+      for(int i = 0; i < 3 && (bytes.get(middle) & 0xC0) == 0x80; i++){
+        middle++;
+      }
+      ByteCountTask left = new ByteCountTask(bytes, start, middle, range);
+      ByteCountTask right = new ByteCountTask(bytes, middle, end, range);
+      left.fork();
+      Segment rightSegment = right.compute();
+      return left.join().merge(rightSegment);
+    }
+  }
+}
@@ -0,0 +1,241 @@
+package hussachai.osu.cs5243;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decrypted request sent by client.
+ * A plain sentence is a count request, as it has always been. Other requests
+ * are commands which start with {@link #MARK}, a control character that
+ * cannot be typed as a sentence:
+ * <pre>
+ * MARK COMMAND [ARGUMENTS] [\n BODY]
+ * </pre>
+ * The body is never copied out of the request text. Counting works on
+ * the range from {@link #getBodyStart()} to the end of {@link #getText()}.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class Request {
+
+  /**
+   * The first character of command
+   */
+  public static final char MARK = '\u0001';
+
+  /**
+   * A piece of streamed document. The server counts it without replying.
+   */
+  public static final String CHUNK = "CHUNK";
+
+  /**
+   * The end of streamed document. The server replies with the count of all chunks.
+   */
+  public static final String END = "END";
+
+  /**
+   * Frequency of every distinct word of the body
+   */
+  public static final String FREQ = "FREQ";
+
+  /**
+   * The most frequent words of the body. The argument is the number of words.
+   */
+  public static final String TOP = "TOP";
+
+  /**
+   * Numbered count request used by pipelining clients. The argument is the
+   * sequence number and the reply is SEQ command with the same number
+   * and the count as body.
+   */
+  public static final String SEQ = "SEQ";
+
+  /**
+   * Many documents counted in one request. The body is every document preceded by
+   * its length in characters and a colon, e.g. "11:hello world3:a b". The argument
+   * is an optional sequence number like the one of {@link #SEQ}. The reply is BATCH
+   * command with the same argument and the count of each document on its own line.
+   */
+  public static final String BATCH = "BATCH";
+
+  /**
+   * The next piece of the document whose running totals the session keeps.
+   * Pieces are counted as if they were one text, so a word split between two
+   * pieces is counted once. The reply is the totals so far.
+   * See {@link RunningTotals}.
+   */
+  public static final String ADD = "ADD";
+
+  /**
+   * The running totals of session. The optional argument is the number of most
+   * frequent words listed after them.
+   */
+  public static final String TOTAL = "TOTAL";
+
+  /**
+   * Clear the running totals. With "freq" argument the following pieces are
+   * also counted by word, otherwise word frequencies are not kept.
+   */
+  public static final String RESET = "RESET";
+
+  /**
+   * Running totals in the form accepted by {@link #RESTORE}. The reply is
+   * SNAPSHOT command with the snapshot as body.
+   */
+  public static final String SNAPSHOT = "SNAPSHOT";
+
+  /**
+   * Continue the running totals from the snapshot in the body, e.g. after
+   * reconnecting. The reply is the restored totals.
+   */
+  public static final String RESTORE = "RESTORE";
+
+  /**
+   * Sent as the first line of connection instead of username to carry many
+   * streams over the connection. See {@link MultiplexedSession}.
+   */
+  public static final String MUX = "MUX";
+
+  private final String text;
+
+  private final String command;
+
+  private final String arguments;
+
+  private final int bodyStart;
+
+  private Request(String text, String command, String arguments, int bodyStart){
+    this.text = text;
+    this.command = command;
+    this.arguments = arguments;
+    this.bodyStart = bodyStart;
+  }
+
+  /**
+   * Parse decrypted text to request
+   * @param text
+   * @return
+   */
+  public static Request parse(String text){
+    if(text.isEmpty() || text.charAt(0) != MARK){
+      return new Request(text, null, null, 0);
+    }
+    int newline = text.indexOf('\n');
+    int headerEnd = newline == -1 ? text.length() : newline;
+    int bodyStart = newline == -1 ? text.length() : newline + 1;
+    int space = text.indexOf(' ');
+    if(space == -1 || space > headerEnd){
+      return new Request(text, text.substring(1, headerEnd), null, bodyStart);
+    }
+    return new Request(text, text.substring(1, space),
+        text.substring(space + 1, headerEnd), bodyStart);
+  }
+
+  /**
+   * Build command text
+   * @param command
+   * @param arguments optional arguments
+   * @param body optional body
+   * @return
+   */
+  public static String command(String command, String arguments, String body){
+    StringBuilder text = new StringBuilder((body == null ? 0 : body.length()) + 16);
+    text.append(MARK).append(command);
+    if(arguments != null){
+      text.append(' ').append(arguments);
+    }
+    if(body != null){
+      text.append('\n').append(body);
+    }
+    return text.toString();
+  }
+
+  /**
+   * Build batch command
+   * @param arguments optional arguments
+   * @param documents
+   * @return
+   */
+  public static String batch(String arguments, List<String> documents){
+    int length = 0;
+    for(String document: documents){
+      length += document.length() + 8;
+    }
+    StringBuilder body = new StringBuilder(length);
+    for(String document: documents){
+      body.append(document.length()).append(':').append(document);
+    }
+    return command(BATCH, arguments, body.toString());
+  }
+
+  /**
+   * Documents of batch body
+   * @return start (inclusive) and end (exclusive) index of each document in text,
+   * one pair after another
+   * @throws IllegalArgumentException when the body is not a valid batch
+   */
+  public int[] getDocuments(){
+    int[] ranges = new int[16];
+    int size = 0;
+    int i = bodyStart;
+    int end = text.length();
+    while(i < end){
+      int digitsStart = i;
+      long length = 0;
+      char c = 0;
+      while(i < end && (c = text.charAt(i)) >= '0' && c <= '9'){
+        length = length * 10 + (c - '0');
+        i++;
+        /* Stop before it can overflow, the document must fit in the rest of text */
+        if(length > end - i){
+          throw new IllegalArgumentException("Malformed batch at index "+(digitsStart - bodyStart));
+        }
+      }
+      if(i == digitsStart || i == end || text.charAt(i) != ':'
+          || length < 0 || length > end - i - 1){
+        throw new IllegalArgumentException("Malformed batch at index "+(i - bodyStart));
+      }
+      i++;
+      if(size == ranges.length){
+        ranges = Arrays.copyOf(ranges, size * 2);
+      }
+      ranges[size++] = i;
+      ranges[size++] = i + (int)length;
+      i += (int)length;
+    }
+    return Arrays.copyOf(ranges, size);
+  }
+
+  /**
+   * Command name or null when it's a plain count request
+   * @return
+   */
+  public String getCommand(){
+    return command;
+  }
+
+  public boolean isCommand(){
+    return command != null;
+  }
+
+  public String getArguments(){
+    return arguments;
+  }
+
+  /**
+   * The whole decrypted text
+   * @return
+   */
+  public String getText(){
+    return text;
+  }
+
+  /**
+   * Index of the first body character in text
+   * @return
+   */
+  public int getBodyStart(){
+    return bodyStart;
+  }
+}
@@ -0,0 +1,549 @@
+package hussachai.osu.cs5243;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.typesafe.config.Config;
+
+/**
+ * Cache of the counts of texts that clients send again and again (templates, retries).
+ * The key is a seeded 64-bit hash of the text and its length. It's fast but not
+ * cryptographic: whatever the seed, clients can craft texts with the same hash, so
+ * the hash only finds the entry and never proves a hit. Texts up to verifyLength
+ * characters are kept and compared on lookup. Longer ones are kept as their
+ * HMAC-SHA256 digest under a key random per process, which is computed again on
+ * lookup, so a hit on a large document costs a pass of hashing and digesting instead
+ * of counting it again (in parallel, for the largest ones). Crafted collisions of
+ * the hash can then only push another text out of the cache, never return its count.
+ *
+ * Messages counted on their UTF-8 bytes are keyed by a hash of the bytes with
+ * another seed and verified the same way, by their bytes or their digest.
+ * They never match a text.
+ *
+ * The cache is bounded by the memory of its entries and uses the W-TinyLFU policy:
+ * new entries enter a small LRU window, and an entry leaving the window only replaces
+ * the LRU victim of the main region when it has been asked for more often, as told by
+ * a count-min sketch of recent lookups. One-off texts therefore never flush out
+ * the popular ones.
+ *
+ * The cache is split into segments by hash, each with its own lock, so sessions
+ * rarely wait for each other. This class is thread-safe.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class ResultCache {
+
+  /**
+   * Number of segments, a power of two
+   */
+  private static final int SEGMENTS = 16;
+
+  /**
+   * Estimated memory of an entry besides the text it keeps
+   */
+  private static final int ENTRY_OVERHEAD = 96;
+
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+
+  private final long seed = new SecureRandom().nextLong();
+
+  /**
+   * Key of the digests of the texts kept as their digest only
+   */
+  private final SecretKeySpec digestKey;
+
+  private final ThreadLocal<Digester> digesters = new ThreadLocal<Digester>(){
+    @Override
+    protected Digester initialValue(){
+      return new Digester(digestKey);
+    }
+  };
+
+  private final int minLength;
+
+  private final int verifyLength;
+
+  private final StripedCounter hits;
+  private final StripedCounter misses;
+  private final StripedCounter evictions;
+
+  /**
+   * @param maxSize the memory of all entries in bytes
+   * @param minLength shorter texts are not cached
+   * @param verifyLength texts up to this length are kept and compared on lookup
+   * @param metrics where hits, misses and evictions are counted
+   */
+  public ResultCache(long maxSize, int minLength, int verifyLength, Metrics metrics){
+    for(int i = 0; i < SEGMENTS; i++){
+      segments[i] = new Segment(maxSize / SEGMENTS);
+    }
+    this.minLength = minLength;
+    this.verifyLength = verifyLength;
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    this.digestKey = new SecretKeySpec(key, CryptoContext.HMAC_ALGORITHM);
+    this.hits = metrics.getCacheHits();
+    this.misses = metrics.getCacheMisses();
+    this.evictions = metrics.getCacheEvictions();
+  }
+
+  /**
+   * Create cache from resultCache section of server configuration
+   * @param config
+   * @param metrics
+   * @return the cache or null when it's disabled
+   */
+  public static ResultCache fromConfig(Config config, Metrics metrics){
+    if(!config.getBoolean("resultCache.enabled")){
+      return null;
+    }
+    return new ResultCache(config.getBytes("resultCache.maxSize"),
+        config.getInt("resultCache.minLength"), config.getInt("resultCache.verifyLength"), metrics);
+  }
+
+  /**
+   * Count the characters of text from start (inclusive) to end (exclusive)
+   * or return the count of the same text counted before
+   * @param text
+   * @param start
+   * @param end
+   * @param counter counts the text on miss
+   * @return
+   */
+  public WordCount count(CharSequence text, int start, int end, ParallelWordCounter counter){
+    int length = end - start;
+    if(length < minLength){
+      return counter.count(text, start, end);
+    }
+    long hash = hash(text, start, end, seed);
+    WordCount count = lookup(hash, text, start, end);
+    if(count == null){
+      count = counter.count(text, start, end);
+      store(hash, text, start, end, count);
+    }
+    return count;
+  }
+
+  /**
+   * Count UTF-8 bytes from start (inclusive) to end (exclusive) or return the count
+   * of the same bytes counted before. Bytes are keyed apart from texts.
+   * @param bytes
+   * @param start
+   * @param end
+   * @param counter counts the bytes on miss
+   * @return the count or null when the bytes are not well-formed UTF-8
+   */
+  public WordCount count(byte[] bytes, int start, int end, ParallelWordCounter counter){
+    int length = end - start;
+    if(length < minLength){
+      return counter.count(bytes, start, end);
+    }
+    long hash = hash(bytes, start, end, ~seed);
+    Segment segment = segment(hash);
+    Node node = segment.get(hash);
+    if(node != null && node.matches(bytes, start, end, digesters.get())){
+      hits.increment();
+      return node.count;
+    }
+    misses.increment();
+    WordCount count = counter.count(bytes, start, end);
+    if(count != null){
+      if(length <= verifyLength){
+        node = new Node(hash, length, Arrays.copyOfRange(bytes, start, end), null, count);
+      }else{
+        node = new Node(hash, length, (byte[])null, digesters.get().digest(bytes, start, end), count);
+      }
+      segment.put(node);
+    }
+    return count;
+  }
+
+  /**
+   * Count many documents of text. The documents that are not in cache are
+   * counted together, in parallel when that helps.
+   * @param text
+   * @param ranges start (inclusive) and end (exclusive) of each document, one pair after another
+   * @param counter counts the documents that are not in cache
+   * @return the count of each document
+   */
+  public WordCount[] countAll(CharSequence text, int[] ranges, ParallelWordCounter counter){
+    WordCount[] counts = new WordCount[ranges.length / 2];
+    long[] hashes = new long[counts.length];
+    int[] missed = new int[ranges.length];
+    int size = 0;
+    for(int i = 0; i < counts.length; i++){
+      int start = ranges[i * 2];
+      int end = ranges[i * 2 + 1];
+      if(end - start >= minLength){
+        hashes[i] = hash(text, start, end, seed);
+        counts[i] = lookup(hashes[i], text, start, end);
+      }
+      if(counts[i] == null){
+        missed[size++] = start;
+        missed[size++] = end;
+      }
+    }
+    if(size == 0){
+      return counts;
+    }
+    WordCount[] counted = counter.countAll(text, Arrays.copyOf(missed, size));
+    for(int i = 0, j = 0; i < counts.length; i++){
+      if(counts[i] != null) continue;
+      counts[i] = counted[j++];
+      int start = ranges[i * 2];
+      int end = ranges[i * 2 + 1];
+      if(end - start >= minLength){
+        store(hashes[i], text, start, end, counts[i]);
+      }
+    }
+    return counts;
+  }
+
+  private WordCount lookup(long hash, CharSequence text, int start, int end){
+    /* Compared out of the segment lock, nodes never change */
+    Node node = segment(hash).get(hash);
+    if(node != null && node.matches(text, start, end, digesters.get())){
+      hits.increment();
+      return node.count;
+    }
+    misses.increment();
+    return null;
+  }
+
+  private void store(long hash, CharSequence text, int start, int end, WordCount count){
+    int length = end - start;
+    Node node = null;
+    if(length <= verifyLength){
+      node = new Node(hash, length, text.subSequence(start, end).toString(), null, count);
+    }else{
+      node = new Node(hash, length, (String)null, digesters.get().digest(text, start, end), count);
+    }
+    segment(hash).put(node);
+  }
+
+  private Segment segment(long hash){
+    return segments[(int)(hash >>> 60) & (SEGMENTS - 1)];
+  }
+
+  /**
+   * Memory used by entries in bytes
+   * @return
+   */
+  public long getWeight(){
+    long weight = 0;
+    for(Segment segment: segments){
+      weight += segment.getWeight();
+    }
+    return weight;
+  }
+
+  @Override
+  public String toString(){
+    return "ResultCache[weight="+getWeight()+", hits="+hits+", misses="+misses+
+        ", evictions="+evictions+"]";
+  }
+
+  /**
+   * 64-bit hash of text reading four characters per step, with the mixing
+   * functions of MurmurHash3
+   */
+  static long hash(CharSequence text, int start, int end, long seed){
+    long h = seed ^ ((end - start) * C1);
+    int i = start;
+    for(; i + 3 < end; i += 4){
+      long block = text.charAt(i) | (long)text.charAt(i + 1) << 16
+          | (long)text.charAt(i + 2) << 32 | (long)text.charAt(i + 3) << 48;
+      h ^= Long.rotateLeft(block * C1, 31) * C2;
+      h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+    }
+    long tail = 0;
+    for(int shift = 0; i < end; i++, shift += 16){
+      tail |= (long)text.charAt(i) << shift;
+    }
+    h ^= Long.rotateLeft(tail * C1, 31) * C2;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * 64-bit hash of bytes reading eight bytes per step, with the same mixing
+   * functions as the hash of text
+   */
+  static long hash(byte[] bytes, int start, int end, long seed){
+    long h = seed ^ ((end - start) * C1);
+    ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    int i = start;
+    for(; i + 7 < end; i += 8){
+      h ^= Long.rotateLeft(buffer.getLong(i) * C1, 31) * C2;
+      h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+    }
+    long tail = 0;
+    for(int shift = 0; i < end; i++, shift += 8){
+      tail |= (long)(bytes[i] & 0xFF) << shift;
+    }
+    h ^= Long.rotateLeft(tail * C1, 31) * C2;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Cached count
+   */
+  private static class Node {
+
+    private final long hash;
+    private final int length;
+    /* The text, the bytes or null when only the digest is kept */
+    private final String text;
+    private final byte[] bytes;
+    /* Keyed digest of the text or bytes kept as their digest only */
+    private final byte[] digest;
+    /* Whether it's the count of UTF-8 bytes */
+    private final boolean utf8;
+    private final WordCount count;
+    private final int weight;
+
+    Node(long hash, int length, String text, byte[] digest, WordCount count){
+      this.hash = hash;
+      this.length = length;
+      this.text = text;
+      this.bytes = null;
+      this.digest = digest;
+      this.utf8 = false;
+      this.count = count;
+      this.weight = ENTRY_OVERHEAD + (text == null ? 0 : text.length() * 2);
+    }
+
+    Node(long hash, int length, byte[] bytes, byte[] digest, WordCount count){
+      this.hash = hash;
+      this.length = length;
+      this.text = null;
+      this.bytes = bytes;
+      this.digest = digest;
+      this.utf8 = true;
+      this.count = count;
+      this.weight = ENTRY_OVERHEAD + (bytes == null ? 0 : bytes.length);
+    }
+
+    boolean matches(CharSequence other, int start, int end, Digester digester){
+      if(end - start != length || utf8) return false;
+      if(text == null){
+        return digest != null && MessageDigest.isEqual(digest, digester.digest(other, start, end));
+      }
+      for(int i = 0; i < length; i++){
+        if(text.charAt(i) != other.charAt(start + i)) return false;
+      }
+      return true;
+    }
+
+    boolean matches(byte[] other, int start, int end, Digester digester){
+      if(end - start != length || !utf8) return false;
+      if(bytes == null){
+        return digest != null && MessageDigest.isEqual(digest, digester.digest(other, start, end));
+      }
+      for(int i = 0; i < length; i++){
+        if(bytes[i] != other[start + i]) return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * HMAC-SHA256 of texts and bytes under the key of cache. Each thread has its own.
+   */
+  private static class Digester {
+
+    private final Mac mac;
+
+    /* Characters are fed to the MAC in blocks of big-endian UTF-16 */
+    private final byte[] block = new byte[8192];
+
+    Digester(SecretKeySpec key){
+      try{
+        this.mac = Mac.getInstance(CryptoContext.HMAC_ALGORITHM);
+        mac.init(key);
+      }catch(GeneralSecurityException e){
+        throw new IllegalStateException(e);
+      }
+    }
+
+    byte[] digest(CharSequence text, int start, int end){
+      int size = 0;
+      for(int i = start; i < end; i++){
+        char c = text.charAt(i);
+        block[size++] = (byte)(c >>> 8);
+        block[size++] = (byte)c;
+        if(size == block.length){
+          mac.update(block, 0, size);
+          size = 0;
+        }
+      }
+      mac.update(block, 0, size);
+      return mac.doFinal();
+    }
+
+    byte[] digest(byte[] bytes, int start, int end){
+      mac.update(bytes, start, end - start);
+      return mac.doFinal();
+    }
+  }
+
+  /**
+   * W-TinyLFU cache of one range of hashes
+   */
+  private class Segment {
+
+    /* LRU order, the eldest first */
+    private final LinkedHashMap<Long, Node> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Long, Node> main = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final long windowMax;
+    private final long mainMax;
+    private long windowWeight;
+    private long mainWeight;
+
+    private final FrequencySketch sketch;
+
+    Segment(long maxWeight){
+      /* 1% of memory for the window as in the W-TinyLFU paper */
+      this.windowMax = Math.max(ENTRY_OVERHEAD, maxWeight / 100);
+      this.mainMax = Math.max(0, maxWeight - windowMax);
+      this.sketch = new FrequencySketch((int)Math.min(1 << 20, maxWeight / ENTRY_OVERHEAD));
+    }
+
+    synchronized Node get(long hash){
+      return find(hash);
+    }
+
+    private Node find(long hash){
+      sketch.increment(hash);
+      Node node = window.get(hash);
+      return node != null ? node : main.get(hash);
+    }
+
+    synchronized void put(Node node){
+      if(node.weight > mainMax) return;
+      /* A colliding text replaces the old one */
+      remove(node.hash);
+      window.put(node.hash, node);
+      windowWeight += node.weight;
+      while(windowWeight > windowMax){
+        Node candidate = removeEldest(window);
+        windowWeight -= candidate.weight;
+        admit(candidate);
+      }
+    }
+
+    synchronized long getWeight(){
+      return windowWeight + mainWeight;
+    }
+
+    /**
+     * Move entry leaving the window to main region if it's used more often
+     * than the entries it would evict
+     */
+    private void admit(Node candidate){
+      while(mainWeight + candidate.weight > mainMax){
+        Node victim = eldest(main);
+        if(sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)){
+          evictions.increment();
+          return;
+        }
+        main.remove(victim.hash);
+        mainWeight -= victim.weight;
+        evictions.increment();
+      }
+      main.put(candidate.hash, candidate);
+      mainWeight += candidate.weight;
+    }
+
+    private void remove(long hash){
+      Node old = window.remove(hash);
+      if(old != null) windowWeight -= old.weight;
+      old = main.remove(hash);
+      if(old != null) mainWeight -= old.weight;
+    }
+
+    private Node eldest(Map<Long, Node> map){
+      return map.values().iterator().next();
+    }
+
+    private Node removeEldest(Map<Long, Node> map){
+      Iterator<Node> it = map.values().iterator();
+      Node node = it.next();
+      it.remove();
+      return node;
+    }
+  }
+
+  /**
+   * Count-min sketch of 4 rows of counters saturating at 15. All counters are
+   * halved after a number of increments, so the frequency follows recent use.
+   */
+  private static class FrequencySketch {
+
+    private final byte[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int increments;
+
+    FrequencySketch(int entries){
+      int size = Integer.highestOneBit(Math.max(64, entries) - 1) << 1;
+      this.table = new byte[size];
+      this.mask = size - 1;
+      this.sampleSize = size * 10;
+    }
+
+    void increment(long hash){
+      boolean added = false;
+      for(int row = 0; row < 4; row++){
+        int index = index(hash, row);
+        if(table[index] < 15){
+          table[index]++;
+          added = true;
+        }
+      }
+      if(added && ++increments >= sampleSize){
+        for(int i = 0; i < table.length; i++){
+          table[i] >>= 1;
+        }
+        increments /= 2;
+      }
+    }
+
+    int frequency(long hash){
+      int frequency = 15;
+      for(int row = 0; row < 4; row++){
+        frequency = Math.min(frequency, table[index(hash, row)]);
+      }
+      return frequency;
+    }
+
+    private int index(long hash, int row){
+      long h = (hash + row) * (C1 + 2 * row);
+      return (int)(h ^ (h >>> 32)) & mask;
+    }
+  }
+}
@@ -0,0 +1,228 @@
+package hussachai.osu.cs5243;
+
+/**
+ * Word, character and line totals of a document sent piece by piece over
+ * many requests of one session ({@link Request#ADD}). The pieces are counted as
+ * if they were one text, so a word split between two pieces is counted once
+ * and a line is only counted once, however it has been split.
+ * Word frequencies are kept as well when they have been asked for.
+ *
+ * A line is ended by '\n'. The last line is counted as soon as it has a character,
+ * like the lines of a file without trailing newline.
+ *
+ * The totals can be saved as a snapshot and restored into another session,
+ * so a long count survives reconnects without sending the document again.
+ * The snapshot is text:
+ * <pre>
+ * TOTALS VERSION WORDS CHARACTERS NEWLINES FLAGS [OPEN WORD]
+ * WORD COUNT
+ * ...
+ * </pre>
+ * with one line for each distinct word when frequencies are kept. Words never
+ * contain whitespace, so they need no escaping.
+ *
+ * This class is not thread-safe.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class RunningTotals {
+
+  private static final String SNAPSHOT_HEADER = "TOTALS";
+
+  private static final int SNAPSHOT_VERSION = 1;
+
+  /* Snapshot flags */
+  private static final int IN_WORD = 1;
+  private static final int HIGH_SURROGATE = 2;
+  private static final int PARTIAL_LINE = 4;
+  private static final int FREQUENCIES = 8;
+
+  private final WordCounter counter = new WordCounter();
+
+  /**
+   * Frequencies or null when they are not kept
+   */
+  private WordFrequency frequency;
+
+  /**
+   * Number of distinct words above which frequencies are dropped
+   */
+  private final int maxDistinctWords;
+
+  private long newlines;
+
+  /**
+   * Whether the last line has characters but no newline yet
+   */
+  private boolean partialLine;
+
+  /**
+   * @param maxDistinctWords the largest number of distinct words whose frequencies are kept
+   */
+  public RunningTotals(int maxDistinctWords){
+    this.maxDistinctWords = maxDistinctWords;
+  }
+
+  /**
+   * Count the characters of the next piece from start (inclusive) to end (exclusive)
+   * @param text
+   * @param start
+   * @param end
+   * @return false when frequencies have been dropped because there are
+   * too many distinct words
+   */
+  public boolean add(CharSequence text, int start, int end){
+    if(start == end){
+      return true;
+    }
+    counter.update(text, start, end);
+    for(int i = start; i < end; i++){
+      if(text.charAt(i) == '\n') newlines++;
+    }
+    partialLine = text.charAt(end - 1) != '\n';
+    if(frequency != null){
+      frequency.add(text, start, end);
+      if(frequency.size() > maxDistinctWords){
+        frequency = null;
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public long getWords(){
+    return counter.getWords();
+  }
+
+  public long getCharacters(){
+    return counter.getCharacters();
+  }
+
+  public long getLines(){
+    return newlines + (partialLine ? 1 : 0);
+  }
+
+  /**
+   * Word frequencies of the pieces since frequencies have been asked for.
+   * The word at the end of the last piece is counted once it has been closed
+   * by whitespace.
+   * @return frequencies or null when they are not kept
+   */
+  public WordFrequency getFrequency(){
+    return frequency;
+  }
+
+  /**
+   * Clear the totals
+   * @param frequencies whether word frequencies of the following pieces are kept
+   */
+  public void reset(boolean frequencies){
+    counter.reset();
+    newlines = 0;
+    partialLine = false;
+    if(!frequencies){
+      frequency = null;
+    }else if(frequency == null){
+      frequency = new WordFrequency();
+    }else{
+      frequency.reset();
+    }
+  }
+
+  /**
+   * Save the totals in the form read by {@link #restore(CharSequence, int)}
+   * @return
+   */
+  public String snapshot(){
+    int flags = (counter.isInWord() ? IN_WORD : 0)
+        | (counter.isAfterHighSurrogate() ? HIGH_SURROGATE : 0)
+        | (partialLine ? PARTIAL_LINE : 0) | (frequency != null ? FREQUENCIES : 0);
+    StringBuilder snapshot = new StringBuilder(64 + (frequency == null ? 0 : frequency.size() * 16));
+    snapshot.append(SNAPSHOT_HEADER).append(' ').append(SNAPSHOT_VERSION)
+      .append(' ').append(counter.getWords()).append(' ').append(counter.getCharacters())
+      .append(' ').append(newlines).append(' ').append(flags);
+    if(frequency != null){
+      /* Half of a surrogate pair waiting at the end of the last piece is not saved */
+      String openWord = frequency.getOpenWord();
+      if(!openWord.isEmpty()){
+        snapshot.append(' ').append(openWord);
+      }
+      for(int entry = 0; entry < frequency.size(); entry++){
+        snapshot.append('\n').append(frequency.getWord(entry))
+          .append(' ').append(frequency.getCount(entry));
+      }
+    }
+    return snapshot.toString();
+  }
+
+  /**
+   * Replace the totals with the ones saved in snapshot
+   * @param text
+   * @param start index of snapshot in text
+   * @throws IllegalArgumentException when the snapshot is malformed, in which
+   * case the totals are left as they are
+   */
+  public void restore(CharSequence text, int start){
+    String snapshot = text.subSequence(start, text.length()).toString();
+    String[] lines = snapshot.split("\n");
+    String[] header = lines[0].split(" ");
+    if(header.length < 6 || header.length > 7 || !SNAPSHOT_HEADER.equals(header[0])){
+      throw new IllegalArgumentException("Malformed snapshot");
+    }
+    if(!String.valueOf(SNAPSHOT_VERSION).equals(header[1])){
+      throw new IllegalArgumentException("Unknown snapshot version "+header[1]);
+    }
+    long words = parseCount(header[2]);
+    long characters = parseCount(header[3]);
+    long newlines = parseCount(header[4]);
+    int flags = (int)parseCount(header[5]);
+    WordFrequency frequency = null;
+    if((flags & FREQUENCIES) != 0){
+      if(lines.length - 1 > maxDistinctWords){
+        throw new IllegalArgumentException("Snapshot has more than "+maxDistinctWords+
+            " distinct words");
+      }
+      frequency = new WordFrequency();
+      for(int i = 1; i < lines.length; i++){
+        int space = lines[i].lastIndexOf(' ');
+        if(space <= 0){
+          throw new IllegalArgumentException("Malformed snapshot at line "+(i + 1));
+        }
+        byte[] word = lines[i].substring(0, space).getBytes(WireFormat.UTF8);
+        frequency.addWord(word, word.length, parseCount(lines[i].substring(space + 1)));
+      }
+      if(header.length == 7){
+        /* Kept open for the next piece, as it was */
+        frequency.add(header[6], 0, header[6].length());
+      }
+    }else if(lines.length > 1 || header.length == 7){
+      throw new IllegalArgumentException("Malformed snapshot");
+    }
+    counter.restore(words, characters, (flags & IN_WORD) != 0, (flags & HIGH_SURROGATE) != 0);
+    this.newlines = newlines;
+    this.partialLine = (flags & PARTIAL_LINE) != 0;
+    this.frequency = frequency;
+  }
+
+  private static long parseCount(String count){
+    long value = 0;
+    try{
+      value = Long.parseLong(count);
+    }catch(NumberFormatException e){
+      throw new IllegalArgumentException("Malformed snapshot: "+count+" is not a number");
+    }
+    if(value < 0){
+      throw new IllegalArgumentException("Malformed snapshot: "+count+" is negative");
+    }
+    return value;
+  }
+
+  /**
+   * The format of totals sent to client
+   */
+  @Override
+  public String toString(){
+    return "Words: "+getWords()+", Characters: "+getCharacters()+", Lines: "+getLines();
+  }
+}
@@ -1,45 +1,88 @@
 package hussachai.osu.cs5243;
 
+import java.nio.ByteBuffer;
+
+import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
 
 /**
  * The secure message object
- * 
- * @author hussachai (http://www.siberhus.com) 
+ *
+ * The message has two wire formats:
+ * <ul>
+ * <li>Text: HMAC|IV|CIPHER where HMAC is hex and IV and CIPHER are Base64,
+ * one message per line. This is the original format.</li>
+ * <li>Binary: length-prefixed frame carrying the raw bytes, which is negotiated
+ * during the handshake. See {@link #toFrame()}.</li>
+ * </ul>
+ * Messages encrypted with AES-GCM have no HMAC. Their authentication tag
+ * is the last 16 bytes of CIPHER.
+ *
+ * A binary frame can be parsed in place with {@link #wrap(ByteBuffer)}, which
+ * only records where the fields are, so the server decrypts them straight out
+ * of the buffer they have been read into.
+ *
+ * @author hussachai (http://www.siberhus.com)
  *
  */
 public class SecureMessage {
-  
+
+  /**
+   * Size of the length field in front of binary frame
+   */
+  public static final int FRAME_HEADER_LENGTH = 4;
+
   /**
    * HMAC (SHA)
    */
-  private String hmac;
-  
+  private byte[] mac;
+
   /**
    * Ciphers
    */
   private byte[] cipherBytes;
-  
+
   /**
    * Initial Vectors
    */
   private byte[] ivBytes;
-  
+
+  /**
+   * Frame holding the fields of message parsed in place, or null
+   */
+  private ByteBuffer frame;
+
+  /* Absolute indexes of the fields in frame */
+  private int ivOffset;
+  private int macOffset;
+  private int cipherOffset;
+  private int cipherEnd;
+
   public SecureMessage(String hmac, byte[] ivBytes, byte[] cipherBytes){
-    this.hmac = hmac;
+    this(decodeHex(hmac), ivBytes, cipherBytes);
+  }
+
+  public SecureMessage(byte[] mac, byte[] ivBytes, byte[] cipherBytes){
+    this.mac = mac;
     this.ivBytes = ivBytes;
     this.cipherBytes = cipherBytes;
   }
-  
+
+  /**
+   * Empty message to be filled by {@link #wrap(ByteBuffer)}
+   */
+  public SecureMessage(){}
+
   /**
    * HMAC|IV|CIPHER
    */
   @Override
   public String toString(){
-    return hmac + "|" + Base64.encodeBase64String(ivBytes) 
+    return getHMAC() + "|" + Base64.encodeBase64String(getIvBytes())
         + "|" + getCipherText();
   }
-  
+
   /**
    * Parse string to SecureMessage format
    * HMAC|IV|CIPHER
@@ -49,35 +92,210 @@ public class SecureMessage {
   public static SecureMessage fromString(String string){
     if(string == null) return null;
     string = string.trim();
-    int sep = string.indexOf("|");
-    if(sep == -1 && string.length() < sep + 1){
+    int sep = string.indexOf('|');
+    int sep2 = sep == -1 ? -1 : string.indexOf('|', sep + 1);
+    if(sep2 == -1){
       throw new RuntimeException("Incorrect format message");
     }
     String hmac = string.substring(0, sep);
-    string = string.substring(sep + 1, string.length());
-    sep = string.indexOf("|");
-    if(sep == -1 && string.length() < sep + 1){
+    String ivText = string.substring(sep + 1, sep2);
+    String cipherText = string.substring(sep2 + 1);
+    return new SecureMessage(hmac, Base64.decodeBase64(ivText),
+        Base64.decodeBase64(cipherText));
+  }
+
+  /**
+   * Length of binary frame excluding the length field itself
+   * @return
+   */
+  public int getFrameLength(){
+    return 2 + getIvLength() + getMacLength() + getCipherLength();
+  }
+
+  /**
+   * Write binary frame
+   * <pre>
+   * int    length of the rest of frame
+   * byte   IV length
+   * byte   MAC length
+   * byte[] IV
+   * byte[] MAC
+   * byte[] CIPHER
+   * </pre>
+   * @param buffer
+   */
+  public void writeFrame(ByteBuffer buffer){
+    writeFrameHeader(buffer, getIvLength(), getMacLength(), getCipherLength());
+    buffer.put(getIvBytes());
+    buffer.put(getMacBytes());
+    buffer.put(getCipherBytes());
+  }
+
+  /**
+   * Write the fields of binary frame in front of IV, so the rest can be
+   * written straight into the buffer
+   * @param buffer
+   * @param ivLength
+   * @param macLength
+   * @param cipherLength
+   */
+  public static void writeFrameHeader(ByteBuffer buffer, int ivLength, int macLength,
+      int cipherLength){
+    buffer.putInt(2 + ivLength + macLength + cipherLength);
+    buffer.put((byte)ivLength);
+    buffer.put((byte)macLength);
+  }
+
+  /**
+   * Convert message to binary frame ready to be written
+   * @return
+   */
+  public ByteBuffer toFrame(){
+    ByteBuffer buffer = ByteBuffer.allocate(FRAME_HEADER_LENGTH + getFrameLength());
+    writeFrame(buffer);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Parse binary frame (without length field) to SecureMessage
+   * @param frame
+   * @return
+   */
+  public static SecureMessage fromFrame(ByteBuffer frame){
+    SecureMessage message = new SecureMessage().wrap(frame);
+    message.getIvBytes();
+    message.getMacBytes();
+    message.getCipherBytes();
+    message.frame = null;
+    frame.position(frame.limit());
+    return message;
+  }
+
+  /**
+   * Parse binary frame (without length field) in place. The fields are not
+   * copied, so the message is only valid as long as the remaining bytes of frame
+   * are not changed. Neither the position nor the limit of frame is changed.
+   * Wrapping another frame reuses this message.
+   * @param frame
+   * @return this message
+   */
+  public SecureMessage wrap(ByteBuffer frame){
+    int start = frame.position();
+    if(frame.remaining() < 2){
       throw new RuntimeException("Incorrect format message");
     }
-    String ivText = string.substring(0, sep);
-    String cipherText = string.substring(sep + 1, string.length());
-    return new SecureMessage(hmac, Base64.decodeBase64(ivText), 
-        Base64.decodeBase64(cipherText));
+    int ivLength = frame.get(start) & 0xFF;
+    int macLength = frame.get(start + 1) & 0xFF;
+    if(frame.remaining() < 2 + ivLength + macLength){
+      throw new RuntimeException("Incorrect format message");
+    }
+    this.frame = frame;
+    this.ivOffset = start + 2;
+    this.macOffset = ivOffset + ivLength;
+    this.cipherOffset = macOffset + macLength;
+    this.cipherEnd = frame.limit();
+    this.mac = null;
+    this.ivBytes = null;
+    this.cipherBytes = null;
+    return this;
+  }
+
+  /**
+   * The frame of message parsed in place by {@link #wrap(ByteBuffer)}
+   * @return the frame or null when the fields are held in arrays
+   */
+  public ByteBuffer getFrame(){
+    return frame;
+  }
+
+  /**
+   * Absolute index of IV in frame
+   * @return
+   */
+  public int getIvOffset(){
+    return ivOffset;
+  }
+
+  /**
+   * Absolute index of MAC in frame
+   * @return
+   */
+  public int getMacOffset(){
+    return macOffset;
+  }
+
+  /**
+   * Absolute index of cipher bytes in frame
+   * @return
+   */
+  public int getCipherOffset(){
+    return cipherOffset;
+  }
+
+  public int getIvLength(){
+    return frame == null ? ivBytes.length : macOffset - ivOffset;
   }
-  
+
+  public int getMacLength(){
+    return frame == null ? mac.length : cipherOffset - macOffset;
+  }
+
+  public int getCipherLength(){
+    return frame == null ? cipherBytes.length : cipherEnd - cipherOffset;
+  }
+
+  /**
+   * HMAC in hex
+   * @return
+   */
   public String getHMAC(){
-    return hmac;
+    return Hex.encodeHexString(getMacBytes());
+  }
+
+  /**
+   * HMAC in raw bytes. The fields of message parsed in place are copied
+   * out of its frame on the first call.
+   * @return
+   */
+  public byte[] getMacBytes(){
+    if(mac == null){
+      mac = copy(macOffset, cipherOffset);
+    }
+    return mac;
   }
-  
+
   public byte[] getCipherBytes(){
+    if(cipherBytes == null){
+      cipherBytes = copy(cipherOffset, cipherEnd);
+    }
     return cipherBytes;
   }
-  
+
   public String getCipherText(){
-    return Base64.encodeBase64String(cipherBytes);
+    return Base64.encodeBase64String(getCipherBytes());
   }
-  
+
   public byte[] getIvBytes(){
+    if(ivBytes == null){
+      ivBytes = copy(ivOffset, macOffset);
+    }
     return ivBytes;
   }
+
+  private byte[] copy(int start, int end){
+    byte[] bytes = new byte[end - start];
+    ByteBuffer source = frame.duplicate();
+    source.limit(end).position(start);
+    source.get(bytes);
+    return bytes;
+  }
+
+  private static byte[] decodeHex(String hex){
+    try{
+      return Hex.decodeHex(hex.toCharArray());
+    }catch(DecoderException e){
+      throw new RuntimeException("Incorrect format message", e);
+    }
+  }
 }
@@ -1,20 +1,18 @@
 package hussachai.osu.cs5243;
 
 import java.math.BigInteger;
-import java.security.AlgorithmParameters;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.KeySpec;
+import java.util.Arrays;
 
-import javax.crypto.Cipher;
-import javax.crypto.Mac;
+import javax.crypto.AEADBadTagException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.codec.binary.Hex;
 
@@ -22,6 +20,8 @@ import org.apache.commons.codec.binary.Hex;
  * 
  * THe security session will be created for single session
  * after the mutual HMAC verification has completed successfully.
+ * The session is not thread-safe. It belongs to the thread that serves
+ * the connection.
  * 
  * @author hussachai (http://www.siberhus.com) 
  *
@@ -39,15 +39,19 @@ public class SecuritySession {
   public static final int DEFAULT_KEY_LENGTH = 192;
   
   /**
-   * Use secure random to generate session ID
+   * Handshake option asking for AES-GCM
    */
-  private SecureRandom random = new SecureRandom();
+  public static final String GCM_OPTION = "gcm";
   
   /**
-   * Secret key factory for PBKDF2 (Password-Based Key Derivation Function 2)
-   * In this case, we use PBKDF2 with HMAC SHA1.
+   * The MAC field of GCM messages, whose tag is in cipher bytes
    */
-  private SecretKeyFactory secretKeyFactory;
+  private static final byte[] NO_MAC = new byte[0];
+  
+  /**
+   * Use secure random to generate session ID
+   */
+  private SecureRandom random = new SecureRandom();
   
   /**
    * Shared secret key used for both encryption and keyed HMAC
@@ -55,6 +59,21 @@ public class SecuritySession {
    */
   private SecretKey secretKey;
   
+  /**
+   * Pre-keyed cipher and MAC of this session
+   */
+  private CryptoContext crypto;
+  
+  /**
+   * Key of AES-GCM of this session or null when messages use AES-CBC with HMAC
+   */
+  private byte[] gcmKey;
+  
+  /**
+   * Server metrics or null when the time of each step is not recorded
+   */
+  private Metrics metrics;
+  
   private SecuritySession(){}
   
   /**
@@ -67,15 +86,56 @@ public class SecuritySession {
    */
   public static SecuritySession create(String password,
       int iterationCount, int keyLength) throws GeneralSecurityException{
-    /* Generate salt from SHA256 of the combination of password, iterationCount and keyLength */
-    byte salt[] = sha256(password+"|"+iterationCount+"|"+keyLength);
+    
+    return create(deriveKey(password, iterationCount, keyLength));
+  }
+  
+  /**
+   * Factory method for Security Session using the key that has been derived
+   * already (e.g. the one kept in {@link KeyCache}).
+   * @param secretKey
+   * @return
+   * @throws GeneralSecurityException
+   */
+  public static SecuritySession create(SecretKey secretKey) throws GeneralSecurityException{
     SecuritySession session = new SecuritySession();
-    session.secretKeyFactory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+    session.secretKey = secretKey;
+    session.crypto = new CryptoContext(secretKey.getEncoded(), session.random);
+    return session;
+  }
+  
+  /**
+   * Derive the shared secret key from password using PBKDF2 
+   * (Password-Based Key Derivation Function 2) with HMAC SHA1.
+   * This is the expensive part of session creation.
+   * @param password
+   * @param iterationCount
+   * @param keyLength
+   * @return
+   * @throws GeneralSecurityException
+   */
+  public static SecretKey deriveKey(String password,
+      int iterationCount, int keyLength) throws GeneralSecurityException{
+    /* Generate salt from SHA256 of the combination of password, iterationCount and keyLength */
+    byte salt[] = salt(password, iterationCount, keyLength);
+    SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
     /* Create key spec for Password-Based Encryption */
     KeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, 
         iterationCount, keyLength);
-    session.secretKey = session.secretKeyFactory.generateSecret(keySpec);
-    return session;
+    return secretKeyFactory.generateSecret(keySpec);
+  }
+  
+  /**
+   * Salt used for key derivation.
+   * @param password
+   * @param iterationCount
+   * @param keyLength
+   * @return
+   * @throws NoSuchAlgorithmException
+   */
+  public static byte[] salt(String password, 
+      int iterationCount, int keyLength) throws NoSuchAlgorithmException{
+    return sha256(password+"|"+iterationCount+"|"+keyLength);
   }
   
   /**
@@ -90,6 +150,45 @@ public class SecuritySession {
     return create(password, DEFAULT_ITERATION, DEFAULT_KEY_LENGTH);
   }
   
+  /**
+   * Encrypt the following messages with AES-GCM instead of AES-CBC and HMAC.
+   * Its key is derived from the shared key and both nonces of the handshake,
+   * so each session has its own GCM key and random IVs don't repeat across
+   * the sessions of a user.
+   * @param serverNonce
+   * @param clientNonce
+   * @throws GeneralSecurityException
+   */
+  public void enableGcm(String serverNonce, String clientNonce) throws GeneralSecurityException{
+    int length = crypto.encode("gcm|"+serverNonce+"|"+clientNonce);
+    gcmKey = Arrays.copyOf(crypto.macScratch(length), secretKey.getEncoded().length);
+    crypto.enableGcm(gcmKey);
+  }
+  
+  /**
+   * Whether messages are encrypted with AES-GCM
+   * @return
+   */
+  public boolean isGcm(){
+    return gcmKey != null;
+  }
+  
+  /**
+   * Another session with the same keys and mode, e.g. for a second thread
+   * of the same connection
+   * @return
+   * @throws GeneralSecurityException
+   */
+  public SecuritySession newSession() throws GeneralSecurityException{
+    SecuritySession session = create(secretKey);
+    if(gcmKey != null){
+      session.gcmKey = gcmKey;
+      session.crypto.enableGcm(gcmKey);
+    }
+    session.metrics = metrics;
+    return session;
+  }
+  
   /**
    * Encrypt message (Convert plain-text string to SecureMessage)
    * @param message
@@ -97,18 +196,48 @@ public class SecuritySession {
    * @throws Exception
    */
   public SecureMessage encrypt(String message) throws Exception{
-    /* Construct secret key for AES */
-    SecretKey secret = new SecretKeySpec(secretKey.getEncoded(), "AES");
-    /* Encrypt the message using AES in CBC mode with PKCS5 padding */
-    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    cipher.init(Cipher.ENCRYPT_MODE, secret);
-    AlgorithmParameters params = cipher.getParameters();
-    /* Get initialized vector */
-    byte[] ivBytes = params.getParameterSpec(IvParameterSpec.class).getIV();
-    byte[] cipherBytes = cipher.doFinal(message.getBytes("UTF-8"));
-    String hmac = generateHMAC(message);
-    
-    return new SecureMessage(hmac, ivBytes, cipherBytes);
+    long start = metrics == null ? 0 : System.nanoTime();
+    /* Encode message once, the same bytes are used by both cipher and HMAC */
+    int length = crypto.encode(message);
+    /* Encrypt the message using AES in CBC mode with PKCS5 padding and fresh IV,
+     * or in GCM mode which appends the authentication tag to the cipher bytes */
+    byte[] ivBytes = crypto.nextIv();
+    byte[] cipherBytes = crypto.encryptScratch(ivBytes, length);
+    byte[] mac = crypto.isGcm() ? NO_MAC : crypto.macScratch(length);
+    if(metrics != null){
+      metrics.getEncrypt().recordSince(start);
+    }
+    return new SecureMessage(mac, ivBytes, cipherBytes);
+  }
+  
+  /**
+   * Encrypt message straight into a binary frame. Nothing is allocated but
+   * the frame, which is taken from the pool.
+   * @param message
+   * @param pool
+   * @return the frame ready to be written, which must be released to the pool
+   * once it has been written
+   * @throws Exception
+   */
+  public ByteBuffer encryptFrame(String message, BufferPool pool) throws Exception{
+    long start = metrics == null ? 0 : System.nanoTime();
+    int length = crypto.encode(message);
+    byte[] ivBytes = crypto.nextIvScratch();
+    int macLength = crypto.isGcm() ? 0 : crypto.getMacLength();
+    int cipherLength = crypto.cipherLength(length);
+    ByteBuffer frame = pool.acquire(SecureMessage.FRAME_HEADER_LENGTH + 2
+        + ivBytes.length + macLength + cipherLength);
+    SecureMessage.writeFrameHeader(frame, ivBytes.length, macLength, cipherLength);
+    frame.put(ivBytes);
+    if(!crypto.isGcm()){
+      crypto.macScratch(length, frame);
+    }
+    crypto.encryptScratch(ivBytes, length, frame);
+    frame.flip();
+    if(metrics != null){
+      metrics.getEncrypt().recordSince(start);
+    }
+    return frame;
   }
   
   /**
@@ -120,21 +249,103 @@ public class SecuritySession {
    * @throws Exception
    */
   public String decrypt(SecureMessage secureMessage) throws Exception{
-    /* Construct secret key for AES */
-    SecretKey secret = new SecretKeySpec(secretKey.getEncoded(), "AES");
-    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    return decode(decryptBytes(secureMessage));
+  }
+  
+  /**
+   * Verify and decrypt message without decoding it. The UTF-8 bytes of plain text
+   * are left at the beginning of {@link #getPlainBytes()}, which are verified
+   * (by HMAC or GCM tag) before this method returns.
+   * @param secureMessage
+   * @return the number of plain text bytes
+   * @throws Exception
+   */
+  public int decryptBytes(SecureMessage secureMessage) throws Exception{
+    if(crypto.isGcm()){
+      return decryptGcm(secureMessage);
+    }
+    long start = metrics == null ? 0 : System.nanoTime();
     /* Decrypt using the shared secret key and IVs generated from encryption */
-    cipher.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(secureMessage.getIvBytes()));
-    /* Decipher text and convert to UTF-8 encoding string */
-    String decipherText = new String(cipher.doFinal(
-        secureMessage.getCipherBytes()), "UTF-8");
-    /* HMAC verification */
-    String inputHMAC = secureMessage.getHMAC();
-    String computedHMAC = generateHMAC(decipherText);
-    if(!inputHMAC.equals(computedHMAC)){
+    int length = decryptCipher(secureMessage);
+    if(metrics != null){
+      long decrypted = System.nanoTime();
+      metrics.getDecrypt().record(decrypted - start);
+      start = decrypted;
+    }
+    /* HMAC verification on the decrypted bytes */
+    ByteBuffer frame = secureMessage.getFrame();
+    boolean verified = frame == null ?
+        MessageDigest.isEqual(crypto.macScratch(length), secureMessage.getMacBytes()) :
+        crypto.verifyMac(length, frame, secureMessage.getMacOffset(), secureMessage.getMacLength());
+    if(!verified){
       throw new RuntimeException("HMAC verification failed");
     }
-    return decipherText;
+    if(metrics != null){
+      metrics.getHmacVerify().recordSince(start);
+    }
+    return length;
+  }
+  
+  /**
+   * Plain text bytes of the last message decrypted by {@link #decryptBytes(SecureMessage)}.
+   * They are overwritten by the next operation of this session.
+   * @return
+   */
+  public byte[] getPlainBytes(){
+    return crypto.scratch();
+  }
+  
+  /**
+   * Convert the first length plain text bytes to string
+   * @param length
+   * @return
+   */
+  public String decode(int length){
+    return crypto.decodeScratch(length);
+  }
+  
+  /**
+   * Verify and decrypt AES-GCM message. Malformed messages are rejected before
+   * the cipher is touched and tampered ones before any plain text is produced.
+   */
+  private int decryptGcm(SecureMessage secureMessage) throws Exception{
+    if(secureMessage.getMacLength() != 0
+        || secureMessage.getIvLength() != CryptoContext.GCM_IV_LENGTH
+        || secureMessage.getCipherLength() < CryptoContext.GCM_TAG_LENGTH){
+      throw new RuntimeException("Incorrect format message");
+    }
+    long start = metrics == null ? 0 : System.nanoTime();
+    int length = 0;
+    try{
+      length = decryptCipher(secureMessage);
+    }catch(AEADBadTagException e){
+      throw new RuntimeException("Authentication tag verification failed");
+    }
+    if(metrics != null){
+      /* Verification is part of decryption */
+      metrics.getDecrypt().recordSince(start);
+    }
+    return length;
+  }
+  
+  /**
+   * Decrypt cipher bytes in place when the message has been parsed in place
+   */
+  private int decryptCipher(SecureMessage secureMessage) throws GeneralSecurityException{
+    ByteBuffer frame = secureMessage.getFrame();
+    if(frame == null){
+      return crypto.decrypt(secureMessage.getIvBytes(), secureMessage.getCipherBytes());
+    }
+    return crypto.decrypt(frame, secureMessage.getIvOffset(), secureMessage.getIvLength(),
+        secureMessage.getCipherOffset(), secureMessage.getCipherLength());
+  }
+  
+  /**
+   * Record the time of encryption, decryption and HMAC verification
+   * @param metrics
+   */
+  public void setMetrics(Metrics metrics){
+    this.metrics = metrics;
   }
   
   /**
@@ -144,14 +355,9 @@ public class SecuritySession {
    * @throws Exception
    */
   public String generateHMAC(String message) throws Exception {
-    /* Use SHA2 256bits for message digest */
-    Mac hmacSha2 = Mac.getInstance("HmacSHA256");
-    /* Create secret key for HMAC */
-    SecretKey hmacKey = new SecretKeySpec(secretKey.getEncoded(), "HmacSHA256");
-    hmacSha2.init(hmacKey);
-    /* Encode the HMAC to Hex */
-    return Hex.encodeHexString(hmacSha2.doFinal(message.getBytes("UTF-8")));
-    
+    /* Use SHA2 256bits for message digest and encode the HMAC to Hex */
+    int length = crypto.encode(message);
+    return Hex.encodeHexString(crypto.macScratch(length));
   }
   
   /**
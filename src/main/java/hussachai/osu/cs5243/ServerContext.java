@@ -0,0 +1,154 @@
+package hussachai.osu.cs5243;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+import com.typesafe.config.Config;
+
+/**
+ * The services shared by all sessions of one server
+ * 
+ * @author hussachai (http://www.siberhus.com) 
+ *
+ */
+public class ServerContext {
+  
+  private final Config config;
+  
+  /**
+   * Users and their derived keys
+   */
+  private final CredentialStore credentials;
+  
+  private final ParallelWordCounter counter;
+  
+  /**
+   * Counts of repeated texts or null when disabled
+   */
+  private final ResultCache resultCache;
+  
+  /**
+   * TLS context whose session cache is shared by all engines
+   */
+  private final SSLContext sslContext;
+  
+  private final SSLParameters sslParameters;
+  
+  private final Metrics metrics;
+  
+  /**
+   * Threads authenticating new connections
+   */
+  private final HandshakeStage handshakeStage;
+  
+  /**
+   * Direct buffers of frames and responses
+   */
+  private final BufferPool bufferPool;
+  
+  private final AsyncLog log;
+  
+  public ServerContext(Config config) throws Exception{
+    this.config = config;
+    this.log = AsyncLog.fromConfig(config);
+    this.metrics = Metrics.fromConfig(config, log);
+    this.credentials = CredentialStore.fromConfig(config, log, metrics);
+    this.counter = ParallelWordCounter.fromConfig(config);
+    this.resultCache = ResultCache.fromConfig(config, metrics);
+    this.sslContext = TlsSupport.serverContext(config);
+    this.sslParameters = TlsSupport.serverParameters(sslContext, config, log);
+    this.handshakeStage = HandshakeStage.fromConfig(config, metrics, log);
+    this.bufferPool = BufferPool.fromConfig(config, metrics, log);
+  }
+  
+  public Config getConfig(){
+    return config;
+  }
+  
+  public CredentialStore getCredentials(){
+    return credentials;
+  }
+  
+  public ParallelWordCounter getCounter(){
+    return counter;
+  }
+  
+  /**
+   * @return the cache or null when it's disabled
+   */
+  public ResultCache getResultCache(){
+    return resultCache;
+  }
+  
+  /**
+   * Count text from start, through result cache when it's enabled
+   * @param text
+   * @param start
+   * @return
+   */
+  public WordCount count(CharSequence text, int start){
+    if(resultCache == null){
+      return counter.count(text, start, text.length());
+    }
+    return resultCache.count(text, start, text.length(), counter);
+  }
+  
+  /**
+   * Count UTF-8 bytes, through result cache when it's enabled
+   * @param bytes
+   * @param start
+   * @param end
+   * @return the count or null when the bytes are not well-formed UTF-8
+   */
+  public WordCount count(byte[] bytes, int start, int end){
+    if(resultCache == null){
+      return counter.count(bytes, start, end);
+    }
+    return resultCache.count(bytes, start, end, counter);
+  }
+  
+  /**
+   * Count many documents of text, through result cache when it's enabled
+   * @param text
+   * @param ranges start (inclusive) and end (exclusive) of each document, one pair after another
+   * @return the count of each document
+   */
+  public WordCount[] countAll(CharSequence text, int[] ranges){
+    if(resultCache == null){
+      return counter.countAll(text, ranges);
+    }
+    return resultCache.countAll(text, ranges, counter);
+  }
+  
+  public SSLContext getSslContext(){
+    return sslContext;
+  }
+  
+  /**
+   * Protocols and cipher suites enabled on every server connection
+   * @return
+   */
+  public SSLParameters getSslParameters(){
+    return sslParameters;
+  }
+  
+  public Metrics getMetrics(){
+    return metrics;
+  }
+  
+  public HandshakeStage getHandshakeStage(){
+    return handshakeStage;
+  }
+  
+  public BufferPool getBufferPool(){
+    return bufferPool;
+  }
+  
+  /**
+   * Log shared by all sessions. Nothing on the path of a request writes to console directly.
+   * @return
+   */
+  public AsyncLog getLog(){
+    return log;
+  }
+}
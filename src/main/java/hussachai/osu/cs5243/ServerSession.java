@@ -0,0 +1,535 @@
+package hussachai.osu.cs5243;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import com.typesafe.config.Config;
+
+/**
+ * Server side protocol state of one client connection.
+ * The session doesn't know anything about sockets. It consumes the lines
+ * or frames sent by client and produces the bytes that have to be sent back, so the same
+ * protocol is served by both the blocking {@link WordCountServer.WordCountService}
+ * and the non-blocking {@link NioServerEngine}.
+ *
+ * The protocol is:
+ * <ol>
+ * <li>Client sends username</li>
+ * <li>Server sends its nonce</li>
+ * <li>Client sends HMAC(server nonce)|client nonce[|options]</li>
+ * <li>Server sends HMAC(client nonce)[|accepted options] followed by encrypted greeting</li>
+ * <li>Client sends encrypted sentence and server replies with encrypted count</li>
+ * </ol>
+ * Besides sentences, client can send the commands described in {@link Request}.
+ * Options are comma separated. "binary" switches the messages after the handshake
+ * to {@link WireFormat#BINARY} and "gcm" encrypts them with AES-GCM instead of AES-CBC
+ * with HMAC (see {@link SecuritySession#enableGcm(String, String)}), unless server.gcm
+ * is off.
+ * <p>
+ * A connection whose first line is {@link Request#MUX} instead of username
+ * carries many streams, each with its own session. See {@link MultiplexedSession}.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class ServerSession {
+
+  private enum State {
+    USERNAME, CHALLENGE, AUTHENTICATED, MULTIPLEXED, CLOSED
+  }
+
+  private State state = State.USERNAME;
+
+  private AsyncLog log;
+
+  private Config config;
+
+  private ServerContext context;
+
+  private String username;
+
+  private SecuritySession session;
+
+  private String serverNonce;
+
+  private WireFormat wireFormat = WireFormat.TEXT;
+
+  /**
+   * Whether client has asked for AES-GCM and server has accepted it
+   */
+  private boolean gcm;
+
+  /**
+   * Counter of the document streamed in chunks
+   */
+  private WordCounter streamCounter = new WordCounter();
+
+  /**
+   * Frequency table reused by frequency requests of this session
+   */
+  private WordFrequency frequency;
+
+  /**
+   * Running totals of the document sent piece by piece
+   */
+  private RunningTotals totals;
+
+  /**
+   * Streams of multiplexed connection
+   */
+  private MultiplexedSession streams;
+
+  /**
+   * Binary message parsed in place, reused by every frame
+   */
+  private final SecureMessage received = new SecureMessage();
+
+  /**
+   * Address of client whose login lines are handled on handshake stage,
+   * or null to handle them on the calling thread
+   */
+  private String loginAddress;
+
+  public ServerSession(ServerContext context){
+    this.context = context;
+    this.config = context.getConfig();
+    this.log = context.getLog();
+  }
+
+  /**
+   * Handle a line sent by client.
+   * @param line the line without line terminator
+   * @param out the bytes to be sent back to client
+   * @throws Exception when the message cannot be processed.
+   * The connection must be closed in that case.
+   */
+  public void onLine(final String line, final List<ByteBuffer> out) throws Exception{
+    switch(state){
+    case USERNAME:
+    case CHALLENGE:
+      if(loginAddress == null){
+        onLogin(line, out);
+        break;
+      }
+      context.getHandshakeStage().call(loginAddress, new Callable<Void>(){
+        @Override
+        public Void call() throws Exception{
+          onLogin(line, out);
+          return null;
+        }
+      });
+      break;
+    case AUTHENTICATED:
+      onMessage(SecureMessage.fromString(line), out);
+      break;
+    case MULTIPLEXED:
+      throw new IllegalStateException("Unexpected line");
+    case CLOSED:
+      throw new IllegalStateException("Session has been closed");
+    }
+  }
+
+  /**
+   * Handle a binary frame sent by client.
+   * Frames are only valid after binary format has been negotiated.
+   * The frame is parsed in place and not used after this method returns.
+   * The responses are buffers of {@link BufferPool}, which must be released
+   * once they have been written.
+   * @param frame the frame without length field
+   * @param out the bytes to be sent back to client
+   * @throws Exception
+   */
+  public void onFrame(ByteBuffer frame, List<ByteBuffer> out) throws Exception{
+    if(state == State.MULTIPLEXED){
+      streams.onFrame(frame, out);
+      return;
+    }
+    if(state != State.AUTHENTICATED || wireFormat != WireFormat.BINARY){
+      throw new IllegalStateException("Unexpected frame");
+    }
+    onMessage(received.wrap(frame), out);
+  }
+
+  /**
+   * Handle the login lines of a thread that may block: their CPU work (key
+   * derivation and HMACs) is done on handshake stage while the calling thread waits
+   * @param address the address of client
+   */
+  public void setLoginStage(String address){
+    this.loginAddress = address;
+  }
+
+  private void onLogin(String line, List<ByteBuffer> out) throws Exception{
+    if(state == State.CHALLENGE){
+      onChallenge(line.trim(), out);
+    }else if(line.equals(Request.command(Request.MUX, null, null))){
+      /* Checked before trim, which would remove the command mark */
+      onMultiplex(line, out);
+    }else{
+      onUsername(line.trim(), out);
+    }
+  }
+
+  private void onUsername(String username, List<ByteBuffer> out) throws Exception{
+    /* Reads username from client */
+    this.username = username;
+    log.info("User: {0} is trying to authenticate", username);
+    CredentialStore.Entry user = context.getCredentials().get(username);
+    /* Checks whether supplied username is in database or not */
+    if(user == null){
+      /* If username is not in database, close connection */
+      log.info("User: {0} not found.", username);
+      out.add(WireFormat.line("Sorry user not found!"));
+      state = State.CLOSED;
+      return;
+    }
+
+    /* Create new security session for user with the key derived once per user */
+    session = SecuritySession.create(user.getKey());
+    session.setMetrics(context.getMetrics());
+    /* Create session ID for authentication */
+    serverNonce = session.generateSessionID();
+    /* Server sends a random nonce to client */
+    log.debug("Server nonce: {0}", serverNonce);
+    out.add(WireFormat.line(serverNonce));
+    state = State.CHALLENGE;
+  }
+
+  private void onMultiplex(String line, List<ByteBuffer> out){
+    /* Acknowledge and switch to stream frames */
+    log.info("Multiplexed connection has been opened");
+    out.add(WireFormat.line(line));
+    streams = new MultiplexedSession(context, loginAddress);
+    username = "multiplexed connection";
+    wireFormat = WireFormat.BINARY;
+    state = State.MULTIPLEXED;
+  }
+
+  private void onChallenge(String response, List<ByteBuffer> out) throws Exception{
+    /* Server reads the response containing HMAC(server's nonce), client's nonce and options */
+    int sep = response.indexOf("|");
+    if(sep == -1){
+      throw new RuntimeException("Incorrect format message");
+    }
+    String serverNonceMAC = response.substring(0, sep);
+    log.debug("Client returned MAC of server nonce: {0} ", serverNonceMAC);
+    int sep2 = response.indexOf("|", sep + 1);
+    String clientNonce = response.substring(sep + 1, sep2 == -1 ? response.length() : sep2);
+    log.debug("Recieved client[{0}] nonce: {1} ", username, clientNonce);
+    String options = sep2 == -1 ? null : acceptOptions(response.substring(sep2 + 1));
+    /* Server checks whether client can create the correct HMAC for server's nonce */
+    if(serverNonceMAC.equals(session.generateHMAC(serverNonce))){
+      String clientNonceMAC = session.generateHMAC(clientNonce);
+      log.debug("Sending MAC of client nonce to client[{0}]: {1}",
+          username, clientNonceMAC);
+      out.add(WireFormat.line(options == null ? clientNonceMAC : clientNonceMAC+"|"+options));
+    }else{
+      throw new RuntimeException("HMAC verification failed");
+    }
+    if(gcm){
+      /* The greeting is the first message encrypted with GCM */
+      session.enableGcm(serverNonce, clientNonce);
+    }
+
+    log.info("User: {0} has been authenticated successfully", username);
+    state = State.AUTHENTICATED;
+
+    String message = "Hello "+username+". Welcome to awesome word counter service.";
+    out.add(encrypt(message));
+  }
+
+  /**
+   * Accept the options requested by client
+   * @param requested
+   * @return the accepted options
+   */
+  private String acceptOptions(String requested){
+    StringBuilder accepted = new StringBuilder();
+    for(String option: requested.split(",")){
+      option = option.trim();
+      if(WireFormat.BINARY.getName().equals(option)){
+        wireFormat = WireFormat.BINARY;
+        accepted.append(accepted.length() == 0 ? "" : ",").append(option);
+      }else if(SecuritySession.GCM_OPTION.equals(option) && config.getBoolean("server.gcm")){
+        gcm = true;
+        accepted.append(accepted.length() == 0 ? "" : ",").append(option);
+      }
+    }
+    String options = accepted.toString();
+    log.debug("Accepted options of client[{0}]: {1}", username, options);
+    return options;
+  }
+
+  private void onMessage(SecureMessage secureMessage, List<ByteBuffer> out) throws Exception{
+    if(log.isDebugEnabled()){
+      /* Hex and Base64 are only encoded for debugging */
+      log.debug("Received message from client[{0}]: {1}", username,
+          secureMessage.getCipherText());
+      log.debug("HMAC: {0}", secureMessage.getHMAC());
+    }
+    int length = session.decryptBytes(secureMessage);
+    byte[] plain = session.getPlainBytes();
+    if(log.isDebugEnabled()){
+      log.debug("Decrypted message: {0}", session.decode(length));
+    }
+    Metrics metrics = context.getMetrics();
+    metrics.getMessages().increment();
+    long start = System.nanoTime();
+    String message = countBytes(plain, length);
+    if(message == null){
+      message = handle(Request.parse(session.decode(length)));
+    }
+    metrics.getCount().recordSince(start);
+    if(message == null){
+      /* No reply for this request */
+      return;
+    }
+    log.debug("Encrypting message: {0}", message);
+    out.add(encrypt(message));
+    metrics.getReplies().increment();
+  }
+
+  /**
+   * Encrypt reply in the wire format of session. Binary frames are encrypted
+   * straight into a buffer of the pool, which the engine releases once it
+   * has been written.
+   * @param message
+   * @return
+   * @throws Exception
+   */
+  private ByteBuffer encrypt(String message) throws Exception{
+    if(wireFormat != WireFormat.BINARY){
+      SecureMessage secureMessage = session.encrypt(message);
+      log.debug("Sending message to client[{0}]: {1}", username, secureMessage);
+      return wireFormat.encode(secureMessage);
+    }
+    ByteBuffer frame = session.encryptFrame(message, context.getBufferPool());
+    if(log.isDebugEnabled()){
+      /* The frame goes back to the pool after it has been written, before the log is written */
+      ByteBuffer fields = frame.duplicate();
+      fields.position(SecureMessage.FRAME_HEADER_LENGTH);
+      log.debug("Sending message to client[{0}]: {1}", username,
+          new SecureMessage().wrap(fields).toString());
+    }
+    return frame;
+  }
+
+  /**
+   * Count plain or SEQ request on its decrypted UTF-8 bytes, without decoding
+   * the text to string. Only the header of SEQ is decoded.
+   * @param plain
+   * @param length
+   * @return the reply or null when the request has to be decoded and handled
+   * as text: other commands and bytes that are not well-formed UTF-8
+   */
+  private String countBytes(byte[] plain, int length){
+    if(length == 0 || plain[0] != Request.MARK){
+      WordCount count = context.count(plain, 0, length);
+      return count == null ? null : count.toString();
+    }
+    int headerEnd = 0;
+    while(headerEnd < length && plain[headerEnd] != '\n'){
+      headerEnd++;
+    }
+    Request header = Request.parse(new String(plain, 0, headerEnd, WireFormat.UTF8));
+    if(!Request.SEQ.equals(header.getCommand())){
+      return null;
+    }
+    WordCount count = context.count(plain, Math.min(headerEnd + 1, length), length);
+    return count == null ? null :
+      Request.command(Request.SEQ, header.getArguments(), count.toString());
+  }
+
+  /**
+   * Handle decrypted request
+   * @param request
+   * @return the reply or null if the request has no reply
+   */
+  private String handle(Request request){
+    String text = request.getText();
+    if(!request.isCommand()){
+      return context.count(text, 0).toString();
+    }
+    switch(request.getCommand()){
+    case Request.CHUNK:
+      /* Only the counter state is kept, not the chunk */
+      streamCounter.update(text, request.getBodyStart(), text.length());
+      return null;
+    case Request.END:
+      String result = streamCounter.result().toString();
+      streamCounter.reset();
+      return result;
+    case Request.SEQ:
+      WordCount count = context.count(text, request.getBodyStart());
+      return Request.command(Request.SEQ, request.getArguments(), count.toString());
+    case Request.BATCH:
+      return countBatch(request);
+    case Request.FREQ:
+      countFrequency(request);
+      return formatFrequency(frequency, "Frequency of "+frequency.size()+" distinct words",
+          null);
+    case Request.ADD:
+    case Request.TOTAL:
+    case Request.RESET:
+    case Request.SNAPSHOT:
+    case Request.RESTORE:
+      return handleTotals(request);
+    case Request.TOP:
+      int k = 0;
+      try{
+        k = Integer.parseInt(request.getArguments().trim());
+      }catch(RuntimeException e){
+        k = -1;
+      }
+      if(k < 0){
+        return "Error: TOP needs the number of words";
+      }
+      countFrequency(request);
+      return formatFrequency(frequency, "Top "+Math.min(k, frequency.size())+" of "+
+          frequency.size()+" distinct words", frequency.top(k));
+    default:
+      return "Error: unknown command "+request.getCommand();
+    }
+  }
+
+  /**
+   * Handle the requests of running totals
+   * @param request
+   * @return
+   */
+  private String handleTotals(Request request){
+    if(totals == null){
+      totals = new RunningTotals(config.getInt("server.totals.maxDistinctWords"));
+    }
+    String text = request.getText();
+    String arguments = request.getArguments() == null ? "" : request.getArguments().trim();
+    switch(request.getCommand()){
+    case Request.ADD:
+      if(!totals.add(text, request.getBodyStart(), text.length())){
+        return totals+"\nWord frequencies have been dropped, there are more than "+
+            config.getInt("server.totals.maxDistinctWords")+" distinct words";
+      }
+      return totals.toString();
+    case Request.RESET:
+      totals.reset("freq".equals(arguments));
+      return "Totals have been reset"+(totals.getFrequency() == null ? "" : ", word frequencies are kept");
+    case Request.SNAPSHOT:
+      return Request.command(Request.SNAPSHOT, null, totals.snapshot());
+    case Request.RESTORE:
+      try{
+        totals.restore(text, request.getBodyStart());
+      }catch(IllegalArgumentException e){
+        return "Error: "+e.getMessage();
+      }
+      return totals.toString();
+    default:
+      if(arguments.isEmpty()){
+        return totals.toString();
+      }
+      int k = 0;
+      try{
+        k = Integer.parseInt(arguments);
+      }catch(NumberFormatException e){
+        k = -1;
+      }
+      if(k < 0){
+        return "Error: TOTAL takes the number of words";
+      }
+      WordFrequency kept = totals.getFrequency();
+      if(kept == null){
+        return "Error: word frequencies are not kept, send RESET freq first";
+      }
+      return totals+"\n"+formatFrequency(kept, "Top "+Math.min(k, kept.size())+" of "+
+          kept.size()+" distinct words", kept.top(k));
+    }
+  }
+
+  /**
+   * Count every document of batch request
+   * @param request
+   * @return BATCH reply with the count of each document on its own line
+   */
+  private String countBatch(Request request){
+    int[] documents = null;
+    try{
+      documents = request.getDocuments();
+    }catch(IllegalArgumentException e){
+      return "Error: "+e.getMessage();
+    }
+    WordCount[] counts = context.countAll(request.getText(), documents);
+    StringBuilder body = new StringBuilder(counts.length * 32);
+    for(int i = 0; i < counts.length; i++){
+      if(i > 0) body.append('\n');
+      body.append(counts[i]);
+    }
+    return Request.command(Request.BATCH, request.getArguments(), body.toString());
+  }
+
+  private void countFrequency(Request request){
+    if(frequency == null){
+      frequency = new WordFrequency();
+    }
+    frequency.reset();
+    String text = request.getText();
+    frequency.add(text, request.getBodyStart(), text.length()).flush();
+  }
+
+  /**
+   * One "word count" line per entry
+   * @param frequency
+   * @param title
+   * @param entries the entries to be listed or null for all in order of appearance
+   * @return
+   */
+  private String formatFrequency(WordFrequency frequency, String title, int[] entries){
+    int size = entries == null ? frequency.size() : entries.length;
+    StringBuilder reply = new StringBuilder(title.length() + size * 16);
+    reply.append(title);
+    for(int i = 0; i < size; i++){
+      int entry = entries == null ? i : entries[i];
+      reply.append('\n').append(frequency.getWord(entry))
+        .append(' ').append(frequency.getCount(entry));
+    }
+    return reply.toString();
+  }
+
+  /**
+   * Whether client is still logging in. Until then the messages of session belong
+   * to the handshake stage.
+   * @return
+   */
+  public boolean isAuthenticating(){
+    return state == State.USERNAME || state == State.CHALLENGE;
+  }
+
+  /**
+   * The connection has to be closed after the pending lines have been sent
+   * @return
+   */
+  public boolean isClosed(){
+    return state == State.CLOSED;
+  }
+
+  /**
+   * Mark session as closed
+   */
+  public void close(){
+    if(streams != null){
+      streams.close();
+    }
+    state = State.CLOSED;
+  }
+
+  /**
+   * Format of messages sent and expected by this session
+   * @return
+   */
+  public WireFormat getWireFormat(){
+    return wireFormat;
+  }
+
+  public String getUsername(){
+    return username;
+  }
+}
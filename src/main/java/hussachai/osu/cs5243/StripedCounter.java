@@ -0,0 +1,66 @@
+package hussachai.osu.cs5243;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that can be increased by many threads without contention.
+ * Each thread adds to one of several cells chosen by its id, and the cells
+ * are padded so that two of them never share a cache line. Reading the value
+ * sums up all cells, so it's meant for counters that are written much more
+ * often than they are read.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class StripedCounter implements StripedCounterMXBean {
+
+  /**
+   * Distance between cells in longs (64 bytes)
+   */
+  static final int PADDING = 8;
+
+  /**
+   * Number of cells, a power of two
+   */
+  static final int STRIPES = stripes();
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  public void increment(){
+    add(1);
+  }
+
+  public void add(long value){
+    cells.addAndGet(stripe() * PADDING, value);
+  }
+
+  @Override
+  public long getValue(){
+    long sum = 0;
+    for(int i = 0; i < STRIPES; i++){
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  @Override
+  public String toString(){
+    return Long.toString(getValue());
+  }
+
+  /**
+   * Stripe of the calling thread
+   * @return
+   */
+  static int stripe(){
+    return (int)Thread.currentThread().getId() & (STRIPES - 1);
+  }
+
+  /**
+   * Twice the number of processors rounded up to a power of two, at most 64
+   */
+  private static int stripes(){
+    int processors = Math.min(32, Runtime.getRuntime().availableProcessors());
+    return Integer.highestOneBit(Math.max(1, processors * 2 - 1)) * 2;
+  }
+}
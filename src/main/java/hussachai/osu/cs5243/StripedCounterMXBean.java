@@ -0,0 +1,12 @@
+package hussachai.osu.cs5243;
+
+/**
+ * JMX view of {@link StripedCounter}
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public interface StripedCounterMXBean {
+
+  long getValue();
+}
@@ -0,0 +1,152 @@
+package hussachai.osu.cs5243;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.typesafe.config.Config;
+
+/**
+ * Explicit TLS setup of server and client.
+ * The default SSLContext is configured through system properties only, so
+ * its session cache, session timeout, protocols and cipher suites cannot be tuned.
+ * A returning client whose TLS session is still in the cache of both sides
+ * resumes it with an abbreviated handshake, which skips the certificate
+ * verification and the key exchange of the full handshake.
+ *
+ * The client side session cache belongs to SSLContext, so a client must keep
+ * using the same context to resume its sessions.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class TlsSupport {
+
+  /**
+   * Create server context using the key store and tls settings in configuration
+   * @param config
+   * @return
+   * @throws Exception
+   */
+  public static SSLContext serverContext(Config config) throws Exception{
+    char[] password = config.getString("keyStore.password").toCharArray();
+    KeyStore keyStore = loadKeyStore(config.getString("keyStore.file"), password);
+    KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(
+        KeyManagerFactory.getDefaultAlgorithm());
+    keyManagers.init(keyStore, password);
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(keyManagers.getKeyManagers(), null, null);
+    configureCache(sslContext.getServerSessionContext(),
+        config.getInt("tls.sessionCacheSize"),
+        config.getDuration("tls.sessionTimeout", TimeUnit.SECONDS));
+    return sslContext;
+  }
+
+  /**
+   * Create client context trusting the certificates in trust store
+   * @param trustStore
+   * @param password
+   * @param sessionCacheSize
+   * @param sessionTimeout in seconds
+   * @return
+   * @throws Exception
+   */
+  public static SSLContext clientContext(String trustStore, String password,
+      int sessionCacheSize, long sessionTimeout) throws Exception{
+    KeyStore keyStore = loadKeyStore(trustStore, password.toCharArray());
+    TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(
+        TrustManagerFactory.getDefaultAlgorithm());
+    trustManagers.init(keyStore);
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(null, trustManagers.getTrustManagers(), null);
+    configureCache(sslContext.getClientSessionContext(), sessionCacheSize, sessionTimeout);
+    return sslContext;
+  }
+
+  /**
+   * Server side parameters limited to the protocols and cipher suites
+   * in configuration. An empty list keeps the defaults of JVM.
+   * @param sslContext
+   * @param config
+   * @param log where the ignored names are reported
+   * @return
+   */
+  public static SSLParameters serverParameters(SSLContext sslContext, Config config,
+      AsyncLog log){
+    return parameters(sslContext, config.getStringList("tls.protocols"),
+        config.getStringList("tls.cipherSuites"), log);
+  }
+
+  /**
+   * Default parameters of context limited to the given protocols and cipher suites.
+   * The names that are not supported by this JVM are ignored. If none of them
+   * is supported, the defaults are kept so that the peer can still connect.
+   * @param sslContext
+   * @param protocols
+   * @param cipherSuites
+   * @param log where the ignored names are reported
+   * @return
+   */
+  public static SSLParameters parameters(SSLContext sslContext, List<String> protocols,
+      List<String> cipherSuites, AsyncLog log){
+    SSLParameters parameters = sslContext.getDefaultSSLParameters();
+    SSLParameters supported = sslContext.getSupportedSSLParameters();
+    String[] enabled = supported(protocols, supported.getProtocols(), log);
+    if(enabled.length > 0){
+      parameters.setProtocols(enabled);
+    }
+    enabled = supported(cipherSuites, supported.getCipherSuites(), log);
+    if(enabled.length > 0){
+      parameters.setCipherSuites(enabled);
+    }
+    return parameters;
+  }
+
+  /**
+   * Whether the handshake that started at the given time resumed
+   * a session instead of creating a new one
+   * @param session
+   * @param handshakeStart in milliseconds since epoch
+   * @return
+   */
+  public static boolean isResumed(SSLSession session, long handshakeStart){
+    return session.getCreationTime() < handshakeStart;
+  }
+
+  private static void configureCache(SSLSessionContext sessions, int size, long timeout){
+    sessions.setSessionCacheSize(size);
+    sessions.setSessionTimeout((int)timeout);
+  }
+
+  private static String[] supported(List<String> wanted, String[] available, AsyncLog log){
+    List<String> names = new ArrayList<>();
+    List<String> availableNames = Arrays.asList(available);
+    for(String name: wanted){
+      if(availableNames.contains(name)){
+        names.add(name);
+      }else{
+        log.info("TLS: {0} is not supported and is ignored", name);
+      }
+    }
+    return names.toArray(new String[0]);
+  }
+
+  private static KeyStore loadKeyStore(String file, char[] password) throws Exception{
+    KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+    try(InputStream in = new FileInputStream(file)){
+      keyStore.load(in, password);
+    }
+    return keyStore;
+  }
+}
@@ -0,0 +1,217 @@
+package hussachai.osu.cs5243;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Word and character counter working on UTF-8 bytes, so a decrypted message
+ * can be counted without being decoded to a String. The result is the same as
+ * the one of {@link WordCounter} on the decoded text: a word is a maximal run
+ * of non-whitespace code points and characters are code points.
+ *
+ * Runs of ASCII are counted eight bytes at a time (SWAR): one long is read,
+ * the whitespace bytes are found with a few arithmetic operations on all of its
+ * lanes together, and the words starting in it are counted with a bit count.
+ * Other bytes are decoded one code point at a time.
+ *
+ * Only well-formed UTF-8 is counted. The decoder of String replaces malformed
+ * sequences, which this counter doesn't try to mimic; it marks itself as malformed
+ * instead, and the caller counts the decoded text with {@link WordCounter}.
+ *
+ * Like {@link WordCounter}, the counter keeps its state between calls, as long
+ * as each call starts and ends at the boundary of a code point.
+ * This class is not thread-safe.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class Utf8Counter {
+
+  private static final long HIGH_BITS = 0x8080808080808080L;
+
+  private static final long ONES = 0x0101010101010101L;
+
+  private long words;
+
+  private long characters;
+
+  /**
+   * Whether the last code point seen was part of a word
+   */
+  private boolean inWord;
+
+  /**
+   * Whether the first code point was part of a word
+   */
+  private boolean startsInWord;
+
+  private boolean malformed;
+
+  /**
+   * Count the bytes from start (inclusive) to end (exclusive)
+   * @param bytes
+   * @param start
+   * @param end
+   * @return the count or null when the bytes are not well-formed UTF-8
+   */
+  public static WordCount count(byte[] bytes, int start, int end){
+    Utf8Counter counter = new Utf8Counter().update(ByteBuffer.wrap(bytes), start, end);
+    return counter.isMalformed() ? null : counter.result();
+  }
+
+  /**
+   * Count the bytes of buffer from start (inclusive) to end (exclusive),
+   * which are absolute indexes. The position of buffer is not changed.
+   * @param buffer
+   * @param start
+   * @param end
+   * @return this counter
+   */
+  public Utf8Counter update(ByteBuffer buffer, int start, int end){
+    if(malformed){
+      return this;
+    }
+    ByteBuffer bytes = buffer.order() == ByteOrder.LITTLE_ENDIAN ? buffer
+        : buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    long words = this.words;
+    long characters = this.characters;
+    boolean inWord = this.inWord;
+    int i = start;
+    while(i < end){
+      if(i + 8 <= end){
+        long block = bytes.getLong(i);
+        if((block & HIGH_BITS) == 0){
+          /* High bit of each lane is set when the byte is not whitespace */
+          long letters = ~(between(block, 9, 13) | between(block, 28, 32)) & HIGH_BITS;
+          /* Lane i of previous tells whether byte i - 1 is not whitespace */
+          long previous = (letters << 8) | (inWord ? 0x80L : 0);
+          words += Long.bitCount(letters & ~previous);
+          if(characters == 0){
+            startsInWord = (letters & 0x80L) != 0;
+          }
+          inWord = letters < 0;
+          characters += 8;
+          i += 8;
+          continue;
+        }
+      }
+      int b = bytes.get(i) & 0xFF;
+      int codePoint = 0;
+      int length = 0;
+      if(b < 0x80){
+        codePoint = b;
+        length = 1;
+      }else if(b >= 0xC2 && b <= 0xDF){
+        codePoint = b & 0x1F;
+        length = 2;
+      }else if(b >= 0xE0 && b <= 0xEF){
+        codePoint = b & 0x0F;
+        length = 3;
+      }else if(b >= 0xF0 && b <= 0xF4){
+        codePoint = b & 0x07;
+        length = 4;
+      }else{
+        return malformed();
+      }
+      if(i + length > end){
+        return malformed();
+      }
+      for(int j = 1; j < length; j++){
+        int next = bytes.get(i + j) & 0xFF;
+        if((next & 0xC0) != 0x80){
+          return malformed();
+        }
+        if(j == 1 && ((b == 0xE0 && next < 0xA0) || (b == 0xED && next > 0x9F)
+            || (b == 0xF0 && next < 0x90) || (b == 0xF4 && next > 0x8F))){
+          /* Overlong, surrogate or beyond U+10FFFF */
+          return malformed();
+        }
+        codePoint = (codePoint << 6) | (next & 0x3F);
+      }
+      /* Supplementary code points are never whitespace */
+      boolean whitespace = codePoint < 0x10000 && WordCounter.isWhitespace((char)codePoint);
+      if(characters == 0){
+        startsInWord = !whitespace;
+      }
+      characters++;
+      if(whitespace){
+        inWord = false;
+      }else if(!inWord){
+        inWord = true;
+        words++;
+      }
+      i += length;
+    }
+    this.words = words;
+    this.characters = characters;
+    this.inWord = inWord;
+    return this;
+  }
+
+  /**
+   * High bit of each lane is set when the byte is from lo to hi.
+   * Every byte must be ASCII, so setting the high bit leaves room to
+   * subtract without borrowing from the next lane.
+   */
+  private static long between(long block, int lo, int hi){
+    long high = block | HIGH_BITS;
+    return (high - lo * ONES) & ~(high - (hi + 1) * ONES) & HIGH_BITS;
+  }
+
+  private Utf8Counter malformed(){
+    malformed = true;
+    return this;
+  }
+
+  /**
+   * Whether the bytes seen are not well-formed UTF-8, in which case
+   * the counts are meaningless
+   * @return
+   */
+  public boolean isMalformed(){
+    return malformed;
+  }
+
+  public long getWords(){
+    return words;
+  }
+
+  public long getCharacters(){
+    return characters;
+  }
+
+  /**
+   * Whether the first code point counted is part of a word
+   * @return
+   */
+  public boolean startsInWord(){
+    return startsInWord;
+  }
+
+  /**
+   * Whether the last code point counted is part of a word
+   * @return
+   */
+  public boolean endsInWord(){
+    return inWord;
+  }
+
+  /**
+   * The result of what has been counted so far
+   * @return
+   */
+  public WordCount result(){
+    return new WordCount(words, characters);
+  }
+
+  /**
+   * Clear the counter for the next text
+   */
+  public void reset(){
+    words = 0;
+    characters = 0;
+    inWord = false;
+    startsInWord = false;
+    malformed = false;
+  }
+}
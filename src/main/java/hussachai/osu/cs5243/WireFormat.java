@@ -0,0 +1,80 @@
+package hussachai.osu.cs5243;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Wire format of secure messages after the handshake.
+ * The handshake itself is always line based. The client asks for binary
+ * format by appending the option to its nonce line and the server confirms
+ * it in its reply, so old clients and old servers keep talking text.
+ * 
+ * @author hussachai (http://www.siberhus.com) 
+ *
+ */
+public enum WireFormat {
+  
+  /**
+   * One HMAC|IV|CIPHER line per message
+   */
+  TEXT("text"){
+    @Override
+    public ByteBuffer encode(SecureMessage message){
+      return line(message.toString());
+    }
+  },
+  
+  /**
+   * One length-prefixed frame of raw bytes per message
+   */
+  BINARY("binary"){
+    @Override
+    public ByteBuffer encode(SecureMessage message){
+      return message.toFrame();
+    }
+  };
+  
+  public static final Charset UTF8 = Charset.forName("UTF-8");
+  
+  private final String name;
+  
+  private WireFormat(String name){
+    this.name = name;
+  }
+  
+  /**
+   * Encode message to the bytes that go on wire
+   * @param message
+   * @return
+   */
+  public abstract ByteBuffer encode(SecureMessage message);
+  
+  /**
+   * The name used in handshake and command line
+   * @return
+   */
+  public String getName(){
+    return name;
+  }
+  
+  /**
+   * Find wire format by name
+   * @param name
+   * @return
+   */
+  public static WireFormat forName(String name){
+    for(WireFormat format: values()){
+      if(format.name.equals(name)) return format;
+    }
+    throw new IllegalArgumentException("unknown format: "+name);
+  }
+  
+  /**
+   * Encode line with line terminator
+   * @param line
+   * @return
+   */
+  public static ByteBuffer line(String line){
+    return ByteBuffer.wrap((line + "\n").getBytes(UTF8));
+  }
+}
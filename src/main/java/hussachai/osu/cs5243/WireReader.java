@@ -0,0 +1,118 @@
+package hussachai.osu.cs5243;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Blocking reader of the lines and binary frames sent on one stream.
+ * Unlike BufferedReader it doesn't decode ahead, so the stream can switch
+ * from lines to binary frames right after the handshake.
+ * 
+ * @author hussachai (http://www.siberhus.com) 
+ *
+ */
+public class WireReader {
+  
+  private final InputStream in;
+  
+  /**
+   * Maximum length of line or frame
+   */
+  private final int maxLength;
+  
+  private byte[] buffer = new byte[256];
+  
+  public WireReader(InputStream in, int maxLength){
+    this.in = new BufferedInputStream(in);
+    this.maxLength = maxLength;
+  }
+  
+  /**
+   * Read line terminated by '\n' or "\r\n"
+   * @return the line without terminator or null at the end of stream
+   * @throws IOException
+   */
+  public String readLine() throws IOException{
+    int length = 0;
+    int b = 0;
+    while((b = in.read()) != -1 && b != '\n'){
+      if(length == buffer.length){
+        grow(length + 1);
+      }
+      buffer[length++] = (byte)b;
+    }
+    if(b == -1 && length == 0){
+      return null;
+    }
+    if(length > 0 && buffer[length - 1] == '\r') length--;
+    return new String(buffer, 0, length, WireFormat.UTF8);
+  }
+  
+  /**
+   * Read binary frame
+   * @return the frame without length field or null at the end of stream.
+   * The buffer is only valid until the next read.
+   * @throws IOException
+   */
+  public ByteBuffer readFrame() throws IOException{
+    int b1 = in.read();
+    if(b1 == -1){
+      return null;
+    }
+    int b2 = in.read(), b3 = in.read(), b4 = in.read();
+    if((b2 | b3 | b4) < 0){
+      throw new EOFException("Incomplete frame");
+    }
+    int length = (b1 << 24) | (b2 << 16) | (b3 << 8) | b4;
+    if(length < 0 || length > maxLength){
+      throw new IOException("Frame is longer than "+maxLength+" bytes");
+    }
+    if(length > buffer.length){
+      grow(length);
+    }
+    int read = 0;
+    while(read < length){
+      int n = in.read(buffer, read, length - read);
+      if(n == -1){
+        throw new EOFException("Incomplete frame");
+      }
+      read += n;
+    }
+    return ByteBuffer.wrap(buffer, 0, length);
+  }
+  
+  /**
+   * Number of bytes that can be read without blocking.
+   * @return
+   * @throws IOException
+   */
+  public int available() throws IOException{
+    return in.available();
+  }
+  
+  /**
+   * Read secure message in the given format
+   * @param format
+   * @return message or null at the end of stream
+   * @throws IOException
+   */
+  public SecureMessage readMessage(WireFormat format) throws IOException{
+    if(format == WireFormat.BINARY){
+      ByteBuffer frame = readFrame();
+      return frame == null ? null : SecureMessage.fromFrame(frame);
+    }
+    return SecureMessage.fromString(readLine());
+  }
+  
+  private void grow(int size) throws IOException{
+    if(size > maxLength){
+      throw new IOException("Message is longer than "+maxLength+" bytes");
+    }
+    byte[] larger = new byte[(int)Math.min(Math.max(size, buffer.length * 2L), maxLength)];
+    System.arraycopy(buffer, 0, larger, 0, buffer.length);
+    buffer = larger;
+  }
+}
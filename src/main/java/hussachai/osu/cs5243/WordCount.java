@@ -0,0 +1,39 @@
+package hussachai.osu.cs5243;
+
+/**
+ * The result of word counting
+ * 
+ * @author hussachai (http://www.siberhus.com) 
+ *
+ */
+public class WordCount {
+  
+  private final long words;
+  
+  private final long characters;
+  
+  public WordCount(long words, long characters){
+    this.words = words;
+    this.characters = characters;
+  }
+  
+  public long getWords(){
+    return words;
+  }
+  
+  /**
+   * Number of characters (Unicode code points)
+   * @return
+   */
+  public long getCharacters(){
+    return characters;
+  }
+  
+  /**
+   * The format of result sent to client
+   */
+  @Override
+  public String toString(){
+    return "Words: "+words+", Characters: "+characters;
+  }
+}
@@ -1,12 +1,23 @@
 package hussachai.osu.cs5243;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The Word Count client
@@ -16,10 +27,97 @@ import javax.net.ssl.SSLSocketFactory;
  */
 public class WordCountClient {
   
+  /**
+   * The longest message that client accepts from server
+   */
+  public static final int MAX_MESSAGE_LENGTH = 64 * 1024 * 1024;
+  
+  /**
+   * The preferred wire format. The server may still answer in text.
+   */
+  private WireFormat wireFormat = WireFormat.TEXT;
+  
+  /**
+   * Whether to ask for AES-GCM. The server may still use AES-CBC with HMAC.
+   */
+  private boolean gcm = true;
+  
+  /**
+   * Number of characters sent in each chunk of uploaded file
+   */
+  public static final int CHUNK_SIZE = 64 * 1024;
+  
+  /**
+   * The file to be uploaded or null for interactive mode
+   */
+  private File inputFile;
+  
+  /**
+   * The file whose lines are sent as pipelined requests or null for interactive mode
+   */
+  private File batchFile;
+  
+  /**
+   * Maximum number of pipelined requests waiting for reply
+   */
+  private int window = 64;
+  
+  /**
+   * Number of lines of batch file sent in each request
+   */
+  private int batchSize = 1;
+  
+  /**
+   * Number of streams sharing one multiplexed connection or 0 for a plain connection
+   */
+  private int streams;
+  
+  /**
+   * File where the running totals are checkpointed, or null
+   */
+  private File snapshotFile;
+  
   public WordCountClient(){
-    System.setProperty("javax.net.ssl.trustStore", "client/wordcount.pub");
-    System.setProperty("javax.net.ssl.trustStorePassword", "pass123");
-    
+  }
+  
+  public void setWireFormat(WireFormat wireFormat){
+    this.wireFormat = wireFormat;
+  }
+  
+  public void setGcm(boolean gcm){
+    this.gcm = gcm;
+  }
+  
+  public void setInputFile(File inputFile){
+    this.inputFile = inputFile;
+  }
+  
+  public void setBatchFile(File batchFile){
+    this.batchFile = batchFile;
+  }
+  
+  public void setWindow(int window){
+    if(window < 1) throw new IllegalArgumentException("window must be positive");
+    this.window = window;
+  }
+  
+  public void setBatchSize(int batchSize){
+    if(batchSize < 1) throw new IllegalArgumentException("batch size must be positive");
+    this.batchSize = batchSize;
+  }
+  
+  /**
+   * Checkpoint the running totals to file after each change, and continue
+   * from the file when it exists at connect
+   * @param snapshotFile
+   */
+  public void setSnapshotFile(File snapshotFile){
+    this.snapshotFile = snapshotFile;
+  }
+  
+  public void setStreams(int streams){
+    if(streams < 0) throw new IllegalArgumentException("streams must not be negative");
+    this.streams = streams;
   }
   
   /**
@@ -33,61 +131,370 @@ public class WordCountClient {
   public void connect(String host, int port, String username, String password) throws Exception{
     
     System.out.println("Connecting to "+host+" on port: "+port);
-    /* Create SSL Socket Factory */
-    SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-    /* Open the SSL connection by creating SSL Socket */
-    SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(host, port);
-    
-    String response = null;
-    
-    try(
-        BufferedReader reader = new BufferedReader(new InputStreamReader(
-            sslSocket.getInputStream()));
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
-            sslSocket.getOutputStream()))){
-      /* Begin Mutual Authentication ============== */
-      writer.write(username + "\n");
-      writer.flush();
+    try(ClientConnection connection = ClientConnection.open(host, port, username, password,
+        wireFormat, gcm)){
+      System.out.println("TLS handshake "+(connection.isResumed() ? "resumed" : "full")+
+          " in "+connection.getHandshakeMillis()+" ms");
+      System.out.println("Server > "+connection.getGreeting());
+      
+      if(batchFile != null){
+        pipeline(connection);
+        return;
+      }
+      if(inputFile != null){
+        upload(connection);
+        return;
+      }
       
-      SecuritySession session = SecuritySession.create(password);
-      /* Client reads server's nonce */
-      String serverNonce = reader.readLine().trim();
-      String serverNonceMAC = session.generateHMAC(serverNonce);
-      /* Generate client nonce */
-      String clientNonce = session.generateSessionID();
-      /* Client returns HMAC(serverNonce) with clientNonce to server */
-      writer.write(serverNonceMAC+"|"+clientNonce+"\n");
-      writer.flush();
-      /* Client reads MAC(clientNonce) */
-      String clientNonceMAC = reader.readLine();
-      if(clientNonceMAC == null || 
-          !clientNonceMAC.trim().equals(session.generateHMAC(clientNonce))){
-        throw new RuntimeException("HMAC verification failed");
+      if(snapshotFile != null && snapshotFile.exists()){
+        System.out.println("Restoring totals from "+snapshotFile);
+        System.out.println("Server > "+restore(connection));
       }
-      /* End Mutual Authentication ============== */
       
       System.out.println("Type 'quit' or Ctrl+C to exit");
+      System.out.println("Type ':top K sentence' or ':freq sentence' for word frequency");
+      System.out.println("Type ':add sentence' to add a line to running totals, "+
+          "':total [K]' to see them and ':reset [freq]' to clear them");
       
-      while((response = reader.readLine()) != null) {
-        /* De-serialize encrypted text to the POJO */
-        SecureMessage secureMessage = SecureMessage.fromString(response);
-        /* Decrypt message to string. */
-        response = session.decrypt(secureMessage);
-        
-        System.out.println("Server > "+response);
+      while(true){
         String input = StdIO.readLine("Client > sentence: ");
-        if("quit".equalsIgnoreCase(input)){
+        if(input == null || "quit".equalsIgnoreCase(input)){
           System.out.println("Bye :D");
           break;
         }
-        /* Encrypt input string and convert to secure message format */
-        secureMessage = session.encrypt(input);
-        
-        writer.write(secureMessage.toString() + '\n');
-        writer.flush();
+        String request = toRequest(input);
+        System.out.println("Server > "+connection.request(request));
+        if(snapshotFile != null && changesTotals(request)){
+          checkpoint(connection);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Send each line of batch file as a count request without waiting for the
+   * reply of the previous one. At most window requests are in flight. Requests
+   * are numbered and the server answers them in order with the same number.
+   * When batch size is more than one, that many lines are sent in each
+   * {@link Request#BATCH} request and encrypted together.
+   * <p>
+   * Requests are written by a separate thread, so each direction has its own
+   * security session (sessions are not thread-safe) sharing the same key.
+   * When that thread fails, it closes the connection so that this thread stops
+   * waiting for replies, and its failure is thrown from here.
+   * @param connection
+   * @throws Exception
+   */
+  protected void pipeline(final ClientConnection connection) throws Exception{
+    final SecuritySession sendSession = connection.getSession().newSession();
+    final OutputStream writer = connection.getWriter();
+    final WireFormat format = connection.getFormat();
+    final BufferedReader lines = new BufferedReader(new InputStreamReader(
+        new FileInputStream(batchFile), WireFormat.UTF8));
+    final String firstLine = lines.readLine();
+    if(firstLine == null){
+      lines.close();
+      return;
+    }
+    final Semaphore inFlight = new Semaphore(window);
+    /* Number of requests, known when the last one is being sent */
+    final AtomicLong total = new AtomicLong(-1);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread sender = new Thread("pipeline-sender"){
+      @Override
+      public void run(){
+        try{
+          long sequence = 0;
+          String line = firstLine;
+          List<String> documents = new ArrayList<>(batchSize);
+          while(line != null){
+            documents.clear();
+            /* Read ahead so that total is set before the last reply can arrive */
+            while(line != null && documents.size() < batchSize){
+              documents.add(line);
+              line = lines.readLine();
+            }
+            if(line == null){
+              total.set(sequence + 1);
+            }
+            if(!inFlight.tryAcquire()){
+              /* Window is full. Push what we have and wait for replies. */
+              writer.flush();
+              inFlight.acquire();
+            }
+            String arguments = Long.toString(sequence++);
+            String request = batchSize == 1 ?
+                Request.command(Request.SEQ, arguments, documents.get(0)) :
+                Request.batch(arguments, documents);
+            ByteBuffer bytes = format.encode(sendSession.encrypt(request));
+            writer.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+          }
+          writer.flush();
+        }catch(Throwable e){
+          failure.set(e);
+          /* Unblock the receiver waiting for replies to requests never sent */
+          try{ connection.close(); }catch(IOException ignored){ /* Nothing to do */ }
+        }finally{
+          try{ lines.close(); }catch(IOException e){ /* Nothing to do */ }
+        }
+      }
+    };
+    long start = System.nanoTime();
+    sender.setDaemon(true);
+    sender.start();
+    String command = batchSize == 1 ? Request.SEQ : Request.BATCH;
+    long received = 0;
+    long counted = 0;
+    try{
+      while(total.get() == -1 || received < total.get()){
+        SecureMessage secureMessage = connection.getReader().readMessage(format);
+        if(secureMessage == null){
+          throw new RuntimeException("Connection closed by server");
+        }
+        Request reply = Request.parse(connection.getSession().decrypt(secureMessage));
+        if(!command.equals(reply.getCommand()) ||
+            Long.parseLong(reply.getArguments()) != received){
+          throw new RuntimeException("Unexpected reply for request "+received+": "+reply.getText());
+        }
+        for(String result: reply.getText().substring(reply.getBodyStart()).split("\n")){
+          System.out.println(counted+" > "+result);
+          counted++;
+        }
+        received++;
+        inFlight.release();
+      }
+      /* The last request has been replied, so the sender is only flushing */
+      sender.join();
+    }catch(Exception e){
+      Throwable sendFailure = failure.get();
+      if(sendFailure == null){
+        /* Don't leave the sender waiting for the window */
+        sender.interrupt();
+        throw e;
+      }
+      sendFailure.addSuppressed(e);
+      throwFailure(sendFailure);
+    }
+    throwFailure(failure.get());
+    long elapsed = Math.max(1, (System.nanoTime() - start) / 1000000);
+    if(batchSize == 1){
+      System.out.println("Pipelined "+received+" requests in "+elapsed+" ms ("+
+          (received * 1000 / elapsed)+" requests/sec, window "+window+")");
+    }else{
+      System.out.println("Pipelined "+counted+" lines in "+received+" batches in "+elapsed+" ms ("+
+          (counted * 1000 / elapsed)+" lines/sec, window "+window+")");
+    }
+  }
+  
+  /**
+   * Throw the failure of pipeline sender
+   * @param failure the failure or null
+   * @throws Exception
+   */
+  private static void throwFailure(Throwable failure) throws Exception{
+    if(failure instanceof Error){
+      throw (Error)failure;
+    }
+    if(failure != null){
+      throw (Exception)failure;
+    }
+  }
+
+  /**
+   * Open streams of the same user over one multiplexed connection and
+   * send every line of batch file on each of them, one stream per thread.
+   * @param host
+   * @param port
+   * @param username
+   * @param password
+   * @throws Exception
+   */
+  public void multiplex(String host, int port, final String username,
+      final String password) throws Exception{
+    if(batchFile == null){
+      throw new IllegalArgumentException("Multiplexed streams need the batch file");
+    }
+    final List<String> lines = new ArrayList<>();
+    try(BufferedReader input = new BufferedReader(new InputStreamReader(
+        new FileInputStream(batchFile), WireFormat.UTF8))){
+      String line = null;
+      while((line = input.readLine()) != null){
+        lines.add(line);
+      }
+    }
+    System.out.println("Connecting to "+host+" on port: "+port+" with "+streams+" streams");
+    /* Derive the key once instead of once per stream thread */
+    ClientConnection.getKeyCache().get(username, password);
+    try(final MultiplexedClient client = new MultiplexedClient(host, port)){
+      final AtomicLong requests = new AtomicLong();
+      final AtomicReference<Exception> failure = new AtomicReference<>();
+      List<Thread> workers = new ArrayList<>();
+      long start = System.nanoTime();
+      for(int i = 0; i < streams; i++){
+        Thread worker = new Thread("stream-"+i){
+          @Override
+          public void run(){
+            try(MultiplexedClient.Stream stream = client.open(username, password, wireFormat, gcm)){
+              for(String line: lines){
+                stream.request(line);
+                requests.incrementAndGet();
+              }
+            }catch(Exception e){
+              failure.compareAndSet(null, e);
+            }
+          }
+        };
+        worker.start();
+        workers.add(worker);
+      }
+      for(Thread worker: workers){
+        worker.join();
+      }
+      if(failure.get() != null){
+        throw failure.get();
+      }
+      long elapsed = Math.max(1, (System.nanoTime() - start) / 1000000);
+      System.out.println("Multiplexed "+requests.get()+" requests on "+streams+" streams in "+
+          elapsed+" ms ("+(requests.get() * 1000 / elapsed)+" requests/sec)");
+    }
+  }
+  
+  /**
+   * Convert interactive input to request text.
+   * ":top K sentence" asks for the K most frequent words and ":freq sentence"
+   * asks for the frequency of every word. Anything else is counted.
+   * @param input
+   * @return
+   */
+  protected String toRequest(String input){
+    if(input.startsWith(":top ")){
+      String rest = input.substring(5).trim();
+      int sep = rest.indexOf(' ');
+      return Request.command(Request.TOP, sep == -1 ? rest : rest.substring(0, sep),
+          sep == -1 ? "" : rest.substring(sep + 1));
+    }
+    if(input.startsWith(":freq ")){
+      return Request.command(Request.FREQ, null, input.substring(6));
+    }
+    if(input.equals(":add") || input.startsWith(":add ")){
+      /* Each input is one line of the document */
+      return Request.command(Request.ADD, null, input.substring(Math.min(5, input.length()))+"\n");
+    }
+    if(input.equals(":total") || input.startsWith(":total ")){
+      String k = input.substring(6).trim();
+      return Request.command(Request.TOTAL, k.isEmpty() ? null : k, null);
+    }
+    if(input.equals(":reset") || input.startsWith(":reset ")){
+      String option = input.substring(6).trim();
+      return Request.command(Request.RESET, option.isEmpty() ? null : option, null);
+    }
+    return input;
+  }
+  
+  private static boolean changesTotals(String request){
+    String command = Request.parse(request).getCommand();
+    return Request.ADD.equals(command) || Request.RESET.equals(command);
+  }
+  
+  /**
+   * Save the running totals of server to snapshot file. The file is replaced
+   * at once, so a client stopped in the middle still has the previous snapshot.
+   * @param connection
+   * @throws Exception
+   */
+  protected void checkpoint(ClientConnection connection) throws Exception{
+    Request reply = Request.parse(connection.request(
+        Request.command(Request.SNAPSHOT, null, null)));
+    if(!Request.SNAPSHOT.equals(reply.getCommand())){
+      throw new IOException("Unexpected reply: "+reply.getText());
+    }
+    File temp = new File(snapshotFile.getPath()+".tmp");
+    try(Writer out = new OutputStreamWriter(new FileOutputStream(temp), WireFormat.UTF8)){
+      out.write(reply.getText(), reply.getBodyStart(),
+          reply.getText().length() - reply.getBodyStart());
+    }
+    Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  /**
+   * Continue the running totals saved in snapshot file
+   * @param connection
+   * @return the reply of server
+   * @throws Exception
+   */
+  protected String restore(ClientConnection connection) throws Exception{
+    String snapshot = new String(Files.readAllBytes(snapshotFile.toPath()), WireFormat.UTF8);
+    return connection.request(Request.command(Request.RESTORE, null, snapshot));
+  }
+  
+  /**
+   * Stream the input file to server as chunks and print the count of the whole file.
+   * Chunks have no reply, so they are sent back to back without waiting for server.
+   * @param connection
+   * @throws Exception
+   */
+  protected void upload(ClientConnection connection) throws Exception{
+    System.out.println("Uploading "+inputFile);
+    try(Reader input = new InputStreamReader(new FileInputStream(inputFile), WireFormat.UTF8)){
+      ChunkReader chunks = new ChunkReader(input, CHUNK_SIZE);
+      String chunk = null;
+      while((chunk = chunks.next()) != null){
+        connection.send(Request.command(Request.CHUNK, null, chunk));
+      }
+    }
+    System.out.println("Server > "+connection.request(Request.command(Request.END, null, null)));
+  }
+  
+  /**
+   * Splits text into chunks of at most size characters. A chunk never ends with
+   * the first half of a surrogate pair, which would be encoded alone as '?':
+   * that half goes with the next chunk instead.
+   */
+  static class ChunkReader {
+    
+    private final Reader input;
+    
+    private final char[] buffer;
+    
+    /**
+     * Number of characters at the start of buffer carried over from the last read
+     */
+    private int kept;
+    
+    /**
+     * @param input
+     * @param size the maximum number of characters of chunk, at least 2
+     */
+    ChunkReader(Reader input, int size){
+      this.input = input;
+      this.buffer = new char[Math.max(2, size)];
+    }
+    
+    /**
+     * Read the next chunk
+     * @return the chunk or null at the end of input
+     * @throws IOException
+     */
+    String next() throws IOException{
+      while(true){
+        int read = input.read(buffer, kept, buffer.length - kept);
+        if(read == -1){
+          if(kept == 0) return null;
+          /* Unpaired half at the end of input, sent as it is */
+          kept = 0;
+          return String.valueOf(buffer[0]);
+        }
+        int length = kept + read;
+        kept = length > 0 && Character.isHighSurrogate(buffer[length - 1]) ? 1 : 0;
+        String chunk = new String(buffer, 0, length - kept);
+        if(kept == 1){
+          buffer[0] = buffer[length - 1];
+        }
+        if(!chunk.isEmpty()){
+          return chunk;
+        }
       }
-      
-      sslSocket.close();
     }
   }
   
@@ -99,6 +506,7 @@ public class WordCountClient {
   public static void main(String[] args) throws Exception{
     String host = "localhost";
     int port = 9999;
+    WireFormat format = WireFormat.TEXT;
     if(args.length == 0){
       System.out.println("No argument entered.");
       System.out.println("Use default host = "+host+" and port = "+port);
@@ -111,10 +519,33 @@ public class WordCountClient {
             port = Integer.parseInt(args[1]);
           }catch(Exception e){ throw new RuntimeException("port must be integer"); }
         }
+        if(args.length >= 3){
+          format = WireFormat.forName(args[2]);
+        }
       }
+      WordCountClient client = new WordCountClient();
+      client.setWireFormat(format);
+      client.start(host, port);
+    }catch(Exception e){
+      System.out.println("Connection terminated!");
+      System.err.println(e.getMessage());
+    }
+  }
+  
+  /**
+   * Ask for credential and connect to server
+   * @param host
+   * @param port
+   */
+  public void start(String host, int port){
+    try{
       String username = StdIO.readLine("Please enter your name:");
       String password = StdIO.readPassword("Please enter your password:");
-      new WordCountClient().connect(host, port, username, password);
+      if(streams > 0){
+        multiplex(host, port, username, password);
+      }else{
+        connect(host, port, username, password);
+      }
     }catch(Exception e){
       System.out.println("Connection terminated!");
       System.err.println(e.getMessage());
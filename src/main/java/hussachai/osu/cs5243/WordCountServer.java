@@ -1,13 +1,23 @@
 package hussachai.osu.cs5243;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.text.MessageFormat;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
@@ -33,17 +43,48 @@ public class WordCountServer {
   
   private int port = 9999;
   
+  /**
+   * Server engine: thread (one thread per client), virtual (one virtual thread
+   * per client) or nio (event loops)
+   */
+  private String engine;
+  
+  /**
+   * Maximum number of concurrent sessions served by blocking engines
+   */
+  private int maxSessions;
+  
   private Config config;
   
-  public WordCountServer(){
+  /**
+   * Services shared by all sessions
+   */
+  private ServerContext context;
+  
+  public WordCountServer() throws Exception{
+    this(null);
+  }
+  
+  /**
+   * @param engine the server engine or null to use the one in configuration
+   */
+  public WordCountServer(String engine) throws Exception{
     /* Load configuration from file */
-    config = ConfigFactory.parseFile(new File("server/server.conf"));
+    this(ConfigFactory.parseFile(new File("server/server.conf")), engine);
+  }
+  
+  /**
+   * Server with the given configuration, e.g. one started in process by a benchmark
+   * @param config the configuration with all keys of server.conf
+   * @param engine the server engine or null to use the one in configuration
+   */
+  public WordCountServer(Config config, String engine) throws Exception{
+    this.config = config;
     this.port = config.getInt("server.port");
-    
-    /* Initialize the private key store and password*/
-    System.setProperty("javax.net.ssl.keyStore", "server/wordcount.pem");
-    System.setProperty("javax.net.ssl.keyStorePassword", 
-        config.getString("keyStore.password"));
+    this.engine = engine != null ? engine : config.getString("server.engine");
+    this.maxSessions = config.getInt("server.maxSessions");
+    /* The private key store and password are loaded by the TLS context of server */
+    this.context = new ServerContext(config);
   }
   
   /**
@@ -51,127 +92,296 @@ public class WordCountServer {
    * @throws Exception
    */
   public void start() throws Exception{
-    /* Create SSL server socket factory using default configuration */
-    SSLServerSocketFactory serverSocketFactory = (SSLServerSocketFactory) 
-        SSLServerSocketFactory.getDefault();
+    if("nio".equals(engine)){
+      new NioServerEngine(context, port).start();
+    }else if("thread".equals(engine)){
+      /* Start new thread for each client */
+      startBlockingEngine(new Executor(){
+        @Override
+        public void execute(Runnable command){
+          try{
+            new Thread(command).start();
+          }catch(OutOfMemoryError e){
+            /* No more native threads, handled like a saturated pool */
+            throw new RejectedExecutionException("Thread cannot be started", e);
+          }
+        }
+      });
+    }else if("virtual".equals(engine)){
+      startBlockingEngine(newVirtualThreadExecutor(maxSessions, context.getLog()));
+    }else{
+      throw new IllegalArgumentException("unknown engine: "+engine);
+    }
+  }
+  
+  /**
+   * Start the server that serves each client with blocking I/O on the thread
+   * given by executor. The server stops accepting new connection when the number
+   * of sessions reaches maxSessions and waits until one of them has ended.
+   * @param executor
+   * @throws Exception
+   */
+  protected void startBlockingEngine(Executor executor) throws Exception{
+    /* Create SSL server socket factory using the TLS context of server */
+    SSLServerSocketFactory serverSocketFactory = context.getSslContext().getServerSocketFactory();
     /* Create SSL server socket on specified port */
     SSLServerSocket serverSocket = (SSLServerSocket) serverSocketFactory
         .createServerSocket(port);
-    System.out.println("Server started at "+new Date());
+    serverSocket.setSSLParameters(context.getSslParameters());
+    AsyncLog log = context.getLog();
+    log.info("Server started at {0}", new Date());
+    Semaphore sessions = new Semaphore(maxSessions);
     /* Continuing wait for handling incoming connection */
     while(true){
-      System.out.println("Waiting for next client...");
-      SSLSocket sslSocket = (SSLSocket) serverSocket.accept();
-      System.out.println("Client: "+sslSocket.getInetAddress().getHostAddress()+
-          " has established connection at "+new Date());
-      /* Start new thread and service client request */
-      new WordCountService(config, sslSocket).start();
+      /* Backpressure: the pending connections wait in the accept backlog */
+      sessions.acquire();
+      log.debug("Waiting for next client...");
+      SSLSocket sslSocket = null;
+      try{
+        sslSocket = (SSLSocket) serverSocket.accept();
+      }catch(IOException e){
+        sessions.release();
+        throw e;
+      }
+      String address = sslSocket.getInetAddress().getHostAddress();
+      log.info("Client: {0} has established connection at {1}", address, new Date());
+      context.getMetrics().getConnections().increment();
+      /* Log in and serve client on its own thread */
+      WordCountService service = new WordCountService(context, sslSocket, sessions);
+      try{
+        executor.execute(service);
+      }catch(RejectedExecutionException e){
+        /* Closes the socket and gives the session permit back */
+        log.error("Client: {0} cannot be served: {1}", address, e);
+        service.end();
+      }
+    }
+  }
+  
+  /**
+   * Create executor that runs each task on a new virtual thread.
+   * If virtual threads are not available in this JVM, the bounded thread pool
+   * is used instead.
+   * @param maxThreads the number of threads in the fallback pool
+   * @param log
+   * @return
+   */
+  protected static ExecutorService newVirtualThreadExecutor(int maxThreads, AsyncLog log){
+    try{
+      /* Looked up reflectively because virtual threads need Java 21 */
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService)factory.invoke(null);
+    }catch(ReflectiveOperationException e){
+      log.info("Virtual threads are not available. Use thread pool of {0} threads instead",
+          maxThreads);
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads,
+          60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
     }
   }
   
   /**
-   * Word count service worker thread
+   * Word count service worker serving one client with blocking I/O on the thread
+   * given by the server engine. Only the CPU work of its login is done on
+   * {@link HandshakeStage}.
    * @author hussachai
    *
    */
-  public static class WordCountService extends Thread{
+  public static class WordCountService implements Runnable{
     
-    private boolean debug;
-    private Config config;
+    private ServerContext context;
     private SSLSocket sslSocket;
+    private Semaphore sessions;
     
-    public WordCountService(Config config, SSLSocket sslSocket){
-      this.config = config;
+    private ServerSession session;
+    private WireReader reader;
+    private OutputStream writer;
+    private List<ByteBuffer> responses = new ArrayList<>();
+    private byte[] transfer;
+    
+    /**
+     * When the socket was accepted
+     */
+    private long accepted = System.nanoTime();
+    
+    /**
+     * Whether the socket has been closed because the client hasn't logged in in time
+     */
+    private volatile boolean expired;
+    
+    /**
+     * @param context
+     * @param sslSocket
+     * @param sessions the session permit that will be released when the client is gone
+     */
+    public WordCountService(ServerContext context, SSLSocket sslSocket, Semaphore sessions){
+      this.context = context;
       this.sslSocket = sslSocket;
-      debug = config.getBoolean("server.debug");
+      this.sessions = sessions;
+      this.session = new ServerSession(context);
+      session.setLoginStage(sslSocket.getInetAddress().getHostAddress());
     }
     
+    /**
+     * Complete TLS handshake and login within the handshake timeout
+     * @return false when the client hasn't logged in and the session has been ended
+     */
+    protected boolean authenticate(){
+      context.getMetrics().getAccept().recordSince(accepted);
+      /* A client that is slow to log in, even one byte at a time, doesn't keep the thread */
+      ScheduledFuture<?> deadline = context.getHandshakeStage().deadline(new Runnable(){
+        @Override
+        public void run(){
+          expired = true;
+          context.getLog().info("Client: {0} has not logged in in time",
+              sslSocket.getInetAddress().getHostAddress());
+          try{
+            /* Makes the blocked read fail, the service then ends the session */
+            sslSocket.close();
+          }catch(IOException e){
+            context.getLog().error("Socket cannot be closed: {0}", e, e);
+          }
+        }
+      });
+      try{
+        handshake();
+        reader = new WireReader(sslSocket.getInputStream(),
+            context.getConfig().getBytes("server.maxMessageLength").intValue());
+        writer = new BufferedOutputStream(sslSocket.getOutputStream());
+        while(session.isAuthenticating()){
+          if(!exchange()){
+            deadline.cancel(false);
+            end();
+            return false;
+          }
+        }
+      }catch(Exception e){
+        deadline.cancel(false);
+        if(!expired){
+          fail(e);
+        }
+        end();
+        return false;
+      }
+      /* Too late if it has just expired, the closed socket ends the session */
+      deadline.cancel(false);
+      return true;
+    }
+    
+    /**
+     * Log client in, then serve its messages
+     */
     @Override
     public void run(){
-      
-      String response = null;
-      String username = null;
-      try(
-          BufferedReader reader = new BufferedReader(
-              new InputStreamReader(sslSocket.getInputStream()));
-          BufferedWriter writer = new BufferedWriter(
-              new OutputStreamWriter(sslSocket.getOutputStream()))){
-        
-        /* Reads username from client */
-        username = reader.readLine().trim();
-        System.out.println("User: "+username+" is trying to authenticate");
-        Config users = config.getConfig("users");
-        /* Checks whether supplied username is in database or not */
-        if(!users.hasPath(username)){
-          /* If username is not in database, close connection */ 
-          System.out.println("User: "+username+" not found.");
-          writer.write("Sorry user not found!\n");writer.flush();
-          closeSocket();
-          return;
+      if(!authenticate()){
+        return;
+      }
+      try{
+        while (!session.isClosed()) {
+          if(!exchange()) break;
         }
-        
-        /* Create new security session for user */ 
-        SecuritySession session = SecuritySession.create(config.getString("users."+username));
-        /* Create session ID for authentication */
-        String serverNonce = session.generateSessionID();
-        /* Server sends a random nonce to client */
-        debug("Server nonce: {0}", serverNonce);
-        writer.write(serverNonce+"\n");
-        writer.flush();
-        /* Server reads the response containing HMAC(server's nonce) and client's nonce */
-        response = reader.readLine().trim();
-        int sep = response.indexOf("|");
-        if(sep == -1 && response.length() < sep + 1){
-          throw new RuntimeException("Incorrect format message");
+      }catch(Exception e){
+        fail(e);
+      }finally{
+        end();
+      }
+    }
+    
+    /**
+     * Read one line or frame, handle it and write the responses
+     * @return false when client has closed the connection
+     * @throws Exception
+     */
+    protected boolean exchange() throws Exception{
+      responses.clear();
+      if(session.getWireFormat() == WireFormat.BINARY){
+        ByteBuffer frame = reader.readFrame();
+        if(frame == null) return false;
+        session.onFrame(frame, responses);
+      }else{
+        String request = reader.readLine();
+        if(request == null) return false;
+        session.onLine(request, responses);
+      }
+      long start = System.nanoTime();
+      BufferPool pool = context.getBufferPool();
+      try{
+        for(ByteBuffer response: responses){
+          write(response);
         }
-        String serverNonceMAC = response.substring(0, sep);
-        debug("Client returned MAC of server nonce: {0} ", serverNonceMAC);
-        String clientNonce = response.substring(sep + 1, response.length());
-        debug("Recieved client[{0}] nonce: {1} ", username, clientNonce);
-        /* Server checks whether client can create the correct HMAC for server's nonce */
-        if(serverNonceMAC.equals(session.generateHMAC(serverNonce))){
-          String clientNonceMAC = session.generateHMAC(clientNonce);
-          debug("Sending MAC of client nonce to client[{0}]: {1}", 
-              username, clientNonceMAC);
-          writer.write(clientNonceMAC+"\n");
-          writer.flush();
-        }else{
-          throw new RuntimeException("HMAC verification failed");
+      }finally{
+        for(ByteBuffer response: responses){
+          pool.release(response);
         }
-        
-        System.out.println("User: "+username+" has been authenticated successfully");
-        
-        String message = "Hello "+username+". Welcome to awesome word counter service.";
-        SecureMessage secureMessage = session.encrypt(message);
-        writer.write(secureMessage.toString()+"\n");
+      }
+      /* Pipelined requests are answered together when they arrive together */
+      if(reader.available() == 0){
         writer.flush();
-        
-        while ((response = reader.readLine()) != null) {
-          secureMessage = SecureMessage.fromString(response);
-          debug("Received message from client[{0}]: {1}", username, 
-              secureMessage.getCipherText());
-          debug("HMAC: {0}", secureMessage.getHMAC());
-          response = session.decrypt(secureMessage);
-          debug("Decrypted message: " + response);
-          int wordCount = response.split("\\s+").length;
-          int charCount = response.length();
-          
-          message = "Words: "+wordCount+", Characters: "+charCount;
-          debug("Encrypting message: {0}", message);
-          secureMessage = session.encrypt(message);
-          debug("Sending message to client[{0}]: {1}", username, secureMessage);
-          writer.write(secureMessage.toString()+"\n");
+      }
+      if(!responses.isEmpty()){
+        context.getMetrics().getWrite().recordSince(start);
+      }
+      return true;
+    }
+    
+    /**
+     * Write response, copying direct buffers through a transfer array
+     * which is reused by all responses of this connection
+     */
+    private void write(ByteBuffer response) throws IOException{
+      if(response.hasArray()){
+        writer.write(response.array(), response.arrayOffset() + response.position(),
+            response.remaining());
+        return;
+      }
+      if(transfer == null){
+        transfer = new byte[8192];
+      }
+      while(response.hasRemaining()){
+        int n = Math.min(transfer.length, response.remaining());
+        response.get(transfer, 0, n);
+        writer.write(transfer, 0, n);
+      }
+    }
+    
+    private void fail(Exception e){
+      context.getMetrics().getErrors().increment();
+      context.getLog().error("Error: {0} occurs during the conversion of: {1}",
+          e, session.getUsername(), e);
+    }
+    
+    /**
+     * Send what's left, close the connection and give back the session permit
+     */
+    protected void end(){
+      if(writer != null){
+        try{
           writer.flush();
+        }catch(IOException e){
+          /* The connection is broken, nothing can be sent */
         }
-      }catch(Exception e){
-        e.printStackTrace();
-        System.out.println("Error: "+e.toString()+
-            " occurs during the conversion of: "+username);
-        closeSocket();
-      }finally{
-        closeSocket();
-        System.out.println("Disconnected: "+username+" at "+new Date());
       }
+      closeSocket();
+      if(sessions != null) sessions.release();
+      context.getLog().info("Disconnected: {0} at {1}", session.getUsername(), new Date());
+    }
+    
+    /**
+     * Complete TLS handshake on this thread, so that the accepting thread never
+     * waits for it, and record how long it took
+     * @throws IOException
+     */
+    protected void handshake() throws IOException{
+      long startMillis = System.currentTimeMillis();
+      long start = System.nanoTime();
+      sslSocket.startHandshake();
+      long nanos = System.nanoTime() - start;
+      boolean resumed = TlsSupport.isResumed(sslSocket.getSession(), startMillis);
+      context.getMetrics().recordHandshake(resumed, nanos);
+      context.getLog().info("TLS handshake of {0} {1} in {2} ms",
+          sslSocket.getInetAddress().getHostAddress(), resumed ? "resumed" : "full",
+          nanos / 1000000);
     }
     
     /**
@@ -179,17 +389,11 @@ public class WordCountServer {
      */
     protected void closeSocket(){
       try {
-        System.out.println("Ending connection of "+sslSocket.getInetAddress().getHostAddress());
+        context.getLog().info("Ending connection of {0}",
+            sslSocket.getInetAddress().getHostAddress());
         sslSocket.close();
       } catch (IOException e) {
-        e.printStackTrace();
-      }
-    }
-    
-    
-    protected void debug(String message, Object... args){
-      if(debug){
-        System.out.println("DEBUG > " + MessageFormat.format(message, args));
+        context.getLog().error("Socket cannot be closed: {0}", e, e);
       }
     }
   }
@@ -200,7 +404,11 @@ public class WordCountServer {
    * @throws Exception
    */
   public static void main(String[] args) throws Exception{
-    new WordCountServer().start();
+    String engine = null;
+    if(args.length > 0){
+      engine = args[0];
+    }
+    new WordCountServer(engine).start();
   }
   
 }
@@ -0,0 +1,169 @@
+package hussachai.osu.cs5243;
+
+/**
+ * Single pass word and character counter.
+ * A word is a maximal run of non-whitespace characters, where whitespace is
+ * any Unicode whitespace or space separator (including no-break spaces).
+ * Characters are counted as Unicode code points, so a surrogate pair counts as one.
+ * 
+ * The counter keeps its state between calls of {@link #update(CharSequence)},
+ * so a text can be counted piece by piece and a word split between
+ * two pieces is still counted once. Nothing is allocated while counting.
+ * 
+ * This class is not thread-safe.
+ * 
+ * @author hussachai (http://www.siberhus.com) 
+ *
+ */
+public class WordCounter {
+  
+  /**
+   * ASCII whitespace lookup table
+   */
+  private static final boolean[] ASCII_WHITESPACE = new boolean[128];
+  
+  static{
+    for(char c = 0; c < 128; c++){
+      ASCII_WHITESPACE[c] = Character.isWhitespace(c) || Character.isSpaceChar(c);
+    }
+  }
+  
+  private long words;
+  
+  private long characters;
+  
+  /**
+   * Whether the last character seen was part of a word
+   */
+  private boolean inWord;
+  
+  /**
+   * Whether the last character seen was a high surrogate
+   */
+  private boolean highSurrogate;
+  
+  /**
+   * Count the whole text
+   * @param text
+   * @return
+   */
+  public static WordCount count(CharSequence text){
+    return new WordCounter().update(text).result();
+  }
+  
+  /**
+   * Count the next piece of text
+   * @param text
+   * @return this counter
+   */
+  public WordCounter update(CharSequence text){
+    return update(text, 0, text.length());
+  }
+  
+  /**
+   * Count the characters of text from start (inclusive) to end (exclusive)
+   * @param text
+   * @param start
+   * @param end
+   * @return this counter
+   */
+  public WordCounter update(CharSequence text, int start, int end){
+    long words = this.words;
+    long characters = this.characters;
+    boolean inWord = this.inWord;
+    boolean highSurrogate = this.highSurrogate;
+    for(int i = start; i < end; i++){
+      char c = text.charAt(i);
+      if(highSurrogate && Character.isLowSurrogate(c)){
+        /* The second half of code point that has been counted already */
+        highSurrogate = false;
+        continue;
+      }
+      highSurrogate = Character.isHighSurrogate(c);
+      characters++;
+      if(isWhitespace(c)){
+        inWord = false;
+      }else if(!inWord){
+        inWord = true;
+        words++;
+      }
+    }
+    this.words = words;
+    this.characters = characters;
+    this.inWord = inWord;
+    this.highSurrogate = highSurrogate;
+    return this;
+  }
+  
+  /**
+   * Whether the character is a word separator.
+   * Supplementary code points are never whitespace, so checking UTF-16 unit is enough.
+   * @param c
+   * @return
+   */
+  public static boolean isWhitespace(char c){
+    if(c < 128){
+      return ASCII_WHITESPACE[c];
+    }
+    return Character.isWhitespace(c) || Character.isSpaceChar(c) || c == '\u0085';
+  }
+  
+  public long getWords(){
+    return words;
+  }
+  
+  public long getCharacters(){
+    return characters;
+  }
+  
+  /**
+   * Whether the last character counted is part of a word, which the next
+   * piece continues unless it starts with whitespace
+   * @return
+   */
+  public boolean isInWord(){
+    return inWord;
+  }
+  
+  /**
+   * Whether the last character counted is the first half of a surrogate pair
+   * @return
+   */
+  public boolean isAfterHighSurrogate(){
+    return highSurrogate;
+  }
+  
+  /**
+   * Continue counting from a state saved with the getters of another counter
+   * @param words
+   * @param characters
+   * @param inWord
+   * @param highSurrogate
+   * @return this counter
+   */
+  public WordCounter restore(long words, long characters, boolean inWord, boolean highSurrogate){
+    this.words = words;
+    this.characters = characters;
+    this.inWord = inWord;
+    this.highSurrogate = highSurrogate;
+    return this;
+  }
+  
+  /**
+   * The result of what has been counted so far
+   * @return
+   */
+  public WordCount result(){
+    return new WordCount(words, characters);
+  }
+  
+  /**
+   * Clear the counter for the next text
+   */
+  public void reset(){
+    words = 0;
+    characters = 0;
+    inWord = false;
+    highSurrogate = false;
+  }
+}
@@ -0,0 +1,419 @@
+package hussachai.osu.cs5243;
+
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Word frequency table.
+ * Words are split the same way as {@link WordCounter} does. Each distinct word
+ * is stored once as UTF-8 bytes in one shared byte arena, and the table itself
+ * is a set of primitive arrays with open addressing (linear probing), so counting
+ * a large vocabulary doesn't create a String and an Integer for every word.
+ *
+ * The words come from clients, so the hash is seeded with a random value drawn
+ * again on every {@link #reset()}. Clients cannot then pick words that all probe
+ * the same run of slots. The arrays grow with the table and shrink back on reset
+ * when they are much larger than the last use needed.
+ *
+ * A word at the end of {@link #add(CharSequence, int, int)} is kept open until
+ * whitespace or {@link #flush()}, so a text can be added piece by piece.
+ *
+ * This class is not thread-safe.
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class WordFrequency {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final SecureRandom SEEDS = new SecureRandom();
+
+  /**
+   * Initial number of entries
+   */
+  private static final int CAPACITY = 64;
+
+  /**
+   * Initial size of arena
+   */
+  private static final int ARENA_SIZE = 1024;
+
+  /**
+   * Initial size of word buffer
+   */
+  private static final int WORD_SIZE = 64;
+
+  /**
+   * Arrays at least this many times larger than needed are shrunk on reset
+   */
+  private static final int SHRINK_RATIO = 4;
+
+  private int seed = SEEDS.nextInt();
+
+  /**
+   * UTF-8 bytes of all distinct words
+   */
+  private byte[] arena = new byte[ARENA_SIZE];
+  private int arenaLength;
+
+  /* Entries stored densely in the order words were first seen */
+  private int[] offsets = new int[CAPACITY];
+  private int[] lengths = new int[CAPACITY];
+  private int[] hashes = new int[CAPACITY];
+  private long[] counts = new long[CAPACITY];
+  private int size;
+
+  /**
+   * Open addressing table of entry index + 1 (0 is empty slot)
+   */
+  private int[] table = new int[CAPACITY * 2];
+
+  /**
+   * UTF-8 bytes of the word being read
+   */
+  private byte[] word = new byte[WORD_SIZE];
+  private int wordLength;
+
+  /**
+   * Pending high surrogate at the end of previous piece
+   */
+  private char highSurrogate;
+
+  private long total;
+
+  /**
+   * Add all words of text from start (inclusive) to end (exclusive)
+   * @param text
+   * @param start
+   * @param end
+   * @return this table
+   */
+  public WordFrequency add(CharSequence text, int start, int end){
+    for(int i = start; i < end; i++){
+      char c = text.charAt(i);
+      if(highSurrogate != 0){
+        char high = highSurrogate;
+        highSurrogate = 0;
+        if(Character.isLowSurrogate(c)){
+          appendCodePoint(Character.toCodePoint(high, c));
+          continue;
+        }
+        /* Lone surrogate is replaced like String.getBytes does */
+        appendCodePoint('?');
+      }
+      if(WordCounter.isWhitespace(c)){
+        endWord();
+      }else if(Character.isHighSurrogate(c)){
+        highSurrogate = c;
+      }else if(Character.isLowSurrogate(c)){
+        appendCodePoint('?');
+      }else{
+        appendCodePoint(c);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Add all words of text and close the last word
+   * @param text
+   * @return this table
+   */
+  public WordFrequency addAll(CharSequence text){
+    return add(text, 0, text.length()).flush();
+  }
+
+  /**
+   * Close the word at the end of the last piece
+   * @return this table
+   */
+  public WordFrequency flush(){
+    if(highSurrogate != 0){
+      highSurrogate = 0;
+      appendCodePoint('?');
+    }
+    endWord();
+    return this;
+  }
+
+  /**
+   * Number of distinct words
+   * @return
+   */
+  public int size(){
+    return size;
+  }
+
+  /**
+   * Number of all words
+   * @return
+   */
+  public long getTotal(){
+    return total;
+  }
+
+  /**
+   * Word of entry
+   * @param entry index from 0 to size - 1
+   * @return
+   */
+  public String getWord(int entry){
+    return new String(arena, offsets[entry], lengths[entry], UTF8);
+  }
+
+  /**
+   * Count of entry
+   * @param entry index from 0 to size - 1
+   * @return
+   */
+  public long getCount(int entry){
+    return counts[entry];
+  }
+
+  /**
+   * Count of word
+   * @param word
+   * @return
+   */
+  public long getCount(String word){
+    byte[] bytes = word.getBytes(UTF8);
+    int hash = hash(bytes, bytes.length);
+    int mask = table.length - 1;
+    for(int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask){
+      int entry = table[slot] - 1;
+      if(hashes[entry] == hash && equals(entry, bytes, bytes.length)){
+        return counts[entry];
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * The k most frequent words using a bounded min-heap of size k.
+   * Words with the same count are ordered by first appearance.
+   * @param k
+   * @return entries ordered from the most frequent
+   */
+  public int[] top(int k){
+    k = Math.min(k, size);
+    int[] heap = new int[k];
+    int heapSize = 0;
+    for(int entry = 0; entry < size; entry++){
+      if(heapSize < k){
+        heap[heapSize] = entry;
+        siftUp(heap, heapSize++);
+      }else if(k > 0 && before(entry, heap[0])){
+        heap[0] = entry;
+        siftDown(heap, heapSize);
+      }
+    }
+    /* Pop the least frequent to the end, leaving the most frequent first */
+    for(int i = heapSize - 1; i > 0; i--){
+      int least = heap[0];
+      heap[0] = heap[i];
+      heap[i] = least;
+      siftDown(heap, i);
+    }
+    return heap;
+  }
+
+  /**
+   * The word at the end of the last piece that hasn't been closed yet
+   * @return the word or an empty string
+   */
+  public String getOpenWord(){
+    return new String(word, 0, wordLength, UTF8);
+  }
+
+  /**
+   * Clear the table for reuse with a new seed. The arrays are kept unless they
+   * are much larger than the words added since the last reset needed.
+   */
+  public void reset(){
+    int capacity = fit(size, CAPACITY);
+    if(offsets.length >= capacity * SHRINK_RATIO){
+      offsets = new int[capacity];
+      lengths = new int[capacity];
+      hashes = new int[capacity];
+      counts = new long[capacity];
+    }
+    if(table.length >= capacity * 2 * SHRINK_RATIO){
+      table = new int[capacity * 2];
+    }else{
+      Arrays.fill(table, 0);
+    }
+    int arenaSize = fit(arenaLength, ARENA_SIZE);
+    if(arena.length >= arenaSize * SHRINK_RATIO){
+      arena = new byte[arenaSize];
+    }
+    if(word.length >= WORD_SIZE * SHRINK_RATIO){
+      word = new byte[WORD_SIZE];
+    }
+    seed = SEEDS.nextInt();
+    size = 0;
+    arenaLength = 0;
+    wordLength = 0;
+    highSurrogate = 0;
+    total = 0;
+  }
+
+  /**
+   * The smallest power of two holding length, at least minimum
+   */
+  private static int fit(int length, int minimum){
+    return Math.max(minimum, Integer.highestOneBit(Math.max(1, length - 1)) << 1);
+  }
+
+  /**
+   * Whether entry a ranks before entry b
+   */
+  private boolean before(int a, int b){
+    return counts[a] > counts[b] || (counts[a] == counts[b] && a < b);
+  }
+
+  private void siftUp(int[] heap, int i){
+    int entry = heap[i];
+    while(i > 0){
+      int parent = (i - 1) >>> 1;
+      /* Min-heap: the entry ranking last is at the root */
+      if(!before(heap[parent], entry)) break;
+      heap[i] = heap[parent];
+      i = parent;
+    }
+    heap[i] = entry;
+  }
+
+  private void siftDown(int[] heap, int heapSize){
+    int i = 0;
+    int entry = heap[0];
+    while(true){
+      int child = 2 * i + 1;
+      if(child >= heapSize) break;
+      if(child + 1 < heapSize && before(heap[child], heap[child + 1])){
+        child++;
+      }
+      if(!before(entry, heap[child])) break;
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = entry;
+  }
+
+  private void appendCodePoint(int cp){
+    if(wordLength + 4 > word.length){
+      word = Arrays.copyOf(word, word.length * 2);
+    }
+    if(cp < 0x80){
+      word[wordLength++] = (byte)cp;
+    }else if(cp < 0x800){
+      word[wordLength++] = (byte)(0xC0 | (cp >> 6));
+      word[wordLength++] = (byte)(0x80 | (cp & 0x3F));
+    }else if(cp < 0x10000){
+      word[wordLength++] = (byte)(0xE0 | (cp >> 12));
+      word[wordLength++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+      word[wordLength++] = (byte)(0x80 | (cp & 0x3F));
+    }else{
+      word[wordLength++] = (byte)(0xF0 | (cp >> 18));
+      word[wordLength++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+      word[wordLength++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+      word[wordLength++] = (byte)(0x80 | (cp & 0x3F));
+    }
+  }
+
+  private void endWord(){
+    if(wordLength == 0) return;
+    addWord(word, wordLength);
+    wordLength = 0;
+  }
+
+  /**
+   * Increase count of word given as UTF-8 bytes
+   * @param bytes
+   * @param length
+   */
+  public void addWord(byte[] bytes, int length){
+    addWord(bytes, length, 1);
+  }
+
+  /**
+   * Increase count of word given as UTF-8 bytes by count
+   * @param bytes
+   * @param length
+   * @param count
+   */
+  public void addWord(byte[] bytes, int length, long count){
+    total += count;
+    int hash = hash(bytes, length);
+    int mask = table.length - 1;
+    int slot = hash & mask;
+    for(; table[slot] != 0; slot = (slot + 1) & mask){
+      int entry = table[slot] - 1;
+      if(hashes[entry] == hash && equals(entry, bytes, length)){
+        counts[entry] += count;
+        return;
+      }
+    }
+    /* New word */
+    if(size == offsets.length){
+      int capacity = size * 2;
+      offsets = Arrays.copyOf(offsets, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+      hashes = Arrays.copyOf(hashes, capacity);
+      counts = Arrays.copyOf(counts, capacity);
+    }
+    if(arenaLength + length > arena.length){
+      arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + length));
+    }
+    System.arraycopy(bytes, 0, arena, arenaLength, length);
+    offsets[size] = arenaLength;
+    lengths[size] = length;
+    hashes[size] = hash;
+    counts[size] = count;
+    arenaLength += length;
+    table[slot] = ++size;
+    /* Keep load factor at most 0.5 */
+    if(size * 2 > table.length){
+      rehash();
+    }
+  }
+
+  private void rehash(){
+    int[] larger = new int[table.length * 2];
+    int mask = larger.length - 1;
+    for(int entry = 0; entry < size; entry++){
+      int slot = hashes[entry] & mask;
+      while(larger[slot] != 0){
+        slot = (slot + 1) & mask;
+      }
+      larger[slot] = entry + 1;
+    }
+    table = larger;
+  }
+
+  private boolean equals(int entry, byte[] bytes, int length){
+    if(lengths[entry] != length) return false;
+    int offset = offsets[entry];
+    for(int i = 0; i < length; i++){
+      if(arena[offset + i] != bytes[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * FNV-1a starting from the seed with final mixing so that linear probing
+   * gets well spread slots
+   */
+  private int hash(byte[] bytes, int length){
+    int hash = 0x811C9DC5 ^ seed;
+    for(int i = 0; i < length; i++){
+      hash = (hash ^ (bytes[i] & 0xFF)) * 0x01000193;
+    }
+    hash ^= seed;
+    hash ^= hash >>> 16;
+    hash *= 0x85EBCA6B;
+    hash ^= hash >>> 13;
+    return hash;
+  }
+}
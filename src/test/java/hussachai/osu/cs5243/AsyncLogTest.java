@@ -0,0 +1,41 @@
+package hussachai.osu.cs5243;
+
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+/**
+ * Writer thread of async log
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class AsyncLogTest extends TestCase {
+
+  public void testArgumentFailingToFormat() throws Exception{
+    StringWriter out = new StringWriter();
+    AsyncLog log = new AsyncLog(AsyncLog.Level.INFO, 4, out);
+    Object broken = new Object(){
+      @Override
+      public String toString(){
+        throw new IllegalStateException("broken");
+      }
+    };
+    /* More entries than the ring holds, so the failed slot must have been freed */
+    for(int i = 0; i < 8; i++){
+      log.info("Broken {0}", broken);
+      log.info("Entry {0}", i);
+      waitFor(out, "Entry "+i);
+    }
+    assertTrue(out.toString().contains("Log message \"Broken {0}\" cannot be formatted"));
+    assertEquals(0, log.getDropped());
+  }
+
+  private static void waitFor(StringWriter out, String text) throws InterruptedException{
+    long deadline = System.currentTimeMillis() + 5000;
+    while(!out.toString().contains(text)){
+      assertTrue("Not written: "+text, System.currentTimeMillis() < deadline);
+      Thread.sleep(1);
+    }
+  }
+}
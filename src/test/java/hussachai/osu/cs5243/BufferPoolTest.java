@@ -0,0 +1,69 @@
+package hussachai.osu.cs5243;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Ownership of pooled buffers
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class BufferPoolTest extends TestCase {
+
+  private final Metrics metrics = new Metrics();
+
+  private final StringWriter out = new StringWriter();
+
+  private final BufferPool pool = new BufferPool(4096, 1 << 20, BufferPool.LeakDetection.OFF,
+      metrics, new AsyncLog(AsyncLog.Level.INFO, 16, out));
+
+  public void testReuse(){
+    ByteBuffer buffer = pool.acquire(300);
+    assertEquals(512, buffer.capacity());
+    assertTrue(buffer.isDirect());
+    pool.release(buffer);
+    assertSame(buffer, pool.acquire(500));
+    assertEquals(1, metrics.getBuffersAllocated().getValue());
+    assertEquals(1, metrics.getBuffersOutstanding().getValue());
+  }
+
+  public void testDoubleRelease() throws Exception{
+    ByteBuffer buffer = pool.acquire(256);
+    pool.release(buffer);
+    pool.release(buffer);
+    assertEquals(0, metrics.getBuffersOutstanding().getValue());
+    /* Handed out once only */
+    ByteBuffer first = pool.acquire(256);
+    ByteBuffer second = pool.acquire(256);
+    assertSame(buffer, first);
+    assertNotSame(first, second);
+    waitFor("released twice");
+  }
+
+  public void testForeignBuffer(){
+    ByteBuffer foreign = ByteBuffer.allocateDirect(1024);
+    pool.release(foreign);
+    pool.release(pool.acquire(1024).duplicate());
+    assertNotSame(foreign, pool.acquire(1024));
+    assertEquals(2, metrics.getBuffersOutstanding().getValue());
+    assertEquals(2, metrics.getBuffersAllocated().getValue());
+  }
+
+  public void testUnpooledSize(){
+    ByteBuffer buffer = pool.acquire(8192);
+    assertFalse(buffer.isDirect());
+    pool.release(buffer);
+    assertEquals(0, metrics.getBuffersOutstanding().getValue());
+  }
+
+  private void waitFor(String text) throws InterruptedException{
+    long deadline = System.currentTimeMillis() + 5000;
+    while(!out.toString().contains(text)){
+      assertTrue("Not logged: "+text, System.currentTimeMillis() < deadline);
+      Thread.sleep(1);
+    }
+  }
+}
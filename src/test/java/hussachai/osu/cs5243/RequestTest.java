@@ -0,0 +1,62 @@
+package hussachai.osu.cs5243;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Parsing of batch bodies
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class RequestTest extends TestCase {
+
+  public void testDocuments(){
+    Request request = Request.parse(Request.batch(null, Arrays.asList("hello world", "", "a b")));
+    int[] documents = request.getDocuments();
+    assertEquals(6, documents.length);
+    String text = request.getText();
+    assertEquals("hello world", text.substring(documents[0], documents[1]));
+    assertEquals("", text.substring(documents[2], documents[3]));
+    assertEquals("a b", text.substring(documents[4], documents[5]));
+  }
+
+  public void testEmptyBatch(){
+    assertEquals(0, batch("").getDocuments().length);
+  }
+
+  public void testLengthWrappingToNegative(){
+    assertMalformed("4294967285:");
+  }
+
+  public void testLengthAboveInteger(){
+    assertMalformed("2147483648:abc");
+    assertMalformed("99999999999999999999999:abc");
+  }
+
+  public void testLengthBeyondBody(){
+    assertMalformed("4:abc");
+    assertMalformed("3:abc1:");
+  }
+
+  public void testMissingColon(){
+    assertMalformed("3abc");
+    assertMalformed("3");
+    assertMalformed(":abc");
+    assertMalformed("-1:abc");
+  }
+
+  private static Request batch(String body){
+    return Request.parse(Request.command(Request.BATCH, null, body));
+  }
+
+  private static void assertMalformed(String body){
+    try{
+      batch(body).getDocuments();
+      fail("Accepted malformed batch "+body);
+    }catch(IllegalArgumentException e){
+      /* Expected */
+    }
+  }
+}
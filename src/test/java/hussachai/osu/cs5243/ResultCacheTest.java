@@ -0,0 +1,123 @@
+package hussachai.osu.cs5243;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Hits of result cache
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class ResultCacheTest extends TestCase {
+
+  /* Constants of the block mixing of ResultCache.hash */
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  private final ParallelWordCounter counter = new ParallelWordCounter(1, Integer.MAX_VALUE);
+
+  public void testRepeatedText(){
+    ResultCache cache = new ResultCache(1 << 20, 8, 16, new Metrics());
+    String shortText = "hello world and all";
+    String longText = text(200);
+    for(int i = 0; i < 2; i++){
+      assertEquals("Words: 4, Characters: 19", cache.count(shortText, 0, shortText.length(), counter).toString());
+      assertEquals("Words: 100, Characters: 200", cache.count(longText, 0, longText.length(), counter).toString());
+    }
+  }
+
+  /**
+   * Texts with the same hash whatever the seed, made by changing one block
+   * so the state differs by 1 << 36, which the next block cancels
+   */
+  public void testCraftedCollision(){
+    String text = text(200);
+    char[] chars = text.toCharArray();
+    setBlock(chars, 1, unmix(mix(block(chars, 1)) ^ (1L << 36)));
+    setBlock(chars, 2, unmix(mix(block(chars, 2)) ^ (1L << 63)));
+    String other = new String(chars);
+    assertFalse(text.equals(other));
+    assertEquals(ResultCache.hash(text, 0, text.length(), 1), ResultCache.hash(other, 0, other.length(), 1));
+    assertEquals(ResultCache.hash(text, 0, text.length(), -7), ResultCache.hash(other, 0, other.length(), -7));
+
+    ResultCache cache = new ResultCache(1 << 20, 8, 16, new Metrics());
+    cache.count(text, 0, text.length(), counter);
+    assertEquals(counter.count(other).toString(), cache.count(other, 0, other.length(), counter).toString());
+    assertEquals(counter.count(text).toString(), cache.count(text, 0, text.length(), counter).toString());
+  }
+
+  /**
+   * UTF-8 bytes with the same hash whatever the seed, made like the texts
+   * with blocks chosen so both of them are ASCII, which is valid UTF-8
+   */
+  public void testCraftedBytesCollision(){
+    byte[] bytes = text(200).getBytes(WireFormat.UTF8);
+    byte[] other = bytes.clone();
+    Random random = new Random(1);
+    long[] differences = {1L << 36, 1L << 63};
+    for(int index = 1; index <= 2; index++){
+      long block = 0;
+      long colliding = 0;
+      do{
+        block = random.nextLong() & 0x7f7f7f7f7f7f7f7fL;
+        colliding = unmix(mix(block) ^ differences[index - 1]);
+      }while((colliding & 0x8080808080808080L) != 0);
+      setBlock(bytes, index, block);
+      setBlock(other, index, colliding);
+    }
+    assertEquals(ResultCache.hash(bytes, 0, bytes.length, 1), ResultCache.hash(other, 0, other.length, 1));
+
+    ResultCache cache = new ResultCache(1 << 20, 8, 16, new Metrics());
+    WordCount count = cache.count(bytes, 0, bytes.length, counter);
+    assertNotNull(count);
+    assertEquals(counter.count(other, 0, other.length).toString(),
+        cache.count(other, 0, other.length, counter).toString());
+    assertEquals(count.toString(), cache.count(bytes, 0, bytes.length, counter).toString());
+  }
+
+  /**
+   * "a b c ..." of the given length
+   */
+  private static String text(int length){
+    StringBuilder text = new StringBuilder(length);
+    for(int i = 0; i < length; i++){
+      text.append(i % 2 == 0 ? (char)('a' + i / 2 % 26) : ' ');
+    }
+    return text.toString();
+  }
+
+  private static long mix(long block){
+    return Long.rotateLeft(block * C1, 31) * C2;
+  }
+
+  private static long unmix(long mixed){
+    return Long.rotateRight(mixed * inverse(C2), 31) * inverse(C1);
+  }
+
+  private static long inverse(long odd){
+    return BigInteger.valueOf(odd).modInverse(BigInteger.ONE.shiftLeft(64)).longValue();
+  }
+
+  private static long block(char[] chars, int index){
+    long block = 0;
+    for(int i = 0; i < 4; i++){
+      block |= (long)chars[index * 4 + i] << (16 * i);
+    }
+    return block;
+  }
+
+  private static void setBlock(byte[] bytes, int index, long block){
+    for(int i = 0; i < 8; i++){
+      bytes[index * 8 + i] = (byte)(block >>> (8 * i));
+    }
+  }
+
+  private static void setBlock(char[] chars, int index, long block){
+    for(int i = 0; i < 4; i++){
+      chars[index * 4 + i] = (char)(block >>> (16 * i));
+    }
+  }
+}
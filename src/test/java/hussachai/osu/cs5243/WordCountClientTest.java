@@ -0,0 +1,73 @@
+package hussachai.osu.cs5243;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Chunks of uploaded file
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class WordCountClientTest extends TestCase {
+
+  public void testChunkBoundaryInsideSurrogatePair() throws Exception{
+    /* The first read stops after the first half of the emoji */
+    List<String> chunks = chunks("a\uD83D\uDE00b", 2, 64);
+    assertEquals(Arrays.asList("a", "\uD83D\uDE00b"), chunks);
+    assertCharacters(3, chunks);
+  }
+
+  public void testChunkSizeInsideSurrogatePair() throws Exception{
+    List<String> chunks = chunks("ab\uD83D\uDE00\uD83D\uDE00", 64, 3);
+    assertEquals(Arrays.asList("ab", "\uD83D\uDE00", "\uD83D\uDE00"), chunks);
+    assertCharacters(4, chunks);
+  }
+
+  public void testUnpairedHalfAtEnd() throws Exception{
+    assertEquals(Arrays.asList("a", "\uD83D"), chunks("a\uD83D", 64, 64));
+  }
+
+  public void testPlainText() throws Exception{
+    assertEquals(Arrays.asList("hello", " worl", "d"), chunks("hello world", 64, 5));
+    assertEquals(new ArrayList<String>(), chunks("", 64, 5));
+  }
+
+  /**
+   * Chunks of text read at most readSize characters at a time
+   */
+  private static List<String> chunks(String text, final int readSize, int chunkSize)
+      throws IOException{
+    Reader input = new StringReader(text){
+      @Override
+      public int read(char[] buffer, int offset, int length) throws IOException{
+        return super.read(buffer, offset, Math.min(length, readSize));
+      }
+    };
+    WordCountClient.ChunkReader reader = new WordCountClient.ChunkReader(input, chunkSize);
+    List<String> chunks = new ArrayList<>();
+    String chunk = null;
+    while((chunk = reader.next()) != null){
+      chunks.add(chunk);
+    }
+    return chunks;
+  }
+
+  /**
+   * Count the chunks as the server does, after they have been encoded to UTF-8
+   */
+  private static void assertCharacters(long expected, List<String> chunks){
+    WordCounter counter = new WordCounter();
+    for(String chunk: chunks){
+      String sent = new String(chunk.getBytes(WireFormat.UTF8), WireFormat.UTF8);
+      counter.update(sent, 0, sent.length());
+    }
+    assertEquals(expected, counter.result().getCharacters());
+  }
+}
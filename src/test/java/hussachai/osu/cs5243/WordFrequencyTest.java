@@ -0,0 +1,59 @@
+package hussachai.osu.cs5243;
+
+import junit.framework.TestCase;
+
+/**
+ * Counting and reuse of word frequency table
+ *
+ * @author hussachai (http://www.siberhus.com)
+ *
+ */
+public class WordFrequencyTest extends TestCase {
+
+  public void testCounts(){
+    WordFrequency frequency = new WordFrequency().addAll("b a c a b a");
+    assertEquals(3, frequency.size());
+    assertEquals(6, frequency.getTotal());
+    assertEquals(3, frequency.getCount("a"));
+    assertEquals(2, frequency.getCount("b"));
+    assertEquals(0, frequency.getCount("d"));
+    int[] top = frequency.top(2);
+    assertEquals("a", frequency.getWord(top[0]));
+    assertEquals("b", frequency.getWord(top[1]));
+  }
+
+  /**
+   * A small text after a large vocabulary, so the arrays are shrunk in between
+   */
+  public void testReuseAfterLargeVocabulary(){
+    WordFrequency frequency = new WordFrequency();
+    StringBuilder large = new StringBuilder();
+    for(int i = 0; i < 100000; i++){
+      large.append("word").append(i).append(' ');
+    }
+    large.append(repeat('x', 5000));
+    frequency.addAll(large);
+    assertEquals(100001, frequency.size());
+    for(int i = 0; i < 3; i++){
+      frequency.reset();
+      assertEquals(0, frequency.size());
+      assertEquals(0, frequency.getCount("word1"));
+      frequency.addAll("word1 word2 word1 "+repeat('y', 300));
+      assertEquals(3, frequency.size());
+      assertEquals(2, frequency.getCount("word1"));
+      assertEquals(1, frequency.getCount(repeat('y', 300)));
+    }
+    frequency.reset();
+    frequency.addAll(large);
+    assertEquals(100001, frequency.size());
+    assertEquals(1, frequency.getCount("word99999"));
+  }
+
+  private static String repeat(char c, int length){
+    StringBuilder text = new StringBuilder(length);
+    for(int i = 0; i < length; i++){
+      text.append(c);
+    }
+    return text.toString();
+  }
+}